@@ -0,0 +1,24 @@
+package org.iot.dsa.iothub.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.iot.dsa.iothub.C2D")
+@Label("C2D Message")
+@Category({"IoT Hub", "C2D"})
+@Description("A C2D message was received, queued and routed to the C2D rules")
+class C2DEvent extends Event {
+
+    @Label("Device")
+    String device;
+
+    @Label("Message Id")
+    String messageId;
+
+    @Label("Result")
+    String result;
+
+}
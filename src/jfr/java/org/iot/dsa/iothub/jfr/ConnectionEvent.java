@@ -0,0 +1,24 @@
+package org.iot.dsa.iothub.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.iot.dsa.iothub.Connection")
+@Label("Connection")
+@Category({"IoT Hub", "Connection"})
+@Description("The connection of a device to IoT Hub changed state")
+class ConnectionEvent extends Event {
+
+    @Label("Device")
+    String device;
+
+    @Label("Status")
+    String status;
+
+    @Label("Reason")
+    String reason;
+
+}
@@ -0,0 +1,24 @@
+package org.iot.dsa.iothub.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.iot.dsa.iothub.D2CEnqueue")
+@Label("D2C Enqueue")
+@Category({"IoT Hub", "D2C"})
+@Description("An update was queued by a D2C rule")
+class D2CEnqueueEvent extends Event {
+
+    @Label("Device")
+    String device;
+
+    @Label("Rule")
+    String rule;
+
+    @Label("Path")
+    String path;
+
+}
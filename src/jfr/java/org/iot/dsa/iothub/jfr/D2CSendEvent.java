@@ -0,0 +1,32 @@
+package org.iot.dsa.iothub.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.iot.dsa.iothub.D2CSend")
+@Label("D2C Send")
+@Category({"IoT Hub", "D2C"})
+@Description("A D2C message was sent and acknowledged, including rate limiting and retries")
+class D2CSendEvent extends Event {
+
+    @Label("Device")
+    String device;
+
+    @Label("Rule")
+    String rule;
+
+    @Label("Path")
+    String path;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+
+    @Label("Status")
+    String status;
+
+}
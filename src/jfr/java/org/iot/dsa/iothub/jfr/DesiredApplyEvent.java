@@ -0,0 +1,27 @@
+package org.iot.dsa.iothub.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.iot.dsa.iothub.DesiredApply")
+@Label("Desired Apply")
+@Category({"IoT Hub", "Twin"})
+@Description("A desired property was written to a DSA value")
+class DesiredApplyEvent extends Event {
+
+    @Label("Device")
+    String device;
+
+    @Label("Property")
+    String property;
+
+    @Label("Path")
+    String path;
+
+    @Label("Success")
+    boolean success;
+
+}
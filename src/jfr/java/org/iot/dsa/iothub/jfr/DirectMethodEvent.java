@@ -0,0 +1,24 @@
+package org.iot.dsa.iothub.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.iot.dsa.iothub.DirectMethod")
+@Label("Direct Method")
+@Category({"IoT Hub", "Direct Methods"})
+@Description("A direct method was received, dispatched to DSA and completed")
+class DirectMethodEvent extends Event {
+
+    @Label("Device")
+    String device;
+
+    @Label("Method")
+    String method;
+
+    @Label("Status")
+    int status;
+
+}
@@ -0,0 +1,131 @@
+package org.iot.dsa.iothub.jfr;
+
+import org.iot.dsa.iothub.PipelineRecorder;
+
+/**
+ * Records the pipeline as JDK Flight Recorder events. Only loaded by
+ * {@link org.iot.dsa.iothub.PipelineEvents} once it has checked that jdk.jfr is available.
+ */
+public class JfrRecorder implements PipelineRecorder {
+
+    @Override
+    public Object beginC2D() {
+        return begin(new C2DEvent());
+    }
+
+    @Override
+    public Object beginD2CSend() {
+        return begin(new D2CSendEvent());
+    }
+
+    @Override
+    public Object beginDesiredApply() {
+        return begin(new DesiredApplyEvent());
+    }
+
+    @Override
+    public Object beginMethod() {
+        return begin(new DirectMethodEvent());
+    }
+
+    @Override
+    public void connectionChanged(String device, String status, String reason) {
+        ConnectionEvent event = new ConnectionEvent();
+        if (event.isEnabled()) {
+            event.device = device;
+            event.status = status;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void d2cEnqueued(String device, String rule, String path) {
+        D2CEnqueueEvent event = new D2CEnqueueEvent();
+        if (event.isEnabled()) {
+            event.device = device;
+            event.rule = rule;
+            event.path = path;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void endC2D(Object timer, String device, String messageId, String result) {
+        C2DEvent event = (C2DEvent) timer;
+        event.end();
+        if (event.shouldCommit()) {
+            event.device = device;
+            event.messageId = messageId;
+            event.result = result;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void endD2CSend(Object timer, String device, String rule, String path, int bytes,
+                           String status) {
+        D2CSendEvent event = (D2CSendEvent) timer;
+        event.end();
+        if (event.shouldCommit()) {
+            event.device = device;
+            event.rule = rule;
+            event.path = path;
+            event.bytes = bytes;
+            event.status = status;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void endDesiredApply(Object timer, String device, String property, String path,
+                                boolean success) {
+        DesiredApplyEvent event = (DesiredApplyEvent) timer;
+        event.end();
+        if (event.shouldCommit()) {
+            event.device = device;
+            event.property = property;
+            event.path = path;
+            event.success = success;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void endMethod(Object timer, String device, String method, int status) {
+        DirectMethodEvent event = (DirectMethodEvent) timer;
+        event.end();
+        if (event.shouldCommit()) {
+            event.device = device;
+            event.method = method;
+            event.status = status;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void twinPatchSent(String device, int properties) {
+        TwinPatchEvent event = new TwinPatchEvent();
+        if (event.isEnabled()) {
+            event.device = device;
+            event.properties = properties;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void twinResponse(String device, String status) {
+        TwinResponseEvent event = new TwinResponseEvent();
+        if (event.isEnabled()) {
+            event.device = device;
+            event.status = status;
+            event.commit();
+        }
+    }
+
+    private static <T extends jdk.jfr.Event> T begin(T event) {
+        event.begin();
+        return event;
+    }
+
+}
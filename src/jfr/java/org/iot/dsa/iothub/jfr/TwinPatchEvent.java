@@ -0,0 +1,21 @@
+package org.iot.dsa.iothub.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.iot.dsa.iothub.TwinPatch")
+@Label("Twin Patch")
+@Category({"IoT Hub", "Twin"})
+@Description("A reported properties patch was sent")
+class TwinPatchEvent extends Event {
+
+    @Label("Device")
+    String device;
+
+    @Label("Properties")
+    int properties;
+
+}
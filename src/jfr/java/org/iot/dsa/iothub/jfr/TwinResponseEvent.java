@@ -0,0 +1,21 @@
+package org.iot.dsa.iothub.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.iot.dsa.iothub.TwinResponse")
+@Label("Twin Response")
+@Category({"IoT Hub", "Twin"})
+@Description("IoT Hub responded to a twin operation")
+class TwinResponseEvent extends Event {
+
+    @Label("Device")
+    String device;
+
+    @Label("Status")
+    String status;
+
+}
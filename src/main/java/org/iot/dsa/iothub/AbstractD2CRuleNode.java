@@ -0,0 +1,318 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.dslink.ActionResults;
+import org.iot.dsa.dslink.DSIRequester;
+import org.iot.dsa.dslink.DSRequestException;
+import org.iot.dsa.dslink.restadapter.AbstractRuleNode;
+import org.iot.dsa.dslink.restadapter.Constants;
+import org.iot.dsa.dslink.restadapter.ResponseWrapper;
+import org.iot.dsa.dslink.restadapter.WebClientProxy;
+import org.iot.dsa.node.DSBool;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSFlexEnum;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSInt;
+import org.iot.dsa.node.DSLong;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSMap.Entry;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.node.action.DSAction;
+import org.iot.dsa.node.action.DSIActionRequest;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * The parameters, counters and Edit action shared by {@link D2CRuleNode} and
+ * {@link D2CWildcardRuleNode}. Subclasses name the parameter that selects what the rule watches,
+ * and create and close the rule itself.
+ */
+public abstract class AbstractD2CRuleNode extends AbstractRuleNode
+        implements D2CQueuePolicy.Listener {
+
+    protected DSMap parameters;
+
+    private DSInfo lastRespCode = getInfo(Constants.LAST_RESPONSE_CODE);
+    private DSInfo lastRespData = getInfo(Constants.LAST_RESPONSE_DATA);
+    private DSInfo lastRespTs = getInfo(Constants.LAST_RESPONSE_TS);
+    private DSInfo conflated = getInfo(D2CQueuePolicy.CONFLATED);
+    private DSInfo expired = getInfo(D2CQueuePolicy.EXPIRED);
+
+    public AbstractD2CRuleNode() {
+    }
+
+    public AbstractD2CRuleNode(DSMap parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Adds the parameters that follow the name and the path in the Add Rule actions of both
+     * kinds of rule.
+     */
+    static void addRuleParameters(DSAction act) {
+        act.addDefaultParameter("Properties", new DSMap(), null);
+        act.addParameter(Constants.REQUEST_BODY, DSString.NULL, null);
+        act.addParameter(Constants.MIN_REFRESH_RATE, DSLong.NULL,
+                         "Optional, ensures at least this many seconds between updates");
+        act.addParameter(Constants.MAX_REFRESH_RATE, DSLong.NULL,
+                         "Optional, ensures an update gets sent every this many seconds");
+        act.addDefaultParameter(LoadSheddingNode.PRIORITY,
+                                DSFlexEnum.valueOf("Normal", LoadSheddingNode.getPriorities()),
+                                "Lower priorities are shed first when the backlog grows");
+        act.addDefaultParameter(D2CFilter.FILTER, DSString.EMPTY,
+                                "Optional, only updates for which this is true are sent")
+           .setPlaceHolder("value > 80 && status == \"ok\"");
+        act.addDefaultParameter(D2CQueuePolicy.CONFLATE, DSBool.FALSE,
+                                "Keep only the latest unsent update");
+        act.addDefaultParameter(D2CQueuePolicy.TTL, DSDouble.valueOf(0),
+                                "Optional, seconds after which unsent updates are dropped");
+    }
+
+    /**
+     * Fails with the position of the problem if the filter of the parameters doesn't parse.
+     */
+    static void validateFilter(DSMap parameters) {
+        String filter = parameters.getString(D2CFilter.FILTER);
+        if (filter == null || filter.trim().isEmpty()) {
+            return;
+        }
+        try {
+            D2CFilter.compile(filter);
+        } catch (IllegalArgumentException e) {
+            throw new DSRequestException(e.getMessage());
+        }
+    }
+
+    public String getBody() {
+        return parameters.getString(Constants.REQUEST_BODY);
+    }
+
+    /**
+     * @return Null if there is no filter, or it doesn't parse.
+     */
+    public D2CFilter getFilter() {
+        String filter = parameters.get(D2CFilter.FILTER, "");
+        if (filter.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return D2CFilter.compile(filter);
+        } catch (IllegalArgumentException e) {
+            warn(e.getMessage());
+            return null;
+        }
+    }
+
+    public double getMaxRefreshRate() {
+        return parameters.get(Constants.MAX_REFRESH_RATE, 0.0);
+    }
+
+    public DSMap getMessageProperties() {
+        return parameters.getMap("Properties");
+    }
+
+    public double getMinRefreshRate() {
+        return parameters.get(Constants.MIN_REFRESH_RATE, 0.0);
+    }
+
+    /**
+     * @return 0 for High, 1 for Normal and 2 for Low.
+     */
+    public int getPriority() {
+        return LoadSheddingNode.parsePriority(parameters.get(LoadSheddingNode.PRIORITY, "Normal"));
+    }
+
+    @Override
+    public DSIRequester getRequester() {
+        return MainNode.getRequester(MainNode.getRequesterTimeout());
+    }
+
+    @Override
+    public WebClientProxy getWebClientProxy() {
+        return null;
+    }
+
+    @Override
+    public void onQueueCounts(D2CQueuePolicy policy) {
+        put(conflated, DSLong.valueOf(policy.getConflatedCount()));
+        put(expired, DSLong.valueOf(policy.getExpiredCount()));
+    }
+
+    @Override
+    public void responseRecieved(ResponseWrapper resp, int rowNum) {
+        if (resp == null) {
+            put(lastRespCode, DSInt.valueOf(-1));
+            put(lastRespData, DSString.valueOf("Failed to send update"));
+            put(lastRespTs, DSString.valueOf(DSDateTime.now()));
+        } else {
+            put(lastRespCode, DSInt.valueOf(resp.getCode()));
+            put(lastRespData, DSString.valueOf(resp.getData()));
+            put(lastRespTs, DSString.valueOf(resp.getTS()));
+        }
+    }
+
+    /**
+     * Applies the queue policy, filter and priority to a rule that was just created, then starts
+     * it. Call while holding the node's lock.
+     */
+    protected void configureAndStart(Rule rule) {
+        rule.setQueuePolicy(D2CQueuePolicy.fromParameters(parameters, this));
+        rule.setFilter(getFilter());
+        rule.setPriority(getPriority());
+        rule.start();
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(Constants.LAST_RESPONSE_CODE, DSInt.NULL).setReadOnly(true);
+        declareDefault(Constants.LAST_RESPONSE_DATA, DSString.EMPTY).setReadOnly(true);
+        declareDefault(Constants.LAST_RESPONSE_TS, DSString.EMPTY).setReadOnly(true);
+        declareDefault(D2CQueuePolicy.CONFLATED, DSLong.valueOf(0)).setTransient(true)
+                .setReadOnly(true);
+        declareDefault(D2CQueuePolicy.EXPIRED, DSLong.valueOf(0)).setTransient(true)
+                .setReadOnly(true);
+    }
+
+    protected void edit(DSMap parameters) {
+        DSMap edited = this.parameters.copy();
+        for (Entry entry : parameters) {
+            edited.put(entry.getKey(), entry.getValue().copy());
+        }
+        validate(edited);
+        DSMap previous = this.parameters;
+        this.parameters = edited;
+        put(Constants.PARAMS, edited.copy()).setPrivate(true);
+        put(Constants.ACT_EDIT, makeEditAction()).setTransient(true);
+        if (Util.isChanged(previous, edited, getPathParameter()) || !reconfigureRule(previous)) {
+            stopRule();
+            startRule();
+        }
+    }
+
+    /**
+     * The name of the parameter that selects what the rule watches.
+     */
+    protected abstract String getPathParameter();
+
+    /**
+     * @return The running rule, or null. Called while holding the node's lock.
+     */
+    protected abstract Rule getRule();
+
+    @Override
+    protected void onRemoved() {
+        super.onRemoved();
+        stopRule();
+    }
+
+    @Override
+    protected void onStable() {
+        super.onStable();
+        startRule();
+        put(Constants.ACT_EDIT, makeEditAction()).setTransient(true);
+    }
+
+    @Override
+    protected void onStarted() {
+        super.onStarted();
+        if (this.parameters == null) {
+            DSIObject o = get(Constants.PARAMS);
+            if (o instanceof DSMap) {
+                this.parameters = (DSMap) o;
+            }
+        } else {
+            put(Constants.PARAMS, parameters.copy()).setPrivate(true);
+        }
+    }
+
+    protected abstract void startRule();
+
+    protected abstract void stopRule();
+
+    /**
+     * Fails if edited parameters can't be used, the filter is checked by default.
+     */
+    protected void validate(DSMap parameters) {
+        validateFilter(parameters);
+    }
+
+    private DSIObject makeEditAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest req) {
+                ((AbstractD2CRuleNode) req.getTarget()).edit(req.getParameters());
+                return null;
+            }
+        };
+        String path = getPathParameter();
+        act.addDefaultParameter(path, DSString.valueOf(parameters.getString(path)), null);
+        act.addDefaultParameter("Properties", getMessageProperties().copy(), null);
+        act.addDefaultParameter(Constants.REQUEST_BODY, DSString.valueOf(getBody()), null);
+        act.addDefaultParameter(Constants.MIN_REFRESH_RATE, DSDouble.valueOf(getMinRefreshRate()),
+                                null);
+        act.addDefaultParameter(Constants.MAX_REFRESH_RATE, DSDouble.valueOf(getMaxRefreshRate()),
+                                null);
+        act.addDefaultParameter(LoadSheddingNode.PRIORITY,
+                                DSFlexEnum.valueOf(parameters.get(LoadSheddingNode.PRIORITY,
+                                                                  "Normal"),
+                                                   LoadSheddingNode.getPriorities()), null);
+        act.addDefaultParameter(D2CFilter.FILTER,
+                                DSString.valueOf(parameters.get(D2CFilter.FILTER, "")), null);
+        act.addDefaultParameter(D2CQueuePolicy.CONFLATE,
+                                DSBool.valueOf(parameters.get(D2CQueuePolicy.CONFLATE, false)),
+                                null);
+        act.addDefaultParameter(D2CQueuePolicy.TTL,
+                                DSDouble.valueOf(parameters.get(D2CQueuePolicy.TTL, 0.0)), null);
+        return act;
+    }
+
+    /**
+     * Applies edited parameters to the running rule without resubscribing. The template, policy
+     * and filter are only replaced if their parameters changed, so that the counts of the policy
+     * and the state of the filter carry over otherwise.
+     *
+     * @return False if there is no running rule.
+     */
+    private synchronized boolean reconfigureRule(DSMap previous) {
+        Rule rule = getRule();
+        if (rule == null) {
+            return false;
+        }
+        if (Util.isChanged(previous, parameters, "Properties", Constants.REQUEST_BODY)) {
+            rule.setTemplate(new D2CTemplate(getMessageProperties(), getBody()));
+        }
+        rule.setRefreshRates(getMinRefreshRate(), getMaxRefreshRate());
+        if (Util.isChanged(previous, parameters, D2CQueuePolicy.CONFLATE, D2CQueuePolicy.TTL)) {
+            rule.setQueuePolicy(D2CQueuePolicy.fromParameters(parameters, this));
+        }
+        if (Util.isChanged(previous, parameters, D2CFilter.FILTER)) {
+            rule.setFilter(getFilter());
+        }
+        if (Util.isChanged(previous, parameters, LoadSheddingNode.PRIORITY)) {
+            rule.setPriority(getPriority());
+        }
+        return true;
+    }
+
+    /**
+     * What a rule node runs, a {@link D2CRule} or a {@link D2CWildcardRule}.
+     */
+    interface Rule {
+
+        void close();
+
+        void setFilter(D2CFilter filter);
+
+        void setPriority(int priority);
+
+        void setQueuePolicy(D2CQueuePolicy policy);
+
+        void setRefreshRates(double minRefreshRate, double maxRefreshRate);
+
+        void setTemplate(D2CTemplate template);
+
+        void start();
+
+    }
+
+}
@@ -0,0 +1,178 @@
+package org.iot.dsa.iothub;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A token bucket whose fill rate adapts to throttling responses from IoT Hub. The rate is capped
+ * by the quota of the hub's tier. It is halved whenever the hub responds with THROTTLED or
+ * SERVER_BUSY, and then grows back linearly while sends succeed.
+ *
+ * <p>Callers that cannot get a token wait in {@link #acquire(long)}, so backpressure reaches
+ * whatever thread is producing the messages.
+ */
+public class AdaptiveRateLimiter {
+
+    /**
+     * The rate never drops below this fraction of the ceiling.
+     */
+    private static final double FLOOR_FRACTION = 0.05;
+    /**
+     * Fraction of the ceiling the rate recovers by for every second without throttling.
+     */
+    private static final double RECOVERY_FRACTION = 0.05;
+    /**
+     * Throttle responses that arrive within this long of the previous decrease are assumed to
+     * belong to the same burst and don't decrease the rate again.
+     */
+    private static final long DECREASE_HOLDOFF_NANOS = 1000000000L;
+
+    private double ceiling;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long lastRefill = System.nanoTime();
+    private long lastDecrease = lastRefill - DECREASE_HOLDOFF_NANOS;
+    private double rate;
+    private long throttledCount;
+    private double tokens;
+
+    /**
+     * @param ceiling The maximum rate in operations per second, 0 or less for no limit.
+     */
+    public AdaptiveRateLimiter(double ceiling) {
+        setCeiling(ceiling);
+    }
+
+    /**
+     * Takes a token, waiting for one to become available if necessary.
+     *
+     * @param timeout Maximum milliseconds to wait, 0 or less to wait indefinitely.
+     * @return False if the timeout elapsed before a token became available.
+     */
+    public boolean acquire(long timeout) {
+        lock.lock();
+        try {
+            long end = System.currentTimeMillis() + timeout;
+            while (true) {
+                if (ceiling <= 0) {
+                    return true;
+                }
+                refill(System.nanoTime());
+                if (tokens >= 1) {
+                    tokens -= 1;
+                    return true;
+                }
+                long wait = (long) Math.ceil((1 - tokens) * 1000 / rate);
+                if (timeout > 0) {
+                    long remaining = end - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait = Math.min(wait, remaining);
+                }
+                try {
+                    changed.await(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getCeiling() {
+        lock.lock();
+        try {
+            return ceiling;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The current allowed rate, in operations per second.
+     */
+    public double getRate() {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getThrottledCount() {
+        lock.lock();
+        try {
+            return throttledCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Multiplicatively decreases the rate, call when IoT Hub responds with THROTTLED or
+     * SERVER_BUSY.
+     */
+    public void onThrottled() {
+        lock.lock();
+        try {
+            throttledCount++;
+            if (ceiling <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            refill(now);
+            if (now - lastDecrease < DECREASE_HOLDOFF_NANOS) {
+                return;
+            }
+            lastDecrease = now;
+            rate = Math.max(rate / 2, ceiling * FLOOR_FRACTION);
+            tokens = Math.min(tokens, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the maximum rate, for example when the tier or unit count of the hub changes.
+     *
+     * @param ceiling Operations per second, 0 or less for no limit.
+     */
+    public void setCeiling(double ceiling) {
+        lock.lock();
+        try {
+            this.ceiling = ceiling;
+            if (ceiling <= 0) {
+                rate = 0;
+            } else if (rate <= 0 || rate > ceiling) {
+                rate = ceiling;
+            }
+            tokens = Math.min(tokens, burst());
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private double burst() {
+        return Math.max(1, rate);
+    }
+
+    private void refill(long now) {
+        double elapsed = (now - lastRefill) / 1000000000d;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastRefill = now;
+        if (rate < ceiling && (now - lastDecrease) > DECREASE_HOLDOFF_NANOS) {
+            rate = Math.min(ceiling, rate + (ceiling * RECOVERY_FRACTION * elapsed));
+        }
+        tokens = Math.min(burst(), tokens + (rate * elapsed));
+    }
+
+}
@@ -0,0 +1,303 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.DeviceClient;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Device;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubConnectionStatusChangeCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.iot.dsa.DSRuntime;
+
+/**
+ * The transport of the Azure IoT device client.
+ *
+ * <p>The client answers every twin operation through the single status callback passed to
+ * startDeviceTwin, without saying which operation a response belongs to. Twin operations are
+ * therefore sent one at a time, and each response goes to the operation that is outstanding.
+ * An operation that gets no response within {@link #TWIN_RESPONSE_TIMEOUT} fails with ERROR.
+ * Its response may still arrive, so the next operation waits until it does, or for at most
+ * {@link #LATE_RESPONSE_GRACE}, and a response that arrives while nothing is outstanding is
+ * discarded.
+ */
+public class AzureDeviceTransport implements DeviceTransport {
+
+    private static final long LATE_RESPONSE_GRACE = 10000;
+    private static final long TWIN_RESPONSE_TIMEOUT = 30000;
+
+    private boolean awaitingLate = false;
+    private final DeviceClient client;
+    private boolean closed = false;
+    private DSRuntime.Timer lateTimer;
+    private TwinOp outstanding;
+    private final ArrayDeque<TwinOp> twinOps = new ArrayDeque<TwinOp>();
+    private final IotHubEventCallback twinStatus = new IotHubEventCallback() {
+        @Override
+        public void execute(IotHubStatusCode responseStatus, Object context) {
+            TwinOp op;
+            boolean late = false;
+            synchronized (twinOps) {
+                op = outstanding;
+                if (op == null && awaitingLate) {
+                    //the response of an operation that timed out, discarded
+                    late = true;
+                    endGrace();
+                }
+            }
+            if (op != null) {
+                complete(op, responseStatus);
+            } else if (late) {
+                sendNext();
+            }
+        }
+    };
+
+    public AzureDeviceTransport(String connectionString, IotHubClientProtocol protocol)
+            throws URISyntaxException {
+        this.client = new DeviceClient(connectionString, protocol);
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<TwinOp> cancelled = new ArrayList<TwinOp>();
+        synchronized (twinOps) {
+            closed = true;
+            endGrace();
+            if (outstanding != null) {
+                cancelled.add(outstanding);
+                outstanding = null;
+            }
+            cancelled.addAll(twinOps);
+            twinOps.clear();
+        }
+        try {
+            client.closeNow();
+        } finally {
+            for (TwinOp op : cancelled) {
+                op.finish(IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE);
+            }
+        }
+    }
+
+    @Override
+    public void open() throws IOException {
+        client.open();
+    }
+
+    @Override
+    public void setConnectionStatusCallback(IotHubConnectionStatusChangeCallback callback,
+                                            Object context) {
+        client.registerConnectionStatusChangeCallback(callback, context);
+    }
+
+    @Override
+    public void setMessageCallback(MessageCallback callback, Object context) {
+        client.setMessageCallback(callback, context);
+    }
+
+    @Override
+    public void sendEventAsync(Message message, IotHubEventCallback callback, Object context) {
+        client.sendEventAsync(message, callback, context);
+    }
+
+    @Override
+    public void sendReportedProperties(final Set<Property> properties,
+                                       IotHubEventCallback callback, Object context) {
+        submit(new TwinOp(callback, context) {
+            @Override
+            void send() throws IOException {
+                client.sendReportedProperties(properties);
+            }
+        });
+    }
+
+    /**
+     * Starts the twin, and once IoT Hub has accepted that, subscribes to desired properties.
+     * The client doesn't respond to a successful subscription, so it isn't an operation of its
+     * own.
+     */
+    @Override
+    public void startTwin(final Device twin, final IotHubEventCallback statusCallback) {
+        submit(new TwinOp(new IotHubEventCallback() {
+            @Override
+            public void execute(IotHubStatusCode responseStatus, Object context) {
+                if (responseStatus == IotHubStatusCode.OK
+                        || responseStatus == IotHubStatusCode.OK_EMPTY) {
+                    try {
+                        client.subscribeToDesiredProperties(twin.getDesiredProp());
+                    } catch (IOException | RuntimeException e) {
+                        responseStatus = IotHubStatusCode.ERROR;
+                    }
+                }
+                statusCallback.execute(responseStatus, context);
+            }
+        }, null) {
+            @Override
+            void send() throws IOException {
+                client.startDeviceTwin(twinStatus, null, twin, null);
+            }
+        });
+    }
+
+    @Override
+    public void subscribeToMethods(DeviceMethodCallback callback,
+                                   IotHubEventCallback statusCallback) throws IOException {
+        client.subscribeToDeviceMethod(callback, null, statusCallback, null);
+    }
+
+    @Override
+    public void uploadToBlobAsync(String name, InputStream in, long length,
+                                  IotHubEventCallback callback, Object context)
+            throws IOException {
+        client.uploadToBlobAsync(name, in, length, callback, context);
+    }
+
+    private void complete(TwinOp op, IotHubStatusCode status) {
+        synchronized (twinOps) {
+            if (outstanding != op) {
+                return;
+            }
+            outstanding = null;
+        }
+        op.finish(status);
+        sendNext();
+    }
+
+    /**
+     * Stops waiting for a late response. Must be called while synchronized on twinOps.
+     */
+    private void endGrace() {
+        awaitingLate = false;
+        if (lateTimer != null) {
+            lateTimer.cancel();
+            lateTimer = null;
+        }
+    }
+
+    /**
+     * Sends the next queued twin operation, unless one is outstanding or the response of one
+     * that timed out may still arrive.
+     */
+    private void sendNext() {
+        while (true) {
+            final TwinOp op;
+            synchronized (twinOps) {
+                if (closed || outstanding != null || awaitingLate || twinOps.isEmpty()) {
+                    return;
+                }
+                op = twinOps.poll();
+                outstanding = op;
+            }
+            op.timer = DSRuntime.runDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut(op);
+                }
+            }, TWIN_RESPONSE_TIMEOUT);
+            try {
+                op.send();
+                return;
+            } catch (IOException | RuntimeException e) {
+                synchronized (twinOps) {
+                    if (outstanding == op) {
+                        outstanding = null;
+                    }
+                }
+                op.finish(IotHubStatusCode.ERROR);
+            }
+        }
+    }
+
+    /**
+     * Fails an operation that got no response, and holds back the next one until the late
+     * response arrives or the grace period ends, so that it can't be taken for the next
+     * operation's.
+     */
+    private void timedOut(TwinOp op) {
+        synchronized (twinOps) {
+            if (outstanding != op) {
+                return;
+            }
+            outstanding = null;
+            if (!closed) {
+                awaitingLate = true;
+                lateTimer = DSRuntime.runDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (twinOps) {
+                            if (!awaitingLate) {
+                                return;
+                            }
+                            awaitingLate = false;
+                            lateTimer = null;
+                        }
+                        sendNext();
+                    }
+                }, LATE_RESPONSE_GRACE);
+            }
+        }
+        op.finish(IotHubStatusCode.ERROR);
+    }
+
+    private void submit(TwinOp op) {
+        synchronized (twinOps) {
+            if (!closed) {
+                twinOps.add(op);
+                op = null;
+            }
+        }
+        if (op != null) {
+            op.finish(IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE);
+            return;
+        }
+        sendNext();
+    }
+
+    /**
+     * A twin operation waiting for its response.
+     */
+    private abstract static class TwinOp {
+
+        private final IotHubEventCallback callback;
+        private final Object context;
+        private boolean finished = false;
+        volatile DSRuntime.Timer timer;
+
+        TwinOp(IotHubEventCallback callback, Object context) {
+            this.callback = callback;
+            this.context = context;
+        }
+
+        abstract void send() throws IOException;
+
+        /**
+         * Calls the callback, only the first time.
+         */
+        void finish(IotHubStatusCode status) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            DSRuntime.Timer t = timer;
+            if (t != null) {
+                t.cancel();
+            }
+            if (callback != null) {
+                callback.execute(status, context);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.iot.dsa.iothub;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks that spend most of their time waiting, such as D2C sends waiting for IoT Hub to
+ * acknowledge them, so they don't tie up the threads of DSRuntime.
+ *
+ * <p>On Java 21 and later the tasks can run on virtual threads, which makes thousands of
+ * concurrent waits cheap. The virtual thread executor is looked up reflectively so the link still
+ * builds and runs on Java 8, where a bounded pool of platform threads is used instead.
+ */
+public class BlockingExecutor {
+
+    private static final int DEFAULT_POOL_SIZE = 64;
+    private static final Method newVirtualExecutor = findVirtualExecutor();
+
+    private static volatile ExecutorService executor = newPool(DEFAULT_POOL_SIZE);
+    private static volatile boolean virtual = false;
+
+    private BlockingExecutor() {
+    }
+
+    /**
+     * Switches to a new executor. Tasks already submitted finish on the old one.
+     *
+     * @param mode     The kind of threads to use.
+     * @param poolSize The maximum number of threads when a thread pool is used.
+     * @return True if tasks now run on virtual threads.
+     */
+    public static synchronized boolean configure(BlockingMode mode, int poolSize) {
+        ExecutorService next = null;
+        if (mode != BlockingMode.THREAD_POOL) {
+            next = newVirtualExecutor();
+        }
+        virtual = next != null;
+        if (next == null) {
+            next = newPool(poolSize);
+        }
+        ExecutorService old = executor;
+        executor = next;
+        old.shutdown();
+        return virtual;
+    }
+
+    /**
+     * Runs the task asynchronously. A task that races with {@link #configure} and is rejected by
+     * the executor being shut down runs on its replacement.
+     */
+    public static void execute(Runnable task) {
+        while (true) {
+            ExecutorService current = executor;
+            try {
+                current.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                if (executor == current) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if the JVM supports virtual threads.
+     */
+    public static boolean isVirtualAvailable() {
+        return newVirtualExecutor != null;
+    }
+
+    /**
+     * @return True if tasks currently run on virtual threads.
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    private static Method findVirtualExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPool(int size) {
+        size = Math.max(1, size);
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "IoT Hub Blocking " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        if (newVirtualExecutor == null) {
+            return null;
+        }
+        try {
+            return (ExecutorService) newVirtualExecutor.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+}
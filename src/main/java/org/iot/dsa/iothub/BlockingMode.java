@@ -0,0 +1,24 @@
+package org.iot.dsa.iothub;
+
+/**
+ * What kind of threads run the tasks of the link that block while waiting on IoT Hub or the
+ * DSA broker.
+ */
+public enum BlockingMode {
+
+    /**
+     * Virtual threads when the JVM supports them, otherwise a bounded thread pool.
+     */
+    AUTO,
+
+    /**
+     * Virtual threads, falls back to a bounded thread pool on JVMs older than 21.
+     */
+    VIRTUAL_THREADS,
+
+    /**
+     * A bounded pool of platform threads.
+     */
+    THREAD_POOL
+
+}
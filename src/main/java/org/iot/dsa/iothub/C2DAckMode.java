@@ -0,0 +1,19 @@
+package org.iot.dsa.iothub;
+
+/**
+ * When a cloud-to-device message is acknowledged to IoT Hub, relative to the handling of the
+ * message by the C2D rules.
+ */
+public enum C2DAckMode {
+
+    /**
+     * Complete the message as soon as it is queued for handling.
+     */
+    ON_RECEIPT,
+
+    /**
+     * Complete the message once the rules have handled it successfully, abandon it otherwise.
+     */
+    AFTER_HANDLING
+
+}
@@ -0,0 +1,160 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands cloud-to-device messages to a pool of worker lanes. Messages with the same correlation
+ * id always go to the same lane, so they are handled in the order they arrived. The number of
+ * queued messages is bounded; when the bound is reached, messages are refused with the overflow
+ * result, so that IoT Hub's redelivery paces the cloud instead of the link's heap.
+ *
+ * <p>A lane only has a thread while it has messages to handle, so idle devices cost no threads
+ * however many lanes they are configured with.
+ *
+ * <p>In AFTER_HANDLING mode the result has to be returned from the callback of the client, so
+ * the client's thread waits for the handling. A handling that outlasts the timeout is cancelled
+ * and the message abandoned, so it is not also handled a second time when it is redelivered.
+ */
+public class C2DDispatcher {
+
+    private static final long LANE_IDLE_TIMEOUT = 30000;
+
+    private final C2DAckMode ackMode;
+    private final ThreadPoolExecutor[] lanes;
+    private final String name;
+    private final IotHubMessageResult overflowResult;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final int queueSize;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private boolean shutdown = false;
+    private final long timeout;
+
+    /**
+     * @param name           Used to name the worker threads.
+     * @param workers        Number of worker lanes.
+     * @param queueSize      Maximum number of messages queued or being handled.
+     * @param ackMode        When messages are completed.
+     * @param overflowResult Result for messages that arrive while the queue is full.
+     * @param timeout        In AFTER_HANDLING mode, milliseconds to wait for the handling before
+     *                       abandoning the message.
+     */
+    public C2DDispatcher(final String name, int workers, int queueSize, C2DAckMode ackMode,
+                         IotHubMessageResult overflowResult, long timeout) {
+        this.ackMode = ackMode;
+        this.overflowResult = overflowResult;
+        this.queueSize = Math.max(1, queueSize);
+        this.timeout = timeout;
+        this.name = name;
+        lanes = new ThreadPoolExecutor[Math.max(1, workers)];
+    }
+
+    /**
+     * Queues a message for handling.
+     *
+     * @param correlationId Messages with equal ids are handled in order, may be null.
+     * @param handler       Handles the message, returning the result of the handling.
+     * @return The result to acknowledge the message with, or null if the queue is full.
+     */
+    public IotHubMessageResult dispatch(String correlationId,
+                                        final Callable<IotHubMessageResult> handler) {
+        if (queued.incrementAndGet() > queueSize) {
+            queued.decrementAndGet();
+            return null;
+        }
+        //done() releases the queue slot, whether the handling finished or was cancelled
+        FutureTask<IotHubMessageResult> task = new FutureTask<IotHubMessageResult>(handler) {
+            @Override
+            protected void done() {
+                queued.decrementAndGet();
+            }
+        };
+        try {
+            lane(correlationId).execute(task);
+        } catch (RuntimeException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+        if (ackMode == C2DAckMode.ON_RECEIPT) {
+            return IotHubMessageResult.COMPLETE;
+        }
+        try {
+            return task.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.cancel(true);
+            return IotHubMessageResult.ABANDON;
+        } catch (ExecutionException e) {
+            return IotHubMessageResult.ABANDON;
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            Thread.currentThread().interrupt();
+            return IotHubMessageResult.ABANDON;
+        }
+    }
+
+    public IotHubMessageResult getOverflowResult() {
+        return overflowResult;
+    }
+
+    /**
+     * @return The number of messages queued or being handled.
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * Stops accepting messages, messages already queued are still handled.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        for (ThreadPoolExecutor lane : lanes) {
+            if (lane != null) {
+                lane.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Lanes are created on first use.
+     */
+    private synchronized ThreadPoolExecutor lane(String correlationId) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Dispatcher is shut down");
+        }
+        int idx;
+        if (correlationId == null || correlationId.isEmpty()) {
+            idx = roundRobin.getAndIncrement();
+        } else {
+            idx = correlationId.hashCode();
+        }
+        idx = (idx & Integer.MAX_VALUE) % lanes.length;
+        ThreadPoolExecutor lane = lanes[idx];
+        if (lane == null) {
+            final String threadName = name + " C2D " + idx;
+            lane = new ThreadPoolExecutor(1, 1, LANE_IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+                                          new LinkedBlockingQueue<Runnable>(),
+                                          new ThreadFactory() {
+                                              @Override
+                                              public Thread newThread(Runnable r) {
+                                                  Thread thread = new Thread(r, threadName);
+                                                  thread.setDaemon(true);
+                                                  return thread;
+                                              }
+                                          });
+            lane.allowCoreThreadTimeOut(true);
+            lanes[idx] = lane;
+        }
+        return lane;
+    }
+
+}
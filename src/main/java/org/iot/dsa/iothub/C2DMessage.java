@@ -0,0 +1,103 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageProperty;
+import com.microsoft.azure.sdk.iot.device.MessageType;
+import org.iot.dsa.io.json.JsonReader;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSString;
+
+/**
+ * A cloud-to-device message being routed, with its body decoded once and parsed as JSON only if
+ * a rule needs a field of it.
+ */
+public class C2DMessage {
+
+    /**
+     * Prefix of a field name that refers to a field of a JSON body rather than a message
+     * property.
+     */
+    static final String BODY_PREFIX = "body.";
+
+    private final String body;
+    private DSElement bodyElement;
+    private final Message message;
+    private boolean parsed = false;
+
+    public C2DMessage(Message message, String body) {
+        this.message = message;
+        this.body = body;
+    }
+
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return The body parsed as JSON, or the body as a string if it isn't JSON.
+     */
+    public DSElement getBodyElement() {
+        if (!parsed) {
+            parsed = true;
+            JsonReader reader = null;
+            try {
+                reader = new JsonReader(body);
+                bodyElement = reader.getElement();
+            } catch (Exception e) {
+                bodyElement = DSString.valueOf(body);
+            } finally {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+        }
+        return bodyElement;
+    }
+
+    /**
+     * @return The body if it is a JSON map, otherwise null.
+     */
+    public DSMap getBodyMap() {
+        DSElement elem = getBodyElement();
+        return elem != null && elem.isMap() ? elem.toMap() : null;
+    }
+
+    /**
+     * Resolves a field name to a value. Names starting with "body." refer to fields of a JSON
+     * body, all other names are message properties.
+     *
+     * @return The value, or null if the message doesn't have the field.
+     */
+    public String getField(String name) {
+        if (name.startsWith(BODY_PREFIX)) {
+            DSMap map = getBodyMap();
+            if (map == null) {
+                return null;
+            }
+            DSElement value = map.get(name.substring(BODY_PREFIX.length()));
+            return value != null ? value.toString() : null;
+        }
+        return message.getProperty(name);
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * @return The message as listed in the received messages of the device.
+     */
+    public DSMap toMap() {
+        MessageType type = message.getMessageType();
+        DSMap map = new DSMap().put("ID", message.getMessageId())
+                               .put("Correlation ID", message.getCorrelationId())
+                               .put("Type", type != null ? type.toString() : null)
+                               .put("Body", body);
+        for (MessageProperty prop : message.getProperties()) {
+            map.put(prop.getName(), prop.getValue());
+        }
+        return map;
+    }
+
+}
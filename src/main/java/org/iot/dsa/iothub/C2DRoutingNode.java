@@ -0,0 +1,272 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.iot.dsa.dslink.ActionResults;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSFlexEnum;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSJavaEnum;
+import org.iot.dsa.node.DSLong;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSNode;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.node.action.DSAction;
+import org.iot.dsa.node.action.DSIActionRequest;
+
+/**
+ * Holds the C2D rules of a device, and routes cloud-to-device messages to them. Rules are indexed
+ * by match field and then by match value, so routing a message costs one hash lookup per distinct
+ * match field rather than a scan of all the rules. Messages are handled asynchronously by a
+ * {@link C2DDispatcher}, configured by the values of this node.
+ */
+public class C2DRoutingNode extends DSNode {
+
+    static final String ACK_MODE = "Ack Mode";
+    static final String HANDLING_TIMEOUT = "Handling Timeout";
+    static final String OVERFLOWED = "Overflowed";
+    static final String QUEUE_SIZE = "Queue Size";
+    static final String WHEN_FULL = "When Full";
+    static final String WORKERS = "Workers";
+
+    private volatile C2DDispatcher dispatcher;
+    private DSInfo overflowed = getInfo(OVERFLOWED);
+    private long overflowCount = 0;
+    private final List<C2DRuleNode> rules = new ArrayList<C2DRuleNode>();
+    private volatile Map<String, Map<String, List<C2DRuleNode>>> index =
+            Collections.emptyMap();
+
+    /**
+     * Queues a received message to be routed to the rules.
+     *
+     * @return The result to acknowledge the message with, depending on the ack mode and whether
+     * the queue has room.
+     */
+    public IotHubMessageResult receive(final C2DMessage msg) {
+        final Object timer = PipelineEvents.beginC2D();
+        C2DDispatcher d = dispatcher;
+        if (d == null) {
+            return routeTimed(msg, timer);
+        }
+        IotHubMessageResult result = d.dispatch(msg.getMessage().getCorrelationId(),
+                                                new Callable<IotHubMessageResult>() {
+                                                    @Override
+                                                    public IotHubMessageResult call() {
+                                                        return routeTimed(msg, timer);
+                                                    }
+                                                });
+        if (result == null) {
+            synchronized (this) {
+                put(overflowed, DSLong.valueOf(++overflowCount));
+            }
+            endC2D(timer, msg, "OVERFLOW");
+            return d.getOverflowResult();
+        }
+        return result;
+    }
+
+    /**
+     * Performs the operations of all rules that match the message.
+     *
+     * @return COMPLETE if no rules matched or all operations succeeded, otherwise ABANDON so that
+     * IoT Hub redelivers the message.
+     */
+    public IotHubMessageResult route(C2DMessage msg) {
+        boolean success = true;
+        for (Map.Entry<String, Map<String, List<C2DRuleNode>>> e : index.entrySet()) {
+            String value = msg.getField(e.getKey());
+            if (value == null) {
+                continue;
+            }
+            Map<String, List<C2DRuleNode>> byValue = e.getValue();
+            success &= handle(byValue.get(value), msg);
+            if (!value.isEmpty()) {
+                success &= handle(byValue.get(""), msg);
+            }
+        }
+        return success ? IotHubMessageResult.COMPLETE : IotHubMessageResult.ABANDON;
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(ACK_MODE, DSJavaEnum.valueOf(C2DAckMode.AFTER_HANDLING));
+        declareDefault(WORKERS, DSLong.valueOf(4));
+        declareDefault(QUEUE_SIZE, DSLong.valueOf(1000));
+        declareDefault(WHEN_FULL, DSJavaEnum.valueOf(IotHubMessageResult.ABANDON));
+        declareDefault(HANDLING_TIMEOUT, DSDouble.valueOf(30));
+        declareDefault(OVERFLOWED, DSLong.valueOf(0)).setTransient(true).setReadOnly(true);
+        declareDefault("Add Rule", makeAddRuleAction());
+    }
+
+    @Override
+    protected void onChildChanged(DSInfo info) {
+        super.onChildChanged(info);
+        String name = info.getName();
+        if (ACK_MODE.equals(name) || WORKERS.equals(name) || QUEUE_SIZE.equals(name)
+                || WHEN_FULL.equals(name) || HANDLING_TIMEOUT.equals(name)) {
+            if (isStable()) {
+                startDispatcher();
+            }
+        }
+    }
+
+    @Override
+    protected void onRemoved() {
+        super.onRemoved();
+        stopDispatcher();
+    }
+
+    @Override
+    protected void onStable() {
+        super.onStable();
+        startDispatcher();
+    }
+
+    void register(C2DRuleNode rule) {
+        synchronized (rules) {
+            if (!rules.contains(rule)) {
+                rules.add(rule);
+            }
+            rebuildIndex();
+        }
+    }
+
+    void unregister(C2DRuleNode rule) {
+        synchronized (rules) {
+            rules.remove(rule);
+            rebuildIndex();
+        }
+    }
+
+    private void endC2D(Object timer, C2DMessage msg, String result) {
+        DSNode parent = getParent();
+        PipelineEvents.endC2D(timer, parent != null ? parent.getName() : "",
+                              msg.getMessage().getMessageId(), result);
+    }
+
+    private long getLong(String name, long def) {
+        DSIObject obj = get(name);
+        return obj instanceof DSElement ? ((DSElement) obj).toLong() : def;
+    }
+
+    private synchronized void startDispatcher() {
+        C2DAckMode ackMode = C2DAckMode.valueOf(get(ACK_MODE).toString());
+        IotHubMessageResult whenFull = IotHubMessageResult.valueOf(get(WHEN_FULL).toString());
+        if (whenFull == IotHubMessageResult.COMPLETE) {
+            warn("C2D messages can't be completed when the queue is full, abandoning them instead");
+            whenFull = IotHubMessageResult.ABANDON;
+        }
+        DSIObject timeout = get(HANDLING_TIMEOUT);
+        long timeoutMillis = timeout instanceof DSElement
+                ? (long) (((DSElement) timeout).toDouble() * 1000) : 30000;
+        DSNode parent = getParent();
+        C2DDispatcher old = dispatcher;
+        dispatcher = new C2DDispatcher(parent != null ? parent.getName() : getName(),
+                                       (int) getLong(WORKERS, 4),
+                                       (int) getLong(QUEUE_SIZE, 1000),
+                                       ackMode, whenFull, timeoutMillis);
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    private synchronized void stopDispatcher() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+    }
+
+    private void addRule(DSMap parameters) {
+        String name = parameters.getString("Name");
+        add(name, new C2DRuleNode(parameters));
+    }
+
+    /**
+     * Lists the message on the device and routes it. Only called for messages that have been
+     * accepted, so that messages handed back to IoT Hub when the queue is full don't take up
+     * memory here, however many times they are redelivered.
+     */
+    private IotHubMessageResult routeTimed(C2DMessage msg, Object timer) {
+        DSNode parent = getParent();
+        if (parent instanceof LocalDeviceNode) {
+            ((LocalDeviceNode) parent).incomingMessage(msg.toMap());
+        }
+        IotHubMessageResult result = null;
+        try {
+            result = route(msg);
+            return result;
+        } finally {
+            endC2D(timer, msg, String.valueOf(result));
+        }
+    }
+
+    private static boolean handle(List<C2DRuleNode> matches, C2DMessage msg) {
+        if (matches == null) {
+            return true;
+        }
+        boolean success = true;
+        for (C2DRuleNode rule : matches) {
+            success &= rule.handle(msg);
+        }
+        return success;
+    }
+
+    private static DSAction makeAddRuleAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest req) {
+                ((C2DRoutingNode) req.getTarget()).addRule(req.getParameters());
+                return null;
+            }
+        };
+        act.addParameter("Name", DSString.NULL, null);
+        act.addParameter(C2DRuleNode.MATCH_FIELD, DSString.NULL,
+                         "Message property to match on, or body.<field> for a field of a JSON body");
+        act.addDefaultParameter(C2DRuleNode.MATCH_VALUE, DSString.EMPTY,
+                                "Leave empty to match any message that has the field");
+        act.addParameter(C2DRuleNode.PATH, DSString.NULL,
+                         "May contain %field% placeholders");
+        act.addParameter(C2DRuleNode.DSA_METHOD,
+                         DSFlexEnum.valueOf(DSAMethod.INVOKE.name(), C2DRuleNode.getMethods()),
+                         "Whether to invoke or set a value at the specified path");
+        act.addDefaultParameter(C2DRuleNode.VALUE_FIELD, DSString.valueOf("Value"),
+                                "For SET, the field of a JSON body holding the value, otherwise the whole body is used");
+        return act;
+    }
+
+    /**
+     * Replaces the index with a new one, so that routing never needs to lock.
+     */
+    private void rebuildIndex() {
+        Map<String, Map<String, List<C2DRuleNode>>> newIndex =
+                new HashMap<String, Map<String, List<C2DRuleNode>>>();
+        for (C2DRuleNode rule : rules) {
+            String field = rule.getMatchField();
+            if (field == null || field.isEmpty()) {
+                continue;
+            }
+            Map<String, List<C2DRuleNode>> byValue = newIndex.get(field);
+            if (byValue == null) {
+                byValue = new HashMap<String, List<C2DRuleNode>>();
+                newIndex.put(field, byValue);
+            }
+            List<C2DRuleNode> list = byValue.get(rule.getMatchValue());
+            if (list == null) {
+                list = new ArrayList<C2DRuleNode>(1);
+                byValue.put(rule.getMatchValue(), list);
+            }
+            list.add(rule);
+        }
+        index = newIndex;
+    }
+
+}
@@ -0,0 +1,244 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.dslink.ActionResults;
+import org.iot.dsa.dslink.DSRequestException;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSFlexEnum;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSMap.Entry;
+import org.iot.dsa.node.DSNode;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.node.action.DSAction;
+import org.iot.dsa.node.action.DSIActionRequest;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * A rule that acts on cloud-to-device messages. Messages whose match field has the match value
+ * cause the rule to invoke the action, or set the value, at its DSA path.
+ */
+public class C2DRuleNode extends DSNode {
+
+    static final String DSA_METHOD = "DSA Method";
+    static final String MATCH_FIELD = "Match Field";
+    static final String MATCH_VALUE = "Match Value";
+    static final String PATH = "Path";
+    static final String VALUE_FIELD = "Value Field";
+
+    private volatile DSAMethod dsaMethod;
+    private DSInfo lastResult = getInfo("Last Result");
+    private volatile String matchField;
+    private volatile String matchValue;
+    private volatile String path;
+    private volatile String valueField;
+
+    public C2DRuleNode() {
+    }
+
+    public C2DRuleNode(DSMap parameters) {
+        this.matchField = parameters.getString(MATCH_FIELD);
+        this.matchValue = parameters.get(MATCH_VALUE, "");
+        this.path = parameters.getString(PATH);
+        this.dsaMethod = parseMethod(parameters.getString(DSA_METHOD));
+        this.valueField = parameters.get(VALUE_FIELD, "Value");
+    }
+
+    /**
+     * @return The DSA methods a rule can perform, a C2D message has no caller to return a value
+     * or batch results to.
+     */
+    static DSList getMethods() {
+        return new DSList().add(DSAMethod.INVOKE.name()).add(DSAMethod.SET.name());
+    }
+
+    public String getMatchField() {
+        return matchField;
+    }
+
+    /**
+     * @return The value the match field must have, or the empty string to match any message
+     * that has the field.
+     */
+    public String getMatchValue() {
+        return matchValue;
+    }
+
+    /**
+     * Performs the DSA operation of this rule for the message.
+     *
+     * @return True if the operation succeeded.
+     */
+    public boolean handle(C2DMessage msg) {
+        String resolvedPath = formatPath(msg);
+        long timeout = MainNode.getRequesterTimeout();
+        try {
+            switch (dsaMethod) {
+                case INVOKE:
+                    DSMap params = msg.getBodyMap();
+                    RequesterOps.invoke(resolvedPath, params != null ? params : new DSMap(),
+                                        timeout);
+                    break;
+                case SET:
+                    RequesterOps.set(resolvedPath, getSetValue(msg), timeout);
+                    break;
+                default:
+                    //retrying can never succeed, so don't have the hub redeliver the message
+                    recordResult("Unsupported DSA Method " + dsaMethod);
+                    return true;
+            }
+        } catch (Exception e) {
+            warn("C2D rule failed on " + resolvedPath, e);
+            recordResult("Failed: " + e.getMessage());
+            return false;
+        }
+        recordResult("Success");
+        return true;
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault("Last Result", DSString.EMPTY).setTransient(true).setReadOnly(true);
+    }
+
+    @Override
+    protected void onRemoved() {
+        super.onRemoved();
+        DSNode parent = getParent();
+        if (parent instanceof C2DRoutingNode) {
+            ((C2DRoutingNode) parent).unregister(this);
+        }
+    }
+
+    @Override
+    protected void onStable() {
+        super.onStable();
+        matchField = load(MATCH_FIELD, matchField, "");
+        matchValue = load(MATCH_VALUE, matchValue, "");
+        path = load(PATH, path, "");
+        valueField = load(VALUE_FIELD, valueField, "Value");
+        if (dsaMethod == null) {
+            dsaMethod = DSAMethod.valueOf(load(DSA_METHOD, null, DSAMethod.INVOKE.name()));
+        } else {
+            put(DSA_METHOD, DSString.valueOf(dsaMethod)).setReadOnly(true);
+        }
+        DSNode parent = getParent();
+        if (parent instanceof C2DRoutingNode) {
+            ((C2DRoutingNode) parent).register(this);
+        }
+        put("Edit", makeEditAction()).setTransient(true);
+    }
+
+    /**
+     * @throws DSRequestException If the name isn't one of {@link #getMethods()}.
+     */
+    private static DSAMethod parseMethod(String name) {
+        DSAMethod method = null;
+        try {
+            method = DSAMethod.valueOf(String.valueOf(name).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            //reported below
+        }
+        if (method != DSAMethod.INVOKE && method != DSAMethod.SET) {
+            throw new DSRequestException("DSA Method must be INVOKE or SET, not " + name);
+        }
+        return method;
+    }
+
+    /**
+     * Applies the edited settings, and re-indexes the rule so that messages are matched on the
+     * new field and value.
+     */
+    private void edit(DSMap parameters) {
+        DSAMethod method = parseMethod(parameters.get(DSA_METHOD, dsaMethod.name()));
+        matchField = parameters.get(MATCH_FIELD, matchField);
+        matchValue = parameters.get(MATCH_VALUE, matchValue);
+        path = parameters.get(PATH, path);
+        valueField = parameters.get(VALUE_FIELD, valueField);
+        dsaMethod = method;
+        put(MATCH_FIELD, DSString.valueOf(matchField)).setReadOnly(true);
+        put(MATCH_VALUE, DSString.valueOf(matchValue)).setReadOnly(true);
+        put(PATH, DSString.valueOf(path)).setReadOnly(true);
+        put(VALUE_FIELD, DSString.valueOf(valueField)).setReadOnly(true);
+        put(DSA_METHOD, DSString.valueOf(dsaMethod)).setReadOnly(true);
+        DSNode parent = getParent();
+        if (parent instanceof C2DRoutingNode) {
+            ((C2DRoutingNode) parent).register(this);
+        }
+        put("Edit", makeEditAction()).setTransient(true);
+    }
+
+    /**
+     * Replaces %name% placeholders in the path with message properties or body fields.
+     */
+    private String formatPath(C2DMessage msg) {
+        String fpath = path;
+        int start = fpath.indexOf('%');
+        while (start >= 0) {
+            int end = fpath.indexOf('%', start + 1);
+            if (end < 0) {
+                break;
+            }
+            String name = fpath.substring(start + 1, end);
+            String value = msg.getField(name);
+            if (value == null) {
+                value = msg.getField(C2DMessage.BODY_PREFIX + name);
+            }
+            if (value != null) {
+                fpath = fpath.substring(0, start) + value + fpath.substring(end + 1);
+                start = fpath.indexOf('%', start + value.length());
+            } else {
+                start = end;
+            }
+        }
+        return fpath;
+    }
+
+    /**
+     * The value to set is the value field of a JSON map body, or else the whole body.
+     */
+    private DSElement getSetValue(C2DMessage msg) {
+        DSMap map = msg.getBodyMap();
+        if (map != null && map.contains(valueField)) {
+            return map.get(valueField);
+        }
+        return msg.getBodyElement();
+    }
+
+    /**
+     * Returns the persisted value of a setting, or persists the value this node was constructed
+     * with.
+     */
+    private String load(String name, String value, String def) {
+        if (value == null) {
+            DSIObject obj = get(name);
+            return obj instanceof DSString ? obj.toString() : def;
+        }
+        put(name, DSString.valueOf(value)).setReadOnly(true);
+        return value;
+    }
+
+    private DSAction makeEditAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest req) {
+                ((C2DRuleNode) req.getTarget()).edit(req.getParameters());
+                return null;
+            }
+        };
+        act.addDefaultParameter(MATCH_FIELD, DSString.valueOf(matchField), null);
+        act.addDefaultParameter(MATCH_VALUE, DSString.valueOf(matchValue), null);
+        act.addDefaultParameter(PATH, DSString.valueOf(path), null);
+        act.addDefaultParameter(DSA_METHOD, DSFlexEnum.valueOf(dsaMethod.name(), getMethods()),
+                                null);
+        act.addDefaultParameter(VALUE_FIELD, DSString.valueOf(valueField), null);
+        return act;
+    }
+
+    private void recordResult(String result) {
+        put(lastResult, DSString.valueOf(DSDateTime.now() + " " + result));
+    }
+
+}
@@ -0,0 +1,20 @@
+package org.iot.dsa.iothub;
+
+/**
+ * When a local device keeps its connection to IoT Hub open.
+ */
+public enum ConnectionMode {
+
+    /**
+     * Connected from the time the device starts.
+     */
+    ALWAYS,
+
+    /**
+     * Connected only while there is work to do, after which the connection lingers for a while
+     * and is then closed. The device also wakes up periodically to pick up cloud-to-device
+     * messages and desired property changes.
+     */
+    ON_DEMAND
+
+}
@@ -0,0 +1,615 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * A condition a rule's updates must meet to be sent, such as {@code value > 80},
+ * {@code status != "ok"} or {@code rising(50)}. The expression is parsed once into a tree of
+ * operators, and evaluating it doesn't allocate.
+ *
+ * <p>Operands are the number and string literals, {@code true} and {@code false}, and:
+ * <ul>
+ * <li>{@code value} - The value of the update. Booleans are 1 or 0, and values that aren't
+ * numbers are only usable in string comparisons.
+ * <li>{@code prev} - The value of the previous update, or nothing for the first one.
+ * <li>{@code status} - The status of the update, as a string.
+ * <li>{@code ts} - The timestamp of the update, in epoch millis.
+ * </ul>
+ *
+ * <p>Operators are {@code || && ! == != < <= > >= + - * /} and parentheses, and the functions
+ * are:
+ * <ul>
+ * <li>{@code abs(x)}
+ * <li>{@code changed()} - True if the value differs from the previous one.
+ * <li>{@code rising(x)} - True when the value goes from at or below x to above it.
+ * <li>{@code falling(x)} - True when the value goes from at or above x to below it.
+ * <li>{@code above(high, low)} - Becomes true when the value goes above high, and stays true
+ * until it goes below low.
+ * <li>{@code below(low, high)} - Becomes true when the value goes below low, and stays true
+ * until it goes above high.
+ * </ul>
+ */
+public class D2CFilter {
+
+    static final String FILTER = "Filter";
+
+    private final int latchCount;
+    private final Expr root;
+    private final String source;
+
+    private D2CFilter(String source, Expr root, int latchCount) {
+        this.source = source;
+        this.root = root;
+        this.latchCount = latchCount;
+    }
+
+    /**
+     * @throws IllegalArgumentException With the position of the problem if the expression is
+     *                                  malformed.
+     */
+    public static D2CFilter compile(String source) {
+        Parser parser = new Parser(source);
+        Expr root = parser.parse();
+        return new D2CFilter(source, root, parser.latches);
+    }
+
+    /**
+     * Evaluates the filter for an update, and then remembers the update as the previous one.
+     *
+     * @param state Holds the previous update and hysteresis latches, one per subscribed path.
+     */
+    public boolean accept(D2CUpdate update, State state) {
+        state.load(update);
+        boolean result = isTrue(root.num(state));
+        state.advance();
+        return result;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return A new state for a subscribed path.
+     */
+    public State newState() {
+        return new State(latchCount);
+    }
+
+    private static boolean isTrue(double d) {
+        return d != 0 && !Double.isNaN(d);
+    }
+
+    private static double toNumber(DSElement element) {
+        if (element == null) {
+            return Double.NaN;
+        }
+        if (element.isNumber()) {
+            return element.toDouble();
+        }
+        if (element.isBoolean()) {
+            return element.toBoolean() ? 1 : 0;
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * What a filter remembers between the updates of a single path.
+     */
+    public static class State {
+
+        private D2CUpdate current;
+        private boolean hasPrev = false;
+        private final boolean[] latches;
+        private double prev = Double.NaN;
+        private D2CUpdate previous;
+        private double value;
+
+        State(int latchCount) {
+            latches = new boolean[latchCount];
+        }
+
+        void advance() {
+            prev = value;
+            previous = current;
+            hasPrev = true;
+            current = null;
+        }
+
+        void load(D2CUpdate update) {
+            current = update;
+            value = toNumber(update.getValue());
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Expression tree
+    ///////////////////////////////////////////////////////////////////////////
+
+    private abstract static class Expr {
+
+        boolean isString() {
+            return false;
+        }
+
+        abstract double num(State s);
+
+        String str(State s) {
+            return null;
+        }
+    }
+
+    private static class Constant extends Expr {
+
+        private final double num;
+        private final String str;
+
+        Constant(double num, String str) {
+            this.num = num;
+            this.str = str;
+        }
+
+        @Override
+        boolean isString() {
+            return str != null;
+        }
+
+        @Override
+        double num(State s) {
+            return num;
+        }
+
+        @Override
+        String str(State s) {
+            return str;
+        }
+    }
+
+    private static class Variable extends Expr {
+
+        static final int PREV = 1;
+        static final int STATUS = 2;
+        static final int TS = 3;
+        static final int VALUE = 0;
+
+        private final int which;
+
+        Variable(int which) {
+            this.which = which;
+        }
+
+        @Override
+        boolean isString() {
+            return which == STATUS;
+        }
+
+        @Override
+        double num(State s) {
+            switch (which) {
+                case VALUE:
+                    return s.value;
+                case PREV:
+                    return s.prev;
+                case TS:
+                    DSDateTime dt = s.current.getDateTime();
+                    return dt != null ? dt.timeInMillis() : Double.NaN;
+                default:
+                    return Double.NaN;
+            }
+        }
+
+        @Override
+        String str(State s) {
+            switch (which) {
+                case VALUE:
+                    return s.current.getValueString();
+                case PREV:
+                    return s.previous != null ? s.previous.getValueString() : null;
+                case STATUS:
+                    return s.current.getStatusString();
+                default:
+                    return s.current.getTimestampString();
+            }
+        }
+    }
+
+    private static class Binary extends Expr {
+
+        private final Expr left;
+        private final char op;
+        private final Expr right;
+        private final boolean strings;
+
+        /**
+         * @param op One of {@code | & = ! < l > g + - * /}, where l and g are {@code <=} and
+         *           {@code >=}.
+         */
+        Binary(char op, Expr left, Expr right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+            this.strings = (op == '=' || op == '!') && (left.isString() || right.isString());
+        }
+
+        /**
+         * Both sides of || and && are always evaluated, so that the latches of above() and
+         * below() on either side see every update.
+         */
+        @Override
+        double num(State s) {
+            switch (op) {
+                case '|':
+                    return isTrue(left.num(s)) | isTrue(right.num(s)) ? 1 : 0;
+                case '&':
+                    return isTrue(left.num(s)) & isTrue(right.num(s)) ? 1 : 0;
+                case '=':
+                case '!':
+                    boolean eq;
+                    if (strings) {
+                        String l = left.str(s);
+                        eq = l != null && l.equals(right.str(s));
+                    } else {
+                        eq = left.num(s) == right.num(s);
+                    }
+                    return eq == (op == '=') ? 1 : 0;
+                case '<':
+                    return left.num(s) < right.num(s) ? 1 : 0;
+                case 'l':
+                    return left.num(s) <= right.num(s) ? 1 : 0;
+                case '>':
+                    return left.num(s) > right.num(s) ? 1 : 0;
+                case 'g':
+                    return left.num(s) >= right.num(s) ? 1 : 0;
+                case '+':
+                    return left.num(s) + right.num(s);
+                case '-':
+                    return left.num(s) - right.num(s);
+                case '*':
+                    return left.num(s) * right.num(s);
+                default:
+                    return left.num(s) / right.num(s);
+            }
+        }
+    }
+
+    private static class Unary extends Expr {
+
+        private final Expr operand;
+        private final char op;
+
+        Unary(char op, Expr operand) {
+            this.op = op;
+            this.operand = operand;
+        }
+
+        @Override
+        double num(State s) {
+            double d = operand.num(s);
+            switch (op) {
+                case '!':
+                    return isTrue(d) ? 0 : 1;
+                case '-':
+                    return -d;
+                default:
+                    return Math.abs(d);
+            }
+        }
+    }
+
+    private static class Edge extends Expr {
+
+        private final boolean rising;
+        private final Expr threshold;
+
+        Edge(boolean rising, Expr threshold) {
+            this.rising = rising;
+            this.threshold = threshold;
+        }
+
+        @Override
+        double num(State s) {
+            if (!s.hasPrev) {
+                return 0;
+            }
+            double t = threshold.num(s);
+            if (rising) {
+                return s.prev <= t && s.value > t ? 1 : 0;
+            }
+            return s.prev >= t && s.value < t ? 1 : 0;
+        }
+    }
+
+    private static class Changed extends Expr {
+
+        @Override
+        double num(State s) {
+            if (!s.hasPrev) {
+                return 1;
+            }
+            if (Double.isNaN(s.value) || Double.isNaN(s.prev)) {
+                return s.current.getValueString().equals(s.previous.getValueString()) ? 0 : 1;
+            }
+            return s.value != s.prev ? 1 : 0;
+        }
+    }
+
+    /**
+     * A latch with separate set and reset thresholds.
+     */
+    private static class Hysteresis extends Expr {
+
+        private final boolean above;
+        private final int latch;
+        private final Expr reset;
+        private final Expr set;
+
+        Hysteresis(boolean above, Expr set, Expr reset, int latch) {
+            this.above = above;
+            this.set = set;
+            this.reset = reset;
+            this.latch = latch;
+        }
+
+        @Override
+        double num(State s) {
+            boolean on = s.latches[latch];
+            double v = s.value;
+            //evaluated either way, in case the thresholds hold latches of their own
+            double setAt = set.num(s);
+            double resetAt = reset.num(s);
+            if (above) {
+                if (!on && v > setAt) {
+                    on = true;
+                } else if (on && v < resetAt) {
+                    on = false;
+                }
+            } else {
+                if (!on && v < setAt) {
+                    on = true;
+                } else if (on && v > resetAt) {
+                    on = false;
+                }
+            }
+            s.latches[latch] = on;
+            return on ? 1 : 0;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Parser
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static class Parser {
+
+        int latches = 0;
+        private int pos = 0;
+        private final String src;
+
+        Parser(String src) {
+            this.src = src;
+        }
+
+        Expr parse() {
+            Expr expr = or();
+            skipSpace();
+            if (pos < src.length()) {
+                throw error("Unexpected '" + src.charAt(pos) + "'");
+            }
+            return expr;
+        }
+
+        private Expr additive() {
+            Expr left = multiplicative();
+            while (true) {
+                if (accept("+")) {
+                    left = new Binary('+', numeric(left), numeric(multiplicative()));
+                } else if (accept("-")) {
+                    left = new Binary('-', numeric(left), numeric(multiplicative()));
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Expr and() {
+            Expr left = not();
+            while (accept("&&")) {
+                left = new Binary('&', numeric(left), numeric(not()));
+            }
+            return left;
+        }
+
+        private boolean accept(String token) {
+            skipSpace();
+            if (!src.startsWith(token, pos)) {
+                return false;
+            }
+            //don't split <= into < =, or != into ! =
+            int end = pos + token.length();
+            if (token.length() == 1 && end < src.length() && src.charAt(end) == '='
+                    && "<>!=".indexOf(token.charAt(0)) >= 0) {
+                return false;
+            }
+            pos = end;
+            return true;
+        }
+
+        private Expr comparison() {
+            Expr left = additive();
+            char op;
+            if (accept("==")) {
+                op = '=';
+            } else if (accept("!=")) {
+                op = '!';
+            } else if (accept("<=")) {
+                op = 'l';
+            } else if (accept(">=")) {
+                op = 'g';
+            } else if (accept("<")) {
+                op = '<';
+            } else if (accept(">")) {
+                op = '>';
+            } else {
+                return left;
+            }
+            Expr right = additive();
+            if (op != '=' && op != '!') {
+                numeric(left);
+                numeric(right);
+            }
+            return new Binary(op, left, right);
+        }
+
+        private void expect(String token) {
+            if (!accept(token)) {
+                throw error("Expected '" + token + "'");
+            }
+        }
+
+        private IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException(msg + " at position " + (pos + 1) + " of filter");
+        }
+
+        private Expr function(String name) {
+            Expr expr;
+            switch (name) {
+                case "abs":
+                    expr = new Unary('a', numeric(or()));
+                    break;
+                case "changed":
+                    expr = new Changed();
+                    break;
+                case "rising":
+                case "falling":
+                    expr = new Edge(name.equals("rising"), numeric(or()));
+                    break;
+                case "above":
+                case "below":
+                    Expr set = numeric(or());
+                    expect(",");
+                    Expr reset = numeric(or());
+                    expr = new Hysteresis(name.equals("above"), set, reset, latches++);
+                    break;
+                default:
+                    throw error("Unknown function " + name);
+            }
+            expect(")");
+            return expr;
+        }
+
+        private Expr multiplicative() {
+            Expr left = unary();
+            while (true) {
+                if (accept("*")) {
+                    left = new Binary('*', numeric(left), numeric(unary()));
+                } else if (accept("/")) {
+                    left = new Binary('/', numeric(left), numeric(unary()));
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private Expr not() {
+            if (accept("!")) {
+                return new Unary('!', numeric(not()));
+            }
+            return comparison();
+        }
+
+        private Expr numeric(Expr expr) {
+            if (expr.isString()) {
+                throw error("Strings can only be compared with == or !=");
+            }
+            return expr;
+        }
+
+        private Expr or() {
+            Expr left = and();
+            while (accept("||")) {
+                left = new Binary('|', numeric(left), numeric(and()));
+            }
+            return left;
+        }
+
+        private Expr primary() {
+            skipSpace();
+            if (pos >= src.length()) {
+                throw error("Unexpected end");
+            }
+            char ch = src.charAt(pos);
+            if (ch == '(') {
+                pos++;
+                Expr expr = or();
+                expect(")");
+                return expr;
+            }
+            if (ch == '"' || ch == '\'') {
+                int end = src.indexOf(ch, pos + 1);
+                if (end < 0) {
+                    throw error("Unterminated string");
+                }
+                String str = src.substring(pos + 1, end);
+                pos = end + 1;
+                return new Constant(Double.NaN, str);
+            }
+            if (Character.isDigit(ch) || ch == '.') {
+                int start = pos;
+                while (pos < src.length() && (Character.isDigit(src.charAt(pos))
+                        || src.charAt(pos) == '.' || src.charAt(pos) == 'e'
+                        || src.charAt(pos) == 'E')) {
+                    pos++;
+                }
+                try {
+                    return new Constant(Double.parseDouble(src.substring(start, pos)), null);
+                } catch (NumberFormatException e) {
+                    pos = start;
+                    throw error("Malformed number");
+                }
+            }
+            if (Character.isLetter(ch)) {
+                int start = pos;
+                while (pos < src.length() && Character.isLetterOrDigit(src.charAt(pos))) {
+                    pos++;
+                }
+                String name = src.substring(start, pos);
+                if (accept("(")) {
+                    return function(name);
+                }
+                switch (name) {
+                    case "value":
+                        return new Variable(Variable.VALUE);
+                    case "prev":
+                        return new Variable(Variable.PREV);
+                    case "status":
+                        return new Variable(Variable.STATUS);
+                    case "ts":
+                        return new Variable(Variable.TS);
+                    case "true":
+                        return new Constant(1, null);
+                    case "false":
+                        return new Constant(0, null);
+                    default:
+                        pos = start;
+                        throw error("Unknown name " + name);
+                }
+            }
+            throw error("Unexpected '" + ch + "'");
+        }
+
+        private void skipSpace() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private Expr unary() {
+            if (accept("-")) {
+                return new Unary('-', numeric(unary()));
+            }
+            return primary();
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+package org.iot.dsa.iothub;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.dslink.restadapter.AbstractRuleNode;
+import org.iot.dsa.dslink.restadapter.ResponseWrapper;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * Packs the updates of all the D2C rules of a device into multi-point frames. IoT Hub bills
+ * messages in 4 KB units, so a frame is sent once the next point wouldn't fit in the configured
+ * number of units, or when the oldest point in it has waited for the frame interval. Frames are
+ * sent one at a time, in the order they were filled, and a point too large for a frame on its
+ * own is rejected.
+ *
+ * <p>The body of a frame is a JSON list with one list per point:
+ * <code>[["/path", "timestamp", value, "status"], ...]</code>
+ */
+public class D2CFramer {
+
+    static final int BILLING_UNIT = 4096;
+    static final String FORMAT = "dsa-frame-v1";
+    static final String FORMAT_PROPERTY = "frame-format";
+    static final int STATUS_TOO_LARGE = 413;
+    /**
+     * Bytes of each unit left for the system and application properties of the message.
+     */
+    private static final int PROPERTY_RESERVE = 256;
+    private static final D2CPropertySet PROPERTIES =
+            new D2CPropertySet(new DSMap().put(FORMAT_PROPERTY, FORMAT));
+
+    private StringBuilder body;
+    private int bodyBytes;
+    private final int capacity;
+    private boolean closed = false;
+    private final LocalDeviceNode device;
+    private final long interval;
+    private final ArrayDeque<Frame> outbox = new ArrayDeque<Frame>();
+    private Set<AbstractRuleNode> rules = new LinkedHashSet<AbstractRuleNode>();
+    private boolean sending = false;
+    private DSRuntime.Timer timer;
+
+    /**
+     * @param device   The device that sends the frames.
+     * @param units    How many 4 KB units a frame may fill.
+     * @param interval Milliseconds a point waits at most before its frame is sent.
+     */
+    public D2CFramer(LocalDeviceNode device, int units, long interval) {
+        this.device = device;
+        this.capacity = Math.max(1, units) * BILLING_UNIT - PROPERTY_RESERVE;
+        this.interval = Math.max(1, interval);
+    }
+
+    /**
+     * Adds the update of a rule to the current frame. If that fills the frame, it is sent on the
+     * calling thread, unless another thread is already sending frames.
+     *
+     * @param rule   Is notified of the result when the frame is sent.
+     * @param update The update, whose path identifies the point.
+     */
+    public void add(AbstractRuleNode rule, D2CUpdate update) {
+        String point = encode(update);
+        int pointBytes = Util.utf8Length(point);
+        if (pointBytes + 2 > capacity) {
+            device.warn("D2C point too large for a frame: " + update.getPath());
+            rule.responseRecieved(new SimpleResponseWrapper(
+                    STATUS_TOO_LARGE, "Point larger than a frame", DSDateTime.now()), 0);
+            return;
+        }
+        boolean full = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (body != null && bodyBytes + pointBytes + 1 > capacity) {
+                full = take();
+            }
+            if (body == null) {
+                body = new StringBuilder(Math.min(capacity, 1024)).append('[');
+                bodyBytes = 2;
+                timer = DSRuntime.runDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        BlockingExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                flush();
+                            }
+                        });
+                    }
+                }, interval);
+            } else {
+                body.append(',');
+                bodyBytes++;
+            }
+            body.append(point);
+            bodyBytes += pointBytes;
+            rules.add(rule);
+        }
+        if (full) {
+            sendQueued();
+        }
+    }
+
+    /**
+     * Sends whatever is pending and stops accepting points.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flush();
+    }
+
+    /**
+     * Sends the current frame if it has any points.
+     */
+    public void flush() {
+        boolean taken;
+        synchronized (this) {
+            taken = take();
+        }
+        if (taken) {
+            sendQueued();
+        }
+    }
+
+    /**
+     * @return The point as a JSON list. NaN and infinite numbers, which JSON can't represent,
+     * are encoded as null.
+     */
+    static String encode(D2CUpdate update) {
+        StringBuilder buf = new StringBuilder(64).append('[');
+        quote(update.getPath(), buf).append(',');
+        quote(update.getTimestampString(), buf).append(',');
+        DSElement value = update.getValue();
+        if (value == null || value.isNull() || (value.isNumber() && !isFinite(value))) {
+            buf.append("null");
+        } else if (value.isNumber() || value.isBoolean()) {
+            buf.append(value.toString());
+        } else {
+            quote(value.toString(), buf);
+        }
+        buf.append(',');
+        return quote(update.getStatusString(), buf).append(']').toString();
+    }
+
+    private static boolean isFinite(DSElement number) {
+        double d = number.toDouble();
+        return !Double.isNaN(d) && !Double.isInfinite(d);
+    }
+
+    private static StringBuilder quote(String str, StringBuilder buf) {
+        buf.append('"');
+        for (int i = 0, len = str.length(); i < len; i++) {
+            char ch = str.charAt(i);
+            switch (ch) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        buf.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        buf.append(ch);
+                    }
+            }
+        }
+        return buf.append('"');
+    }
+
+    private void send(Frame frame) {
+        ResponseWrapper resp = null;
+        try {
+            resp = device.doSendD2C(null, PROPERTIES, null, frame.body, true);
+        } catch (Exception e) {
+            device.warn("Error sending D2C frame", e);
+        }
+        for (AbstractRuleNode rule : frame.rules) {
+            rule.responseRecieved(resp, 0);
+        }
+    }
+
+    /**
+     * Sends queued frames in order, unless another thread already is, in which case that thread
+     * sends them.
+     */
+    private void sendQueued() {
+        synchronized (this) {
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = outbox.poll();
+                    if (frame == null) {
+                        sending = false;
+                        done = true;
+                        return;
+                    }
+                }
+                send(frame);
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    sending = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be called while synchronized, moves the current frame to the outbox.
+     *
+     * @return False if there was no current frame.
+     */
+    private boolean take() {
+        if (body == null) {
+            return false;
+        }
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        outbox.add(new Frame(body.append(']').toString(), rules));
+        body = null;
+        bodyBytes = 0;
+        rules = new LinkedHashSet<AbstractRuleNode>();
+        return true;
+    }
+
+    private static class Frame {
+
+        final String body;
+        final Set<AbstractRuleNode> rules;
+
+        Frame(String body, Set<AbstractRuleNode> rules) {
+            this.body = body;
+            this.rules = rules;
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSMap.Entry;
+
+/**
+ * The message properties of a D2C rule, precomputed when the rule is created. Keys are
+ * interned, and values are compiled into templates, so properties without placeholders are
+ * converted to strings only once rather than for every message.
+ */
+public class D2CPropertySet {
+
+    private final String[] keys;
+    private final PlaceholderTemplate[] values;
+
+    public D2CPropertySet(DSMap template) {
+        int size = template != null ? template.size() : 0;
+        keys = new String[size];
+        values = new PlaceholderTemplate[size];
+        if (template == null) {
+            return;
+        }
+        int i = 0;
+        for (Entry entry : template) {
+            keys[i] = entry.getKey().intern();
+            values[i] = new PlaceholderTemplate(entry.getValue().toString());
+            i++;
+        }
+    }
+
+    /**
+     * Sets the properties on the message.
+     *
+     * @param msg    The outgoing message.
+     * @param update The update being sent, null if the properties should be sent as they are.
+     */
+    public void apply(Message msg, D2CUpdate update) {
+        for (int i = 0; i < keys.length; i++) {
+            msg.setProperty(keys[i], values[i].resolve(update));
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.iot.dsa.iothub;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.node.DSMap;
+
+/**
+ * How a rule's unsent updates are treated when sending falls behind. With conflation, a rule
+ * keeps at most one unsent update and a newer one replaces it, which suits state-type points
+ * where only the latest value matters. With a TTL, updates that waited longer than that are
+ * dropped instead of sent.
+ *
+ * <p>One policy may be shared by many rules, such as all the matches of a wildcard rule, and
+ * counts what they conflate and expire.
+ */
+public class D2CQueuePolicy {
+
+    static final String CONFLATE = "Conflate";
+    static final String CONFLATED = "Conflated Updates";
+    static final String EXPIRED = "Expired Updates";
+    static final String TTL = "TTL";
+    private static final long PUBLISH_DELAY = 1000;
+
+    private final boolean conflate;
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final Listener listener;
+    private boolean scheduled = false;
+    private final long ttl;
+
+    /**
+     * Receives the counts, at most about once a second, after they change.
+     */
+    public interface Listener {
+
+        void onQueueCounts(D2CQueuePolicy policy);
+
+    }
+
+    public D2CQueuePolicy(boolean conflate, double ttlSeconds, Listener listener) {
+        this.conflate = conflate;
+        this.ttl = (long) (ttlSeconds * 1000);
+        this.listener = listener;
+    }
+
+    /**
+     * Reads the conflation and TTL parameters of a rule.
+     */
+    public static D2CQueuePolicy fromParameters(DSMap parameters, Listener listener) {
+        return new D2CQueuePolicy(parameters.get(CONFLATE, false),
+                                  parameters.get(TTL, 0.0), listener);
+    }
+
+    public long getConflatedCount() {
+        return conflated.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    public boolean isConflating() {
+        return conflate;
+    }
+
+    /**
+     * @param queuedAt When the update was queued, in epoch millis.
+     */
+    public boolean isExpired(long queuedAt, long now) {
+        return ttl > 0 && (now - queuedAt) > ttl;
+    }
+
+    void onConflated(int count) {
+        conflated.addAndGet(count);
+        changed();
+    }
+
+    void onExpired() {
+        expired.incrementAndGet();
+        changed();
+    }
+
+    private void changed() {
+        if (listener == null) {
+            return;
+        }
+        synchronized (this) {
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        DSRuntime.runDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (D2CQueuePolicy.this) {
+                    scheduled = false;
+                }
+                listener.onQueueCounts(D2CQueuePolicy.this);
+            }
+        }, PUBLISH_DELAY);
+    }
+
+}
@@ -1,30 +1,437 @@
-package org.iot.dsa.iothub;
-
-import org.iot.dsa.dslink.restadapter.ResponseWrapper;
-import org.iot.dsa.dslink.restadapter.SubscriptionRule;
-import org.iot.dsa.node.DSMap;
-
-public class D2CRule extends SubscriptionRule {
-    
-    private LocalDeviceNode deviceNode = null;
-
-    public D2CRule(D2CRuleNode node, String subPath, DSMap messageParameters, String body, double minRefreshRate, double maxRefreshRate,
-            int rowNum) {
-        super(node, subPath, null, null, messageParameters, body, minRefreshRate, maxRefreshRate, rowNum);
-    }
-    
-    private LocalDeviceNode getDeviceNode() {
-        if (deviceNode == null) {
-            deviceNode = (LocalDeviceNode) getNode().getAncestor(LocalDeviceNode.class);
-        }
-        return deviceNode;
-    }
-    
-    @Override
-    protected ResponseWrapper doSend(DSMap properties, String body) {
-        ResponseWrapper resp = getDeviceNode().doSendD2C(properties, body, true);
-        getNode().responseRecieved(resp, rowNum);
-        return resp;
-    }
-
-}
+package org.iot.dsa.iothub;
+
+import java.util.ArrayDeque;
+import org.iot.dsa.dslink.restadapter.AbstractRuleNode;
+import org.iot.dsa.dslink.restadapter.ResponseWrapper;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSStatus;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * Sends the updates of a subscribed DSA path to IoT Hub as D2C messages. The subscription is
+ * shared with every other rule of the link that watches the same path.
+ *
+ * <p>Updates are queued and sent in order by one task at a time, on the blocking executor since
+ * each send waits for IoT Hub to acknowledge it. With a minimum refresh rate, updates that arrive
+ * too soon after the previous one are held back and only the latest is sent once the interval
+ * has passed. With a maximum refresh rate, the last update is
+ * sent again if there hasn't been a new one within the interval. Both deadlines are kept in the
+ * link's shared {@link TimingWheel}. A {@link D2CQueuePolicy} can
+ * bound the queue to the latest update, and drop updates that waited too long. A
+ * {@link D2CFilter} drops updates that don't meet its condition before any of that.
+ *
+ * <p>While the device's {@link LoadSheddingNode} is shedding, rules of lower priority get a
+ * longer minimum refresh interval, are conflated, or have their subscription paused.
+ *
+ * <p>Everything but the path can be changed while the rule is running, without touching the
+ * subscription or the updates already queued.
+ */
+public class D2CRule implements AbstractD2CRuleNode.Rule, SubscriptionManager.Listener {
+
+    private static volatile boolean spreadPhase = true;
+
+    private LocalDeviceNode deviceNode = null;
+    private boolean draining = false;
+    private D2CFilter filter;
+    private D2CFilter.State filterState;
+    private D2CUpdate held;
+    private D2CUpdate lastQueued;
+    private long lastQueuedTime;
+    private long maxRefresh;
+    private TimingWheel.Timeout maxTimer;
+    private long minRefresh;
+    private TimingWheel.Timeout minTimer;
+    private final AbstractRuleNode node;
+    private boolean open = true;
+    private boolean paused = false;
+    /**
+     * Whether the phase of the maximum refresh timer has been set.
+     */
+    private boolean phased = !spreadPhase;
+    private volatile D2CQueuePolicy policy;
+    private volatile int priority = 1;
+    private final ArrayDeque<D2CUpdate> queue = new ArrayDeque<D2CUpdate>();
+    protected final int rowNum;
+    private final LoadSheddingNode shedder;
+    private final String subPath;
+    private SubscriptionManager.Subscription subscription;
+    private volatile D2CTemplate template;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable releaseTask = new Runnable() {
+        @Override
+        public void run() {
+            releaseHeld();
+        }
+    };
+
+    private final Runnable resendTask = new Runnable() {
+        @Override
+        public void run() {
+            resendLast();
+        }
+    };
+
+    public D2CRule(AbstractRuleNode node, String subPath, DSMap messageParameters, String body, double minRefreshRate, double maxRefreshRate,
+            int rowNum) {
+        this(node, subPath, new D2CTemplate(messageParameters, body), minRefreshRate,
+             maxRefreshRate, rowNum);
+    }
+
+    /**
+     * @param template May be shared by many rules, such as all the matches of a wildcard rule.
+     */
+    public D2CRule(AbstractRuleNode node, String subPath, D2CTemplate template, double minRefreshRate,
+            double maxRefreshRate, int rowNum) {
+        this.node = node;
+        this.subPath = subPath;
+        this.template = template;
+        this.minRefresh = (long) (minRefreshRate * 1000);
+        this.maxRefresh = (long) (maxRefreshRate * 1000);
+        this.rowNum = rowNum;
+        LocalDeviceNode device = getDeviceNode();
+        this.shedder = device != null ? device.getLoadShedding() : null;
+        if (shedder != null) {
+            shedder.register(this);
+        }
+    }
+
+    /**
+     * Unsubscribes and discards any updates that haven't been sent yet.
+     */
+    public void close() {
+        SubscriptionManager.Subscription sub;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            discardQueue();
+            held = null;
+            cancel(minTimer);
+            cancel(maxTimer);
+            minTimer = null;
+            maxTimer = null;
+            sub = subscription;
+            subscription = null;
+            if (paused && shedder != null) {
+                shedder.onPaused(false);
+            }
+        }
+        if (shedder != null) {
+            shedder.unregister(this);
+        }
+        if (sub != null) {
+            sub.close();
+        }
+    }
+
+    public AbstractRuleNode getNode() {
+        return node;
+    }
+
+    public String getSubscribePath() {
+        return subPath;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Called by the device's load shedder when its level changes, pauses or resumes the
+     * subscription as the level calls for.
+     */
+    void onShedLevel() {
+        boolean pause = shedder.getStep(priority) >= LoadSheddingNode.STEP_PAUSE;
+        SubscriptionManager.Subscription sub = null;
+        synchronized (this) {
+            if (!open || pause == paused) {
+                return;
+            }
+            paused = pause;
+            shedder.onPaused(pause);
+            if (pause) {
+                sub = subscription;
+                subscription = null;
+                held = null;
+            }
+        }
+        if (sub != null) {
+            sub.close();
+            return;
+        }
+        if (!pause) {
+            start();
+        }
+    }
+
+    /**
+     * Subscribes to the path, unless the rule is closed or paused. Call once the rule has been
+     * configured: a shared subscription replays its last value at once, a new one starts with
+     * the current.
+     */
+    public void start() {
+        synchronized (this) {
+            if (!open || paused || subscription != null) {
+                return;
+            }
+        }
+        SubscriptionManager.Subscription sub = MainNode.getSubscriptions().subscribe(subPath, this);
+        synchronized (this) {
+            if (open && !paused && subscription == null) {
+                subscription = sub;
+                return;
+            }
+        }
+        sub.close();
+    }
+
+    /**
+     * @param filter Null to send every update.
+     */
+    public synchronized void setFilter(D2CFilter filter) {
+        this.filter = filter;
+        this.filterState = filter != null ? filter.newState() : null;
+    }
+
+    /**
+     * @param priority 0 for High, 1 for Normal and 2 for Low, which decides how early the rule
+     *                 is shed.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+        if (shedder != null) {
+            onShedLevel();
+        }
+    }
+
+    /**
+     * @param policy Null to send every update.
+     */
+    public void setQueuePolicy(D2CQueuePolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Changes the refresh rates, rescheduling any pending release or resend to the new
+     * intervals.
+     */
+    public synchronized void setRefreshRates(double minRefreshRate, double maxRefreshRate) {
+        long min = (long) (minRefreshRate * 1000);
+        long max = (long) (maxRefreshRate * 1000);
+        if (min != minRefresh) {
+            minRefresh = min;
+            if (open && minTimer != null) {
+                cancel(minTimer);
+                long wait = lastQueuedTime + min - System.currentTimeMillis();
+                minTimer = TimingWheel.getShared().schedule(releaseTask, Math.max(wait, 0));
+            }
+        }
+        if (max != maxRefresh) {
+            maxRefresh = max;
+            cancel(maxTimer);
+            maxTimer = null;
+            if (open && max > 0 && lastQueued != null) {
+                maxTimer = TimingWheel.getShared().schedule(resendTask, max);
+            }
+        }
+    }
+
+    /**
+     * Replaces the message format, updates sent after this call use the new one.
+     */
+    public void setTemplate(D2CTemplate template) {
+        this.template = template;
+    }
+
+    @Override
+    public void onUpdate(DSDateTime dateTime, DSElement value, DSStatus status) {
+        D2CUpdate update = new D2CUpdate(subPath, dateTime, value, status);
+        synchronized (this) {
+            if (!open || paused) {
+                return;
+            }
+            if (filter != null && !filter.accept(update, filterState)) {
+                return;
+            }
+            long min = minRefresh;
+            if (shedder != null && shedder.getStep(priority) >= LoadSheddingNode.STEP_THROTTLE) {
+                min = Math.max(min, shedder.getShedInterval());
+            }
+            long now = System.currentTimeMillis();
+            long wait = lastQueuedTime + min - now;
+            if (min > 0 && (wait > 0 || held != null)) {
+                held = update;
+                if (minTimer == null) {
+                    minTimer = TimingWheel.getShared().schedule(releaseTask, Math.max(wait, 0));
+                }
+                return;
+            }
+            enqueue(update, now);
+        }
+    }
+
+    /**
+     * Sends a single update, or adds it to the current frame if the device packs updates into
+     * frames.
+     *
+     * @return The response, null if the update was framed.
+     */
+    protected ResponseWrapper doSend(D2CUpdate update) {
+        D2CFramer framer = getDeviceNode().getFramer();
+        if (framer != null) {
+            framer.add(node, update);
+            return null;
+        }
+        D2CTemplate t = template;
+        ResponseWrapper resp = null;
+        try {
+            resp = getDeviceNode().doSendD2C(node.getName(), t.getProperties(), update,
+                                             t.getBody().resolve(update), true);
+        } catch (Exception e) {
+            node.warn("Error sending update of " + subPath, e);
+        }
+        node.responseRecieved(resp, rowNum);
+        return resp;
+    }
+
+    /**
+     * Whether the first resend of a rule with a maximum refresh rate is offset by a fraction of
+     * the interval derived from its path, so that rules started together don't all resend in
+     * the same tick.
+     */
+    static void setPhaseSpread(boolean spread) {
+        spreadPhase = spread;
+    }
+
+    private static void cancel(TimingWheel.Timeout timer) {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            D2CUpdate update;
+            synchronized (this) {
+                update = queue.poll();
+                if (update == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            if (shedder != null) {
+                shedder.onDequeued(1, update.getEstimatedSize());
+            }
+            D2CQueuePolicy p = policy;
+            if (p != null && p.isExpired(update.getCreated(), System.currentTimeMillis())) {
+                p.onExpired();
+                continue;
+            }
+            doSend(update);
+        }
+    }
+
+    /**
+     * Must be called while synchronized on this rule.
+     */
+    private void enqueue(D2CUpdate update, long now) {
+        if (PipelineEvents.isEnabled()) {
+            PipelineEvents.d2cEnqueued(getDeviceNode().getName(), node.getName(), subPath);
+        }
+        D2CQueuePolicy p = policy;
+        boolean conflate = p != null && p.isConflating();
+        if (!conflate && shedder != null) {
+            conflate = shedder.getStep(priority) >= LoadSheddingNode.STEP_CONFLATE;
+        }
+        if (conflate && !queue.isEmpty()) {
+            if (p != null) {
+                p.onConflated(queue.size());
+            }
+            discardQueue();
+        }
+        queue.add(update);
+        if (shedder != null) {
+            shedder.onQueued(update.getEstimatedSize());
+        }
+        lastQueued = update;
+        lastQueuedTime = now;
+        if (!draining) {
+            draining = true;
+            try {
+                BlockingExecutor.execute(drainTask);
+            } catch (RuntimeException e) {
+                //the next update tries again, rather than waiting on a drain that never runs
+                draining = false;
+                throw e;
+            }
+        }
+        if (maxRefresh > 0) {
+            cancel(maxTimer);
+            long delay = maxRefresh;
+            if (!phased) {
+                delay = spreadDelay(subPath, maxRefresh);
+                phased = true;
+            }
+            maxTimer = TimingWheel.getShared().schedule(resendTask, delay);
+        }
+    }
+
+    /**
+     * @return The delay of the first resend of a rule with a spread phase, a point within the
+     * interval derived from the path, so that rules that start together don't resend together
+     * forever.
+     */
+    static long spreadDelay(String path, long interval) {
+        long offset = (path.hashCode() & 0x7fffffff) % interval;
+        return offset > 0 ? offset : interval;
+    }
+
+    /**
+     * Must be called while synchronized on this rule.
+     */
+    private void discardQueue() {
+        if (shedder != null && !queue.isEmpty()) {
+            long size = 0;
+            for (D2CUpdate update : queue) {
+                size += update.getEstimatedSize();
+            }
+            shedder.onDequeued(queue.size(), size);
+        }
+        queue.clear();
+    }
+
+    private LocalDeviceNode getDeviceNode() {
+        if (deviceNode == null) {
+            deviceNode = (LocalDeviceNode) node.getAncestor(LocalDeviceNode.class);
+        }
+        return deviceNode;
+    }
+
+    private synchronized void releaseHeld() {
+        minTimer = null;
+        if (open && held != null) {
+            D2CUpdate update = held;
+            held = null;
+            enqueue(update, System.currentTimeMillis());
+        }
+    }
+
+    private synchronized void resendLast() {
+        maxTimer = null;
+        if (open && !paused && lastQueued != null && held == null) {
+            D2CUpdate last = lastQueued;
+            enqueue(new D2CUpdate(subPath, last.getDateTime(), last.getValue(), last.getStatus()),
+                    System.currentTimeMillis());
+        }
+    }
+
+}
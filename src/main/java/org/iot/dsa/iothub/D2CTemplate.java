@@ -0,0 +1,26 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.node.DSMap;
+
+/**
+ * The compiled message format of a D2C rule: its properties and body.
+ */
+public class D2CTemplate {
+
+    private final PlaceholderTemplate body;
+    private final D2CPropertySet properties;
+
+    public D2CTemplate(DSMap properties, String body) {
+        this.properties = new D2CPropertySet(properties);
+        this.body = new PlaceholderTemplate(body);
+    }
+
+    public PlaceholderTemplate getBody() {
+        return body;
+    }
+
+    public D2CPropertySet getProperties() {
+        return properties;
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSStatus;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * An update of a subscribed value, waiting to be sent as a D2C message. The string forms used
+ * by message templates are computed at most once.
+ */
+public class D2CUpdate {
+
+    private final long created;
+    private int size = -1;
+    private final DSDateTime dateTime;
+    private final String path;
+    private final DSStatus status;
+    private String statusStr;
+    private String tsStr;
+    private final DSElement value;
+    private String valueStr;
+
+    public D2CUpdate(DSDateTime dateTime, DSElement value, DSStatus status) {
+        this(null, dateTime, value, status);
+    }
+
+    /**
+     * @param path The subscribed path the update is for, may be null.
+     */
+    public D2CUpdate(String path, DSDateTime dateTime, DSElement value, DSStatus status) {
+        this.created = System.currentTimeMillis();
+        this.path = path != null ? path : "";
+        this.dateTime = dateTime;
+        this.value = value;
+        this.status = status;
+    }
+
+    /**
+     * @return When the update was received, in epoch millis.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return A rough count of the bytes the update takes while queued.
+     */
+    public int getEstimatedSize() {
+        if (size < 0) {
+            size = 64 + getValueString().length();
+        }
+        return size;
+    }
+
+    public DSDateTime getDateTime() {
+        return dateTime;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public DSStatus getStatus() {
+        return status;
+    }
+
+    public String getStatusString() {
+        if (statusStr == null) {
+            statusStr = String.valueOf(status);
+        }
+        return statusStr;
+    }
+
+    public String getTimestampString() {
+        if (tsStr == null) {
+            tsStr = String.valueOf(dateTime);
+        }
+        return tsStr;
+    }
+
+    public DSElement getValue() {
+        return value;
+    }
+
+    public String getValueString() {
+        if (valueStr == null) {
+            valueStr = String.valueOf(value);
+        }
+        return valueStr;
+    }
+
+}
@@ -0,0 +1,303 @@
+package org.iot.dsa.iothub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.iot.dsa.dslink.DSIRequester;
+import org.iot.dsa.dslink.requester.AbstractListHandler;
+import org.iot.dsa.dslink.requester.ErrorType;
+import org.iot.dsa.dslink.requester.OutboundStream;
+import org.iot.dsa.dslink.restadapter.AbstractRuleNode;
+import org.iot.dsa.node.DSElement;
+
+/**
+ * Finds every value matching a path pattern with list requests, and forwards the updates of
+ * each one to IoT Hub through a single compiled template. List streams are kept open, so
+ * children that appear later are subscribed as they show up, and removed children are
+ * unsubscribed. The template and settings can be changed while it runs, and are pushed to the
+ * rules of existing matches without resubscribing them.
+ */
+public class D2CWildcardRule implements AbstractD2CRuleNode.Rule {
+
+    private boolean closed = false;
+    private volatile D2CFilter filter;
+    private final Listener listener;
+    /**
+     * Open list requests by path.
+     */
+    private final TreeMap<String, NodeList> lists = new TreeMap<String, NodeList>();
+    private double maxRefreshRate;
+    private double minRefreshRate;
+    private final AbstractRuleNode node;
+    private final PathPattern pattern;
+    private volatile D2CQueuePolicy policy;
+    private volatile int priority = 1;
+    /**
+     * Subscriptions of matching values by path.
+     */
+    private final TreeMap<String, D2CRule> rules = new TreeMap<String, D2CRule>();
+    private D2CTemplate template;
+
+    /**
+     * Receives the number of matching values whenever it may have changed.
+     */
+    public interface Listener {
+
+        void onMatchCount(int count);
+
+    }
+
+    public D2CWildcardRule(AbstractRuleNode node, PathPattern pattern, D2CTemplate template,
+                           double minRefreshRate, double maxRefreshRate, Listener listener) {
+        this.node = node;
+        this.pattern = pattern;
+        this.template = template;
+        this.minRefreshRate = minRefreshRate;
+        this.maxRefreshRate = maxRefreshRate;
+        this.listener = listener;
+    }
+
+    /**
+     * Compiled once and applied to the rule of every match, each with its own state.
+     */
+    public synchronized void setFilter(D2CFilter filter) {
+        this.filter = filter;
+        for (D2CRule rule : rules.values()) {
+            rule.setFilter(filter);
+        }
+    }
+
+    /**
+     * Applied to the rule of every match.
+     */
+    public synchronized void setPriority(int priority) {
+        this.priority = priority;
+        for (D2CRule rule : rules.values()) {
+            rule.setPriority(priority);
+        }
+    }
+
+    /**
+     * Applied to the rule of every match.
+     */
+    public synchronized void setQueuePolicy(D2CQueuePolicy policy) {
+        this.policy = policy;
+        for (D2CRule rule : rules.values()) {
+            rule.setQueuePolicy(policy);
+        }
+    }
+
+    /**
+     * Applied to the rule of every match.
+     */
+    public synchronized void setRefreshRates(double minRefreshRate, double maxRefreshRate) {
+        this.minRefreshRate = minRefreshRate;
+        this.maxRefreshRate = maxRefreshRate;
+        for (D2CRule rule : rules.values()) {
+            rule.setRefreshRates(minRefreshRate, maxRefreshRate);
+        }
+    }
+
+    /**
+     * Applied to the rule of every match.
+     */
+    public synchronized void setTemplate(D2CTemplate template) {
+        this.template = template;
+        for (D2CRule rule : rules.values()) {
+            rule.setTemplate(template);
+        }
+    }
+
+    /**
+     * Closes all list requests and subscriptions.
+     */
+    public void close() {
+        List<NodeList> closedLists;
+        List<D2CRule> closedRules;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closedLists = new ArrayList<NodeList>(lists.values());
+            closedRules = new ArrayList<D2CRule>(rules.values());
+            lists.clear();
+            rules.clear();
+        }
+        for (NodeList list : closedLists) {
+            list.close();
+        }
+        for (D2CRule rule : closedRules) {
+            rule.close();
+        }
+    }
+
+    public synchronized int getMatchCount() {
+        return rules.size();
+    }
+
+    public PathPattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Starts discovery from the root of the pattern.
+     */
+    public void start() {
+        MainNode.whenRequesterReady(requester -> list(requester, pattern.getRoot()));
+    }
+
+    private static String childPath(String parent, String name) {
+        return parent.endsWith("/") ? parent + name : parent + '/' + name;
+    }
+
+    private void countChanged() {
+        if (listener != null) {
+            listener.onMatchCount(getMatchCount());
+        }
+    }
+
+    private void list(DSIRequester requester, String path) {
+        NodeList list = new NodeList(path);
+        synchronized (this) {
+            if (closed || lists.containsKey(path)) {
+                return;
+            }
+            lists.put(path, list);
+        }
+        requester.list(path, list);
+        boolean stale;
+        synchronized (this) {
+            stale = lists.get(path) != list;
+        }
+        if (stale) {
+            list.close();
+        }
+    }
+
+    private void onChild(String parent, String name, DSElement value) {
+        if (name.isEmpty() || name.charAt(0) == '$' || name.charAt(0) == '@') {
+            return;
+        }
+        if (value == null || !value.isMap()) {
+            return;
+        }
+        String path = childPath(parent, name);
+        if (value.toMap().get("$type") != null && pattern.matches(path)) {
+            D2CRule rule;
+            synchronized (this) {
+                if (closed || rules.containsKey(path)) {
+                    return;
+                }
+                rule = new D2CRule(node, path, template, minRefreshRate, maxRefreshRate, 0);
+                rule.setQueuePolicy(policy);
+                rule.setFilter(filter);
+                rule.setPriority(priority);
+                rules.put(path, rule);
+            }
+            rule.start();
+            node.debug("Wildcard rule matched " + path);
+        }
+        if (value.toMap().get("$invokable") == null && pattern.canDescend(path)) {
+            DSIRequester requester = MainNode.getRequester();
+            if (requester != null) {
+                list(requester, path);
+            }
+        }
+    }
+
+    /**
+     * Closes the subscription of the path and everything below it.
+     */
+    private void onRemoved(String path) {
+        List<NodeList> closedLists = new ArrayList<NodeList>();
+        List<D2CRule> closedRules = new ArrayList<D2CRule>();
+        synchronized (this) {
+            removeTree(lists, path, closedLists);
+            removeTree(rules, path, closedRules);
+        }
+        for (NodeList list : closedLists) {
+            list.close();
+        }
+        for (D2CRule rule : closedRules) {
+            rule.close();
+        }
+        if (!closedRules.isEmpty()) {
+            countChanged();
+        }
+    }
+
+    private static <T> void removeTree(TreeMap<String, T> map, String path, List<T> removed) {
+        T item = map.remove(path);
+        if (item != null) {
+            removed.add(item);
+        }
+        //'0' is the character after '/', so this is every key that starts with path + '/'
+        SortedMap<String, T> below = map.subMap(path + '/', path + '0');
+        removed.addAll(below.values());
+        below.clear();
+    }
+
+    /**
+     * The list request of a single node.
+     */
+    private class NodeList extends AbstractListHandler {
+
+        private boolean closed = false;
+        private final String path;
+
+        NodeList(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void onClose() {
+            synchronized (D2CWildcardRule.this) {
+                if (lists.get(path) == this) {
+                    lists.remove(path);
+                }
+            }
+        }
+
+        @Override
+        public void onError(ErrorType type, String msg) {
+            super.onError(type, msg);
+            node.warn("Listing " + path + " failed: " + type + ", " + msg);
+        }
+
+        @Override
+        public void onInitialized() {
+            countChanged();
+        }
+
+        @Override
+        public void onRemove(String name) {
+            onRemoved(childPath(path, name));
+        }
+
+        @Override
+        public void onUpdate(String name, DSElement value) {
+            if (isClosed()) {
+                return;
+            }
+            onChild(path, name, value);
+        }
+
+        void close() {
+            OutboundStream stream;
+            synchronized (this) {
+                closed = true;
+                stream = getStream();
+            }
+            if (stream != null && stream.isStreamOpen()) {
+                stream.closeStream();
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.dslink.DSRequestException;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSLong;
+import org.iot.dsa.node.DSMap;
+
+/**
+ * A D2C rule for every value whose path matches a pattern, such as all the points of a
+ * controller. One node and one compiled template serve all the matches.
+ */
+public class D2CWildcardRuleNode extends AbstractD2CRuleNode
+        implements D2CWildcardRule.Listener {
+
+    static final String MATCHED_PATHS = "Matched Paths";
+    static final String PATH_PATTERN = "Path Pattern";
+
+    private D2CWildcardRule rule;
+
+    private DSInfo matchedPaths = getInfo(MATCHED_PATHS);
+
+    public D2CWildcardRuleNode() {
+    }
+
+    public D2CWildcardRuleNode(DSMap parameters) {
+        super(parameters);
+    }
+
+    /**
+     * Fails if the pattern or the filter of the parameters can't be used.
+     */
+    static void validatePattern(DSMap parameters) {
+        try {
+            new PathPattern(parameters.getString(PATH_PATTERN));
+        } catch (IllegalArgumentException e) {
+            throw new DSRequestException(e.getMessage());
+        }
+        validateFilter(parameters);
+    }
+
+    public String getPathPattern() {
+        return parameters.getString(PATH_PATTERN);
+    }
+
+    @Override
+    public void onMatchCount(int count) {
+        put(matchedPaths, DSLong.valueOf(count));
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(MATCHED_PATHS, DSLong.valueOf(0)).setTransient(true).setReadOnly(true);
+    }
+
+    @Override
+    protected String getPathParameter() {
+        return PATH_PATTERN;
+    }
+
+    @Override
+    protected Rule getRule() {
+        return rule;
+    }
+
+    @Override
+    protected synchronized void startRule() {
+        PathPattern pattern;
+        try {
+            pattern = new PathPattern(getPathPattern());
+        } catch (IllegalArgumentException e) {
+            warn(e.getMessage());
+            return;
+        }
+        D2CTemplate template = new D2CTemplate(getMessageProperties(), getBody());
+        rule = new D2CWildcardRule(this, pattern, template, getMinRefreshRate(),
+                                   getMaxRefreshRate(), this);
+        configureAndStart(rule);
+    }
+
+    @Override
+    protected synchronized void stopRule() {
+        if (rule != null) {
+            rule.close();
+            rule = null;
+        }
+        put(matchedPaths, DSLong.valueOf(0));
+    }
+
+    @Override
+    protected void validate(DSMap parameters) {
+        validatePattern(parameters);
+    }
+
+}
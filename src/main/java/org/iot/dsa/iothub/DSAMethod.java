@@ -3,6 +3,10 @@ package org.iot.dsa.iothub;
 public enum DSAMethod {
     INVOKE,
     SET,
-    GET
+    GET,
+    /**
+     * Runs many GET, SET and INVOKE operations listed in the payload, see {@link MethodBatch}.
+     */
+    BATCH
 
 }
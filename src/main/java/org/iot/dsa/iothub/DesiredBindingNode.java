@@ -0,0 +1,159 @@
+package org.iot.dsa.iothub;
+
+import java.util.Map;
+import org.iot.dsa.node.DSBool;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSNode;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * Writes a desired property of the device twin to a DSA value, converted to the configured type.
+ */
+public class DesiredBindingNode extends DSNode {
+
+    static final String PATH = "Path";
+    static final String PROPERTY = "Property";
+    static final String REPORT = "Report Applied Value";
+    static final String VALUE_TYPE = "Value Type";
+    private static final String LAST_RESULT = "Last Result";
+    private static final String LAST_VALUE = "Last Value";
+
+    private DSInfo lastResult = getInfo(LAST_RESULT);
+    private DSInfo lastValue = getInfo(LAST_VALUE);
+    private String path;
+    private String property;
+    private Boolean report;
+    private String valueType;
+
+    public DesiredBindingNode() {
+    }
+
+    public DesiredBindingNode(DSMap parameters) {
+        this.property = parameters.getString(PROPERTY);
+        this.path = parameters.getString(PATH);
+        this.valueType = parameters.get(VALUE_TYPE, "Auto");
+        this.report = parameters.get(REPORT, true);
+    }
+
+    /**
+     * @return The types desired values can be converted to.
+     */
+    static DSList getValueTypes() {
+        return new DSList().add("Auto").add("String").add("Number").add("Bool").add("Map");
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * @return True if the value should be confirmed as a reported property once written.
+     */
+    public boolean isReported() {
+        return report == null || report;
+    }
+
+    /**
+     * Converts a desired value to the type of this binding.
+     *
+     * @throws IllegalArgumentException If the value can't be converted.
+     */
+    public DSElement toElement(Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Desired value of " + property + " is null");
+        }
+        switch (valueType.charAt(0)) {
+            case 'S':
+                return DSString.valueOf(value.toString());
+            case 'N':
+                if (value instanceof Number) {
+                    return DSDouble.valueOf(((Number) value).doubleValue());
+                }
+                return DSDouble.valueOf(Double.parseDouble(value.toString().trim()));
+            case 'B':
+                if (value instanceof Boolean) {
+                    return DSBool.valueOf((Boolean) value);
+                }
+                String str = value.toString().trim();
+                if (!str.equalsIgnoreCase("true") && !str.equalsIgnoreCase("false")) {
+                    throw new IllegalArgumentException("Not a boolean: " + str);
+                }
+                return DSBool.valueOf(Boolean.parseBoolean(str));
+            case 'M':
+                if (!(value instanceof Map)) {
+                    throw new IllegalArgumentException("Not a map: " + value);
+                }
+                return Util.objectToElement(value);
+            default:
+                return Util.objectToElement(value);
+        }
+    }
+
+    /**
+     * Records the outcome of a write.
+     */
+    void recordResult(DSElement value, String result) {
+        if (value != null) {
+            put(lastValue, value);
+        }
+        put(lastResult, DSString.valueOf(DSDateTime.now() + " " + result));
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(LAST_VALUE, DSString.EMPTY).setTransient(true).setReadOnly(true);
+        declareDefault(LAST_RESULT, DSString.EMPTY).setTransient(true).setReadOnly(true);
+    }
+
+    @Override
+    protected void onRemoved() {
+        super.onRemoved();
+        DSNode parent = getParent();
+        if (parent instanceof DesiredBindingsNode) {
+            ((DesiredBindingsNode) parent).unregister(this);
+        }
+    }
+
+    @Override
+    protected void onStable() {
+        super.onStable();
+        property = load(PROPERTY, property, "");
+        path = load(PATH, path, "");
+        valueType = load(VALUE_TYPE, valueType, "Auto");
+        if (report == null) {
+            DSIObject obj = get(REPORT);
+            report = obj instanceof DSBool ? ((DSBool) obj).toBoolean() : true;
+        } else {
+            put(REPORT, DSBool.valueOf(report)).setReadOnly(true);
+        }
+        DSNode parent = getParent();
+        if (parent instanceof DesiredBindingsNode) {
+            ((DesiredBindingsNode) parent).register(this);
+        }
+    }
+
+    /**
+     * Returns the persisted value of a setting, or persists the value this node was constructed
+     * with.
+     */
+    private String load(String name, String value, String def) {
+        if (value == null) {
+            DSIObject obj = get(name);
+            return obj instanceof DSString ? obj.toString() : def;
+        }
+        put(name, DSString.valueOf(value)).setReadOnly(true);
+        return value;
+    }
+
+}
@@ -0,0 +1,207 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.dslink.ActionResults;
+import org.iot.dsa.node.DSBool;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSFlexEnum;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSNode;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.node.action.DSAction;
+import org.iot.dsa.node.action.DSIActionRequest;
+
+/**
+ * Holds the desired property bindings of a device. Desired values are collected for the
+ * coalescing delay, so when the same property is patched several times in quick succession only
+ * the latest value is written. Once a batch of values is written, the applied values are
+ * confirmed in a single reported properties patch.
+ */
+public class DesiredBindingsNode extends DSNode {
+
+    static final String COALESCE_DELAY = "Coalesce Delay";
+    private static final long WRITE_TIMEOUT = 5000;
+
+    private volatile Map<String, List<DesiredBindingNode>> bindings = Collections.emptyMap();
+    private final List<DesiredBindingNode> nodes = new ArrayList<DesiredBindingNode>();
+    private Map<String, Object> pending = new LinkedHashMap<String, Object>();
+    private boolean scheduled = false;
+
+    /**
+     * Called for every desired property received from IoT Hub.
+     */
+    public void onDesired(String property, Object value) {
+        if (!bindings.containsKey(property)) {
+            return;
+        }
+        synchronized (this) {
+            pending.put(property, value);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        DSRuntime.runDelayed(new Runnable() {
+            @Override
+            public void run() {
+                BlockingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        apply();
+                    }
+                });
+            }
+        }, getCoalesceDelay());
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(COALESCE_DELAY, DSDouble.valueOf(0.25));
+        declareDefault("Add Binding", makeAddBindingAction());
+    }
+
+    void register(DesiredBindingNode node) {
+        synchronized (nodes) {
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+            rebuildIndex();
+        }
+    }
+
+    void unregister(DesiredBindingNode node) {
+        synchronized (nodes) {
+            nodes.remove(node);
+            rebuildIndex();
+        }
+    }
+
+    private void addBinding(DSMap parameters) {
+        String name = parameters.getString("Name");
+        add(name, new DesiredBindingNode(parameters));
+    }
+
+    /**
+     * Writes the latest value of every pending property, then reports the applied values.
+     */
+    private void apply() {
+        Map<String, Object> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new LinkedHashMap<String, Object>();
+            scheduled = false;
+        }
+        Map<String, List<DesiredBindingNode>> index = bindings;
+        Set<Property> applied = new HashSet<Property>();
+        for (Map.Entry<String, Object> e : batch.entrySet()) {
+            List<DesiredBindingNode> matches = index.get(e.getKey());
+            if (matches == null) {
+                continue;
+            }
+            boolean success = true;
+            for (DesiredBindingNode binding : matches) {
+                success &= write(binding, e.getValue());
+            }
+            if (success && isReported(matches)) {
+                applied.add(new Property(e.getKey(), e.getValue()));
+            }
+        }
+        if (applied.isEmpty()) {
+            return;
+        }
+        DSNode parent = getParent();
+        if (parent instanceof LocalDeviceNode) {
+            try {
+                ((LocalDeviceNode) parent).sendReportedPatch(applied);
+            } catch (RuntimeException e) {
+                warn("Error reporting applied desired properties", e);
+            }
+        }
+    }
+
+    private long getCoalesceDelay() {
+        DSIObject delay = get(COALESCE_DELAY);
+        return delay instanceof DSElement ? (long) (((DSElement) delay).toDouble() * 1000) : 250;
+    }
+
+    private static boolean isReported(List<DesiredBindingNode> matches) {
+        for (DesiredBindingNode binding : matches) {
+            if (binding.isReported()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static DSAction makeAddBindingAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest req) {
+                ((DesiredBindingsNode) req.getTarget()).addBinding(req.getParameters());
+                return null;
+            }
+        };
+        act.addParameter("Name", DSString.NULL, null);
+        act.addParameter(DesiredBindingNode.PROPERTY, DSString.NULL,
+                         "Name of the desired property");
+        act.addParameter(DesiredBindingNode.PATH, DSString.NULL, "DSA path of the value to set");
+        act.addParameter(DesiredBindingNode.VALUE_TYPE,
+                         DSFlexEnum.valueOf("Auto", DesiredBindingNode.getValueTypes()),
+                         "Type to convert the desired value to before setting it");
+        act.addDefaultParameter(DesiredBindingNode.REPORT, DSBool.TRUE,
+                                "Confirm the written value as a reported property");
+        return act;
+    }
+
+    /**
+     * Replaces the index with a new one, so that looking up bindings never needs to lock.
+     */
+    private void rebuildIndex() {
+        Map<String, List<DesiredBindingNode>> newIndex =
+                new HashMap<String, List<DesiredBindingNode>>();
+        for (DesiredBindingNode node : nodes) {
+            List<DesiredBindingNode> list = newIndex.get(node.getProperty());
+            if (list == null) {
+                list = new ArrayList<DesiredBindingNode>();
+                newIndex.put(node.getProperty(), list);
+            }
+            list.add(node);
+        }
+        bindings = newIndex;
+    }
+
+    private boolean write(DesiredBindingNode binding, Object value) {
+        Object timer = PipelineEvents.beginDesiredApply();
+        DSElement element = null;
+        boolean success = false;
+        try {
+            element = binding.toElement(value);
+            RequesterOps.set(binding.getPath(), element, WRITE_TIMEOUT);
+            success = true;
+        } catch (Exception e) {
+            warn("Error writing desired property " + binding.getProperty() + " to "
+                         + binding.getPath(), e);
+            binding.recordResult(element, "Failed: " + e.getMessage());
+            return false;
+        } finally {
+            DSNode parent = getParent();
+            PipelineEvents.endDesiredApply(timer, parent != null ? parent.getName() : "",
+                                           binding.getProperty(), binding.getPath(), success);
+        }
+        binding.recordResult(element, "Applied");
+        return true;
+    }
+
+}
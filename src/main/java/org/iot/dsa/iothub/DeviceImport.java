@@ -0,0 +1,229 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.iot.dsa.dslink.DSRequestException;
+import org.iot.dsa.io.json.JsonReader;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSMap.Entry;
+
+/**
+ * Imports many devices from a file of connection strings. All device nodes are added up front,
+ * and their connections are then opened by a bounded pool of threads rather than all at once.
+ */
+public class DeviceImport {
+
+    static final String DEVICE_ID_PLACEHOLDER = "%DEVICE_ID%";
+
+    private final AtomicInteger connected = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final DSList failures = new DSList();
+    private final MainNode main;
+    private ExecutorService pool;
+    private final int parallelism;
+    private int total;
+
+    DeviceImport(MainNode main, int parallelism) {
+        this.main = main;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Parses an import file. A JSON file holds a list whose elements are either connection
+     * strings, or maps with a "Connection String" and optionally a "Protocol" and "Rules". Any
+     * other file is treated as CSV, with a connection string and optionally a protocol on each
+     * line.
+     *
+     * @return A list of maps, each with at least a "Connection String".
+     */
+    static List<DSMap> readFile(String path) {
+        String text;
+        try {
+            text = new String(Files.readAllBytes(new File(path).toPath()),
+                              StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new DSRequestException("Unable to read " + path + ": " + e.getMessage());
+        }
+        String trimmed = text.trim();
+        if (trimmed.startsWith("[")) {
+            return readJson(trimmed);
+        }
+        return readCsv(text);
+    }
+
+    /**
+     * Adds a failure that happened before the device could be connected, such as a malformed
+     * entry in the import file.
+     */
+    synchronized void addFailure(String device, String error) {
+        failures.add(new DSMap().put("Device", device).put("Error", error));
+        main.updateImportStatus(this);
+    }
+
+    /**
+     * Queues a device that was added by this import to be connected.
+     */
+    void connect(final LocalDeviceNode device) {
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                String error;
+                try {
+                    error = device.connectNow() ? null : device.getStatusText();
+                } catch (RuntimeException e) {
+                    device.warn("Error connecting imported device", e);
+                    error = String.valueOf(e.getMessage());
+                }
+                if (error == null) {
+                    connected.incrementAndGet();
+                    main.updateImportStatus(DeviceImport.this);
+                    shutdownIfDone();
+                } else {
+                    fail(device.getName(), error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Counts a device that was to be connected by this import as failed, whether its connection
+     * failed or it never got as far as connecting. The pool is shut down once every device is
+     * accounted for.
+     */
+    void fail(String device, String error) {
+        failed.incrementAndGet();
+        synchronized (this) {
+            failures.add(new DSMap().put("Device", device).put("Error", error));
+        }
+        main.updateImportStatus(this);
+        shutdownIfDone();
+    }
+
+    synchronized DSList getFailures() {
+        return failures.copy();
+    }
+
+    /**
+     * @return A one line summary of the progress of the import.
+     */
+    String getStatus() {
+        int done = connected.get() + failed.get();
+        return String.format("Connected %d of %d devices, %d failed%s", connected.get(), total,
+                             failed.get(), done >= total ? "" : ", in progress");
+    }
+
+    boolean isDone() {
+        return connected.get() + failed.get() >= total;
+    }
+
+    private synchronized void shutdownIfDone() {
+        if (pool != null && isDone()) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Starts the connection pool, must be called before any of the imported devices are added to
+     * the tree.
+     *
+     * @param total The number of devices that will be connected.
+     */
+    void start(int total) {
+        this.total = total;
+        if (total == 0) {
+            return;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "IoT Hub Device Import " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Copies a rule template, replacing the device id placeholder in every string value.
+     */
+    static DSMap resolveTemplate(DSMap template, String deviceId) {
+        DSMap resolved = new DSMap();
+        for (Entry entry : template) {
+            DSElement value = entry.getValue();
+            if (value.isMap()) {
+                resolved.put(entry.getKey(), resolveTemplate(value.toMap(), deviceId));
+            } else if (value.isString()) {
+                resolved.put(entry.getKey(),
+                             value.toString().replace(DEVICE_ID_PLACEHOLDER, deviceId));
+            } else {
+                resolved.put(entry.getKey(), value.copy());
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * @return The protocol named by the entry, or the default.
+     */
+    static IotHubClientProtocol getProtocol(DSMap entry, IotHubClientProtocol defaultProtocol) {
+        String str = entry.getString("Protocol");
+        if (str == null || str.trim().isEmpty()) {
+            return defaultProtocol;
+        }
+        return IotHubClientProtocol.valueOf(str.trim().toUpperCase());
+    }
+
+    private static List<DSMap> readCsv(String text) {
+        List<DSMap> entries = new ArrayList<DSMap>();
+        for (String line : text.split("\r?\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] cols = line.split(",");
+            String connStr = cols[0].trim();
+            if (connStr.startsWith("\"") && connStr.endsWith("\"") && connStr.length() > 1) {
+                connStr = connStr.substring(1, connStr.length() - 1);
+            }
+            if (!connStr.contains("=")) {
+                continue; //header
+            }
+            DSMap entry = new DSMap().put("Connection String", connStr);
+            if (cols.length > 1) {
+                entry.put("Protocol", cols[1].trim());
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static List<DSMap> readJson(String text) {
+        List<DSMap> entries = new ArrayList<DSMap>();
+        JsonReader reader = new JsonReader(text);
+        try {
+            for (DSElement elem : reader.getElement().toList()) {
+                if (elem.isMap()) {
+                    entries.add(elem.toMap());
+                } else if (elem.isString()) {
+                    entries.add(new DSMap().put("Connection String", elem.toString()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+}
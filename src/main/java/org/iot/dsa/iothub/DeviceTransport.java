@@ -0,0 +1,82 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Device;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import com.microsoft.azure.sdk.iot.device.IotHubConnectionStatusChangeCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/**
+ * The connection of a local device to its hub. Everything a device does with IoT Hub goes
+ * through this, so the Azure client can be swapped for another implementation, such as the
+ * in-memory {@link LoopbackTransport}. Messages, properties and callbacks are the value types of
+ * the Azure client, which the rest of the link is already built on.
+ *
+ * <p>Callbacks must be set before {@link #open()}.
+ */
+public interface DeviceTransport {
+
+    /**
+     * Closes the connection without waiting for pending messages.
+     */
+    void close() throws IOException;
+
+    void open() throws IOException;
+
+    /**
+     * @param callback Called with the status of the connection whenever it changes.
+     */
+    void setConnectionStatusCallback(IotHubConnectionStatusChangeCallback callback,
+                                     Object context);
+
+    /**
+     * @param callback Receives C2D messages.
+     */
+    void setMessageCallback(MessageCallback callback, Object context);
+
+    /**
+     * Sends a D2C message.
+     *
+     * @param callback Called with the response of the hub.
+     */
+    void sendEventAsync(Message message, IotHubEventCallback callback, Object context);
+
+    /**
+     * Patches the reported properties of the twin.
+     *
+     * @param callback Called exactly once, with the response of the hub to this patch.
+     */
+    void sendReportedProperties(Set<Property> properties, IotHubEventCallback callback,
+                                Object context) throws IOException;
+
+    /**
+     * Starts the device twin and subscribes to all desired properties, which are then delivered
+     * to the property callback of the twin.
+     *
+     * @param statusCallback Called once, with the response to starting the twin, or ERROR if
+     *                       subscribing failed. Never called with the responses to reported
+     *                       properties patches.
+     */
+    void startTwin(Device twin, IotHubEventCallback statusCallback) throws IOException;
+
+    /**
+     * @param callback       Handles direct method calls.
+     * @param statusCallback Called with the response to the subscription.
+     */
+    void subscribeToMethods(DeviceMethodCallback callback, IotHubEventCallback statusCallback)
+            throws IOException;
+
+    /**
+     * Uploads a file to the storage container associated with the hub.
+     *
+     * @param callback Called with the status of the upload.
+     */
+    void uploadToBlobAsync(String name, InputStream in, long length,
+                           IotHubEventCallback callback, Object context) throws IOException;
+
+}
@@ -1,14 +1,14 @@
 package org.iot.dsa.iothub;
 
 import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodData;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import java.io.File;
 import java.text.DateFormat;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import org.iot.dsa.dslink.DSIRequester;
 import org.iot.dsa.dslink.requester.AbstractSubscribeHandler;
-import org.iot.dsa.dslink.requester.SimpleInvokeHandler;
-import org.iot.dsa.dslink.requester.SimpleRequestHandler;
 import org.iot.dsa.io.json.JsonReader;
 import org.iot.dsa.node.DSElement;
 import org.iot.dsa.node.DSIObject;
@@ -33,9 +33,23 @@ import org.iot.dsa.time.DSDateTime;
 public class DirectMethodNode extends DSNode {
 
     static final int METHOD_SUCCESS = 200;
+    static final int METHOD_ACCEPTED = 202;
     static final int METHOD_NOT_DEFINED = 404;
     static final int METHOD_FAILED = 500;
     static final int METHOD_NOT_IMPLEMENTED = 501;
+    static final int METHOD_UNAVAILABLE = 503;
+    /**
+     * Milliseconds a method has to respond in. IoT Hub stops waiting for a response after 30
+     * seconds unless the caller asks for longer, so this leaves time to send it.
+     */
+    static final long METHOD_DEADLINE = 25000;
+    /**
+     * Results larger than this are uploaded as a blob rather than returned, IoT Hub limits
+     * method payloads to 128 KB.
+     */
+    static final int RESPONSE_BUDGET = 120 * 1024;
+    private static final long MAX_SPILL_BYTES = 256L * 1024 * 1024;
+    private static final long RESULT_IDLE_TIMEOUT = 5000;
     @SuppressWarnings("serial")
     private static DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ") {
         public Date parse(String source, ParsePosition pos) {
@@ -60,11 +74,13 @@ public class DirectMethodNode extends DSNode {
     public DeviceMethodData handle(Object methodData) {
 
         DSMap params = null;
+        DSElement payload = null;
         if (methodData != null) {
             JsonReader reader = null;
             try {
                 reader = new JsonReader(new String((byte[]) methodData));
-                String s = reader.getElement().toString();
+                payload = reader.getElement();
+                String s = payload.toString();
                 reader.close();
                 reader = new JsonReader(s);
                 params = reader.getMap();
@@ -77,10 +93,17 @@ public class DirectMethodNode extends DSNode {
         }
         final DSMap parameters = (params != null) ? params : null;
         recordInvoke(parameters);
+        if (dsaMethod == DSAMethod.BATCH) {
+            return batch(payload);
+        }
         if (!path.isEmpty()) {
             final DSList results;
             final String thepath = formatPath(parameters);
-            DSIRequester requester = MainNode.getRequester();
+            DSIRequester requester = MainNode.getRequester(MainNode.getRequesterTimeout());
+            if (requester == null) {
+                return new DeviceMethodData(METHOD_UNAVAILABLE,
+                                            "Not connected to the DSA broker, try again later");
+            }
 //            final DirectMethodHandler handler;
             try {
                 switch(dsaMethod) {
@@ -90,13 +113,13 @@ public class DirectMethodNode extends DSNode {
                         results = ghandler.getUpdate(5000);
                         break;
                     case INVOKE:
-                        SimpleInvokeHandler ihandler = new SimpleInvokeHandler();
-                        requester.invoke(thepath, parameters, ihandler);
-                        results = ihandler.getUpdate(5000);
-                        break;
+                        return invoke(requester, thepath, parameters);
                     case SET:
-                        SimpleRequestHandler shandler = new SimpleRequestHandler();
-                        requester.set(thepath, parameters.get("Value"), shandler);
+                        DSElement value = parameters != null ? parameters.get("Value") : null;
+                        if (value == null) {
+                            return new DeviceMethodData(METHOD_FAILED, "Missing Value");
+                        }
+                        RequesterOps.set(thepath, value, MainNode.getRequesterTimeout());
                         results = new DSList();
                         break;
                     default:
@@ -112,6 +135,77 @@ public class DirectMethodNode extends DSNode {
         }
     }
 
+    /**
+     * Runs the operations of a batch payload, with the path of this node, if any, as the root of
+     * their paths.
+     */
+    private DeviceMethodData batch(DSElement payload) {
+        if (MainNode.getRequester(MainNode.getRequesterTimeout()) == null) {
+            return new DeviceMethodData(METHOD_UNAVAILABLE,
+                                        "Not connected to the DSA broker, try again later");
+        }
+        try {
+            //the operations have run, so the response must report them even if it's too large
+            DSMap resp = MethodBatch.fit(MethodBatch.run(path, payload), RESPONSE_BUDGET);
+            return new DeviceMethodData(METHOD_SUCCESS, resp.toString());
+        } catch (RuntimeException e) {
+            return new DeviceMethodData(METHOD_FAILED, e.getMessage());
+        }
+    }
+
+    /**
+     * Invokes the action and responds with all rows of its results. Results that don't fit in a
+     * method response are uploaded to the hub's storage container, and the response names the
+     * blob instead. The response is always sent within {@link #METHOD_DEADLINE}; an upload that
+     * is still running then is answered with 202 and finishes in the background.
+     */
+    private DeviceMethodData invoke(DSIRequester requester, String thepath, DSMap parameters) {
+        long deadline = System.currentTimeMillis() + METHOD_DEADLINE;
+        final MethodResultCollector collector =
+                new MethodResultCollector(RESPONSE_BUDGET, MAX_SPILL_BYTES);
+        boolean uploading = false;
+        try {
+            requester.invoke(thepath, parameters != null ? parameters : new DSMap(), collector);
+            collector.waitForClose(RESULT_IDLE_TIMEOUT, deadline);
+            String json = collector.getJson();
+            if (json != null) {
+                return new DeviceMethodData(METHOD_SUCCESS, json);
+            }
+            File file = collector.getSpillFile();
+            String blobName = methodName + "/" + System.currentTimeMillis() + ".json";
+            LocalDeviceNode device = (LocalDeviceNode) getAncestor(LocalDeviceNode.class);
+            //the upload discards the spill file once it's done with it
+            uploading = true;
+            IotHubStatusCode status = device.uploadBlob(
+                    blobName, file, Math.max(0, deadline - System.currentTimeMillis()),
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            collector.discard();
+                        }
+                    });
+            DSMap resp = new DSMap().put("blob", blobName)
+                                    .put("size", collector.getSpillSize())
+                                    .put("rows", collector.getRowCount())
+                                    .put("truncated", collector.isTruncated());
+            if (status == null) {
+                resp.put("uploading", true);
+                return new DeviceMethodData(METHOD_ACCEPTED, resp.toString());
+            }
+            if (status != IotHubStatusCode.OK && status != IotHubStatusCode.OK_EMPTY) {
+                return new DeviceMethodData(METHOD_FAILED,
+                                            "Results too large and upload failed: " + status);
+            }
+            return new DeviceMethodData(METHOD_SUCCESS, resp.toString());
+        } catch (Exception e) {
+            return new DeviceMethodData(METHOD_FAILED, e.getMessage());
+        } finally {
+            if (!uploading) {
+                collector.discard();
+            }
+        }
+    }
+
     private String formatPath(DSMap parameters) {
         String fpath = path;
         if (parameters != null) {
@@ -0,0 +1,383 @@
+package org.iot.dsa.iothub;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.iot.dsa.node.DSBool;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSMap.Entry;
+import org.iot.dsa.node.DSNull;
+import org.iot.dsa.node.DSString;
+
+/**
+ * The leaves of a device twin, stored flat by path rather than as a tree of nodes. Nested twin
+ * properties are flattened into paths separated by {@value #SEPARATOR}, which twin property
+ * names can't contain. Numbers and booleans are kept in a primitive array, so a leaf costs little
+ * more than its path. The names of the children of every branch are indexed, so listing a
+ * branch or removing a subtree only touches that part of the tree.
+ *
+ * <p>A {@link TwinView} presents the store as DSA nodes, but only for the parts of the tree a
+ * client is looking at.
+ */
+public class FlatTwinStore {
+
+    static final char SEPARATOR = '.';
+
+    private static final byte BOOL = 1;
+    private static final byte LIST = 4;
+    private static final byte NULL = 0;
+    private static final byte NUMBER = 2;
+    private static final byte STRING = 3;
+
+    /**
+     * Branch path, "" for the top, to the names of its children and the number of leaves at or
+     * below each of them.
+     */
+    private final HashMap<String, TreeMap<String, Integer>> branches =
+            new HashMap<String, TreeMap<String, Integer>>();
+    private int free = -1;
+    private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+    private Listener listener;
+    /**
+     * Numbers and booleans (0 or 1) by slot. For free slots, the next free slot.
+     */
+    private double[] numbers = new double[16];
+    /**
+     * Strings and lists by slot.
+     */
+    private Object[] objects = new Object[16];
+    private String[] paths = new String[16];
+    private byte[] types = new byte[16];
+
+    /**
+     * Notified after the store changes.
+     */
+    public interface Listener {
+
+        /**
+         * @param path The path that was set or removed, may be a branch.
+         */
+        void onChanged(String path);
+
+    }
+
+    /**
+     * Describes an immediate child of a path.
+     */
+    public static class Child {
+
+        public final boolean leaf;
+        public final String name;
+
+        Child(String name, boolean leaf) {
+            this.name = name;
+            this.leaf = leaf;
+        }
+    }
+
+    public static String childPath(String prefix, String name) {
+        return prefix.isEmpty() ? name : prefix + SEPARATOR + name;
+    }
+
+    /**
+     * @return The value of the leaf, or null if there isn't one.
+     */
+    public synchronized DSElement get(String path) {
+        Integer slot = index.get(path);
+        return slot != null ? element(slot) : null;
+    }
+
+    /**
+     * @return The immediate children of the path in name order.
+     */
+    public synchronized List<Child> getChildren(String prefix) {
+        TreeMap<String, Integer> names = branches.get(prefix);
+        if (names == null) {
+            return new ArrayList<Child>(0);
+        }
+        List<Child> list = new ArrayList<Child>(names.size());
+        for (String name : names.keySet()) {
+            list.add(new Child(name, index.containsKey(childPath(prefix, name))));
+        }
+        return list;
+    }
+
+    /**
+     * @return True if the path is a branch with at least one leaf below it.
+     */
+    public synchronized boolean hasChildren(String path) {
+        return branches.containsKey(path);
+    }
+
+    /**
+     * Builds the nested value of a path as used by the IoT Hub client: a map for a branch, or the
+     * primitive of a leaf.
+     *
+     * @return Null if there is nothing at the path.
+     */
+    public synchronized Object getObject(String path) {
+        Integer slot = index.get(path);
+        if (slot != null) {
+            return object(slot);
+        }
+        if (!branches.containsKey(path)) {
+            return null;
+        }
+        Map<String, Object> map = new HashMap<String, Object>();
+        int start = path.isEmpty() ? 0 : path.length() + 1;
+        for (String leaf : leavesBelow(path)) {
+            putNested(map, leaf.substring(start), object(index.get(leaf)));
+        }
+        return map;
+    }
+
+    /**
+     * Removes the path and everything below it.
+     */
+    public void remove(String path) {
+        boolean changed;
+        synchronized (this) {
+            changed = removeTree(path);
+        }
+        if (changed) {
+            fire(path);
+        }
+    }
+
+    /**
+     * Sets a value. Maps, whether DSMaps or java maps, replace everything below the path with
+     * their flattened leaves.
+     */
+    public void put(String path, Object value) {
+        synchronized (this) {
+            removeTree(path);
+            putFlat(path, value);
+        }
+        fire(path);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return Every leaf by its path, for persisting the store. Passing each entry to
+     * {@link #put(String, Object)} restores it.
+     */
+    public synchronized DSMap toFlatMap() {
+        DSMap map = new DSMap();
+        for (Map.Entry<String, Integer> e : index.entrySet()) {
+            map.put(e.getKey(), element(e.getValue()));
+        }
+        return map;
+    }
+
+    private int allocate() {
+        if (free >= 0) {
+            int slot = free;
+            free = (int) numbers[slot];
+            return slot;
+        }
+        int slot = index.size();
+        if (slot == paths.length) {
+            int len = slot * 2;
+            paths = Arrays.copyOf(paths, len);
+            objects = Arrays.copyOf(objects, len);
+            numbers = Arrays.copyOf(numbers, len);
+            types = Arrays.copyOf(types, len);
+        }
+        return slot;
+    }
+
+    private DSElement element(int slot) {
+        switch (types[slot]) {
+            case BOOL:
+                return DSBool.valueOf(numbers[slot] != 0);
+            case NUMBER:
+                return DSDouble.valueOf(numbers[slot]);
+            case STRING:
+                return DSString.valueOf(objects[slot]);
+            case LIST:
+                return ((DSList) objects[slot]).copy();
+            default:
+                return DSNull.NULL;
+        }
+    }
+
+    private void fire(String path) {
+        Listener l;
+        synchronized (this) {
+            l = listener;
+        }
+        if (l != null) {
+            l.onChanged(path);
+        }
+    }
+
+    private Object object(int slot) {
+        switch (types[slot]) {
+            case BOOL:
+                return numbers[slot] != 0;
+            case NUMBER:
+                return numbers[slot];
+            case STRING:
+            case LIST:
+                return objects[slot];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Adds a leaf to the child counts of each of its ancestors, or removes it.
+     */
+    private void indexLeaf(String path, boolean add) {
+        String prefix = "";
+        int start = 0;
+        while (true) {
+            int end = path.indexOf(SEPARATOR, start);
+            String name = path.substring(start, end < 0 ? path.length() : end);
+            TreeMap<String, Integer> names = branches.get(prefix);
+            if (add) {
+                if (names == null) {
+                    names = new TreeMap<String, Integer>();
+                    branches.put(prefix, names);
+                }
+                Integer count = names.get(name);
+                names.put(name, count == null ? 1 : count + 1);
+            } else if (names != null) {
+                Integer count = names.get(name);
+                if (count == null || count <= 1) {
+                    names.remove(name);
+                    if (names.isEmpty()) {
+                        branches.remove(prefix);
+                    }
+                } else {
+                    names.put(name, count - 1);
+                }
+            }
+            if (end < 0) {
+                return;
+            }
+            prefix = path.substring(0, end);
+            start = end + 1;
+        }
+    }
+
+    /**
+     * @return The paths of all leaves below a branch.
+     */
+    private List<String> leavesBelow(String branch) {
+        List<String> leaves = new ArrayList<String>();
+        collectLeaves(branch, leaves);
+        return leaves;
+    }
+
+    private void collectLeaves(String branch, List<String> leaves) {
+        TreeMap<String, Integer> names = branches.get(branch);
+        if (names == null) {
+            return;
+        }
+        for (String name : names.keySet()) {
+            String path = childPath(branch, name);
+            if (index.containsKey(path)) {
+                leaves.add(path);
+            }
+            collectLeaves(path, leaves);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static void putNested(Map<String, Object> map, String relPath, Object value) {
+        int idx = relPath.indexOf(SEPARATOR);
+        while (idx >= 0) {
+            String name = relPath.substring(0, idx);
+            Object child = map.get(name);
+            if (!(child instanceof Map)) {
+                child = new HashMap<String, Object>();
+                map.put(name, child);
+            }
+            map = (Map<String, Object>) child;
+            relPath = relPath.substring(idx + 1);
+            idx = relPath.indexOf(SEPARATOR);
+        }
+        map.put(relPath, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void putFlat(String path, Object value) {
+        if (value instanceof DSMap) {
+            for (Entry entry : (DSMap) value) {
+                putFlat(childPath(path, entry.getKey()), entry.getValue());
+            }
+            return;
+        }
+        if (value instanceof Map) {
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) value).entrySet()) {
+                putFlat(childPath(path, e.getKey()), e.getValue());
+            }
+            return;
+        }
+        int slot = allocate();
+        paths[slot] = path;
+        objects[slot] = null;
+        numbers[slot] = 0;
+        if (value == null || (value instanceof DSElement && ((DSElement) value).isNull())) {
+            types[slot] = NULL;
+        } else if (value instanceof Boolean) {
+            types[slot] = BOOL;
+            numbers[slot] = (Boolean) value ? 1 : 0;
+        } else if (value instanceof Number) {
+            types[slot] = NUMBER;
+            numbers[slot] = ((Number) value).doubleValue();
+        } else if (value instanceof DSElement && ((DSElement) value).isBoolean()) {
+            types[slot] = BOOL;
+            numbers[slot] = ((DSElement) value).toBoolean() ? 1 : 0;
+        } else if (value instanceof DSElement && ((DSElement) value).isNumber()) {
+            types[slot] = NUMBER;
+            numbers[slot] = ((DSElement) value).toDouble();
+        } else if (value instanceof DSList) {
+            types[slot] = LIST;
+            objects[slot] = ((DSList) value).copy();
+        } else {
+            types[slot] = STRING;
+            objects[slot] = value.toString();
+        }
+        index.put(path, slot);
+        indexLeaf(path, true);
+    }
+
+    private void release(int slot) {
+        indexLeaf(paths[slot], false);
+        paths[slot] = null;
+        objects[slot] = null;
+        types[slot] = NULL;
+        numbers[slot] = free;
+        free = slot;
+    }
+
+    private boolean removeTree(String path) {
+        boolean changed = false;
+        Integer slot = index.remove(path);
+        if (slot != null) {
+            release(slot);
+            changed = true;
+        }
+        for (String leaf : leavesBelow(path)) {
+            release(index.remove(leaf));
+            changed = true;
+        }
+        return changed;
+    }
+
+}
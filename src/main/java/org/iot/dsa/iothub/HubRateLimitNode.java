@@ -0,0 +1,110 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSJavaEnum;
+import org.iot.dsa.node.DSLong;
+import org.iot.dsa.node.DSNode;
+
+/**
+ * Holds the rate limiters shared by all local devices registered in the same IoT Hub. The limits
+ * are derived from the tier and unit count of the hub, and adapt to throttling responses.
+ */
+public class HubRateLimitNode extends DSNode {
+
+    static final String TIER = "Tier";
+    static final String UNITS = "Units";
+    private static final long STATS_INTERVAL = 5000;
+    private static final String D2C_RATE = "D2C Rate";
+    private static final String TWIN_RATE = "Twin Update Rate";
+    private static final String THROTTLED = "Throttled Responses";
+
+    private AdaptiveRateLimiter d2cLimiter = new AdaptiveRateLimiter(0);
+    private DSInfo d2cRate = getInfo(D2C_RATE);
+    private DSInfo throttled = getInfo(THROTTLED);
+    private AdaptiveRateLimiter twinLimiter = new AdaptiveRateLimiter(0);
+    private DSInfo twinRate = getInfo(TWIN_RATE);
+    private DSRuntime.Timer statsTimer;
+
+    public AdaptiveRateLimiter getD2CLimiter() {
+        return d2cLimiter;
+    }
+
+    public AdaptiveRateLimiter getTwinLimiter() {
+        return twinLimiter;
+    }
+
+    /**
+     * Updates the read only rate values, called after the limiters have changed.
+     */
+    public void refreshStats() {
+        put(d2cRate, DSDouble.valueOf(d2cLimiter.getRate()));
+        put(twinRate, DSDouble.valueOf(twinLimiter.getRate()));
+        put(throttled, DSLong.valueOf(d2cLimiter.getThrottledCount()
+                                              + twinLimiter.getThrottledCount()));
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(TIER, DSJavaEnum.valueOf(HubTier.S1));
+        declareDefault(UNITS, DSLong.valueOf(1));
+        declareDefault(D2C_RATE, DSDouble.valueOf(0)).setTransient(true).setReadOnly(true);
+        declareDefault(TWIN_RATE, DSDouble.valueOf(0)).setTransient(true).setReadOnly(true);
+        declareDefault(THROTTLED, DSLong.valueOf(0)).setTransient(true).setReadOnly(true);
+    }
+
+    @Override
+    protected void onChildChanged(DSInfo info) {
+        super.onChildChanged(info);
+        String name = info.getName();
+        if (TIER.equals(name) || UNITS.equals(name)) {
+            configure();
+        }
+    }
+
+    @Override
+    protected void onStopped() {
+        super.onStopped();
+        if (statsTimer != null) {
+            statsTimer.cancel();
+            statsTimer = null;
+        }
+    }
+
+    @Override
+    protected void onStarted() {
+        super.onStarted();
+        configure();
+    }
+
+    @Override
+    protected void onStable() {
+        super.onStable();
+        statsTimer = DSRuntime.runAfterDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshStats();
+            }
+        }, STATS_INTERVAL, STATS_INTERVAL);
+    }
+
+    private void configure() {
+        HubTier tier;
+        DSIObject t = get(TIER);
+        try {
+            tier = t != null ? HubTier.valueOf(t.toString()) : HubTier.S1;
+        } catch (IllegalArgumentException e) {
+            warn("Unknown hub tier " + t);
+            tier = HubTier.S1;
+        }
+        DSIObject u = get(UNITS);
+        int units = u instanceof DSLong ? (int) ((DSLong) u).toLong() : 1;
+        d2cLimiter.setCeiling(tier.getD2CRate(units));
+        twinLimiter.setCeiling(tier.getTwinUpdateRate(units));
+        refreshStats();
+    }
+
+}
@@ -0,0 +1,45 @@
+package org.iot.dsa.iothub;
+
+/**
+ * IoT Hub pricing tiers, along with the per-hub throttling quotas that apply to device operations
+ * at each tier. Quotas are in operations per second and scale with the number of units.
+ */
+public enum HubTier {
+
+    F1(100, 0, 10, 0),
+    B1(100, 12, 0, 0),
+    B2(0, 120, 0, 0),
+    B3(0, 6000, 0, 0),
+    S1(100, 12, 10, 1),
+    S2(0, 120, 0, 50),
+    S3(0, 6000, 0, 250);
+
+    private final double d2cMin;
+    private final double d2cPerUnit;
+    private final double twinUpdateMin;
+    private final double twinUpdatePerUnit;
+
+    HubTier(double d2cMin, double d2cPerUnit, double twinUpdateMin,
+            double twinUpdatePerUnit) {
+        this.d2cMin = d2cMin;
+        this.d2cPerUnit = d2cPerUnit;
+        this.twinUpdateMin = twinUpdateMin;
+        this.twinUpdatePerUnit = twinUpdatePerUnit;
+    }
+
+    /**
+     * @return Device-to-cloud sends per second allowed for a hub with this many units.
+     */
+    public double getD2CRate(int units) {
+        return Math.max(d2cMin, d2cPerUnit * Math.max(units, 1));
+    }
+
+    /**
+     * @return Twin updates per second allowed for a hub with this many units, 0 if the tier does
+     * not support device twins.
+     */
+    public double getTwinUpdateRate(int units) {
+        return Math.max(twinUpdateMin, twinUpdatePerUnit * Math.max(units, 1));
+    }
+
+}
@@ -0,0 +1,271 @@
+package org.iot.dsa.iothub;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.node.DSBool;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSLong;
+import org.iot.dsa.node.DSNode;
+import org.iot.dsa.node.DSString;
+
+/**
+ * Sheds load from the D2C rules of a device as its backlog of unsent updates grows. The backlog
+ * is compared to three watermarks, and each level sheds more from the lower priority rules:
+ * first their minimum refresh interval is raised, then they are switched to conflation, and
+ * finally their subscriptions are paused. A level is left again once the backlog has drained to
+ * half its watermark.
+ *
+ * <p>How far a rule is shed is {@code level + priority - 2}, with priorities High 0, Normal 1
+ * and Low 2. So at the first level only Low rules are throttled, and High rules are at most
+ * throttled.
+ */
+public class LoadSheddingNode extends DSNode {
+
+    static final String PRIORITY = "Priority";
+    static final int STEP_CONFLATE = 2;
+    static final int STEP_PAUSE = 3;
+    static final int STEP_THROTTLE = 1;
+
+    private static final String CRITICAL_BYTES = "Critical Bytes";
+    private static final String CRITICAL_WATERMARK = "Critical Watermark";
+    private static final String ENABLED = "Enabled";
+    private static final String HIGH_WATERMARK = "High Watermark";
+    private static final String LEVEL = "Shedding Level";
+    private static final String[] LEVEL_NAMES = {"None", "Throttling", "Conflating", "Pausing"};
+    private static final String LOW_WATERMARK = "Low Watermark";
+    private static final String PAUSED = "Paused Rules";
+    private static final String QUEUED_BYTES = "Queued Bytes";
+    private static final String QUEUED_MESSAGES = "Queued Messages";
+    private static final String SHED_INTERVAL = "Shed Interval";
+    private static final long STATS_INTERVAL = 2000;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile long criticalBytes = 16 * 1024 * 1024;
+    private volatile boolean enabled = true;
+    private volatile int level = 0;
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicInteger paused = new AtomicInteger();
+    private final Set<D2CRule> rules = ConcurrentHashMap.newKeySet();
+    private volatile long shedInterval = 10000;
+    private DSRuntime.Timer statsTimer;
+    private final long[] watermarks = {0, 1000, 5000, 20000};
+
+    /**
+     * @return The current level, 0 when nothing is shed.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return The priorities rules can have.
+     */
+    static DSList getPriorities() {
+        return new DSList().add("High").add("Normal").add("Low");
+    }
+
+    /**
+     * @return 0 for High, 1 for Normal and 2 for Low, Normal if the name is unknown.
+     */
+    static int parsePriority(String name) {
+        if ("High".equalsIgnoreCase(name)) {
+            return 0;
+        }
+        if ("Low".equalsIgnoreCase(name)) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * @return The minimum refresh interval of throttled rules, in millis.
+     */
+    public long getShedInterval() {
+        return shedInterval;
+    }
+
+    /**
+     * @param priority 0 for High, 1 for Normal and 2 for Low.
+     * @return How far to shed a rule of the priority at the current level, 0 for not at all, up
+     * to {@link #STEP_PAUSE}.
+     */
+    public int getStep(int priority) {
+        int lvl = level;
+        return lvl == 0 ? 0 : Math.max(0, lvl + priority - 2);
+    }
+
+    /**
+     * Called by a rule after removing updates from its queue, whether sent or discarded.
+     */
+    void onDequeued(int count, long size) {
+        long m = messages.addAndGet(-count);
+        long b = bytes.addAndGet(-size);
+        int lvl = level;
+        if (lvl > 0 && m < watermarks[lvl] / 2 && b < criticalBytes / 2) {
+            evaluate();
+        }
+    }
+
+    /**
+     * Called by a rule after adding an update to its queue.
+     */
+    void onQueued(long size) {
+        long m = messages.incrementAndGet();
+        long b = bytes.addAndGet(size);
+        int lvl = level;
+        if (lvl < 3 && enabled && (m >= watermarks[lvl + 1] || b >= criticalBytes)) {
+            evaluate();
+        }
+    }
+
+    /**
+     * Called by a rule when it pauses or resumes its subscription.
+     */
+    void onPaused(boolean pause) {
+        paused.addAndGet(pause ? 1 : -1);
+    }
+
+    void register(D2CRule rule) {
+        rules.add(rule);
+    }
+
+    void unregister(D2CRule rule) {
+        rules.remove(rule);
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(ENABLED, DSBool.TRUE);
+        declareDefault(LOW_WATERMARK, DSLong.valueOf(watermarks[1]));
+        declareDefault(HIGH_WATERMARK, DSLong.valueOf(watermarks[2]));
+        declareDefault(CRITICAL_WATERMARK, DSLong.valueOf(watermarks[3]));
+        declareDefault(CRITICAL_BYTES, DSLong.valueOf(criticalBytes));
+        declareDefault(SHED_INTERVAL, DSDouble.valueOf(10));
+        declareDefault(LEVEL, DSString.valueOf(LEVEL_NAMES[0])).setTransient(true)
+                                                              .setReadOnly(true);
+        declareDefault(QUEUED_MESSAGES, DSLong.valueOf(0)).setTransient(true).setReadOnly(true);
+        declareDefault(QUEUED_BYTES, DSLong.valueOf(0)).setTransient(true).setReadOnly(true);
+        declareDefault(PAUSED, DSLong.valueOf(0)).setTransient(true).setReadOnly(true);
+    }
+
+    @Override
+    protected void onChildChanged(DSInfo info) {
+        super.onChildChanged(info);
+        if (!info.isValue() || info.isTransient()) {
+            return;
+        }
+        configure();
+        evaluate();
+    }
+
+    @Override
+    protected void onStable() {
+        super.onStable();
+        cancelStats();
+        statsTimer = DSRuntime.runAfterDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshStats();
+            }
+        }, STATS_INTERVAL, STATS_INTERVAL);
+    }
+
+    @Override
+    protected void onStarted() {
+        super.onStarted();
+        configure();
+    }
+
+    @Override
+    protected void onStopped() {
+        super.onStopped();
+        cancelStats();
+    }
+
+    private void cancelStats() {
+        if (statsTimer != null) {
+            statsTimer.cancel();
+            statsTimer = null;
+        }
+    }
+
+    private void configure() {
+        enabled = getBool(ENABLED, true);
+        watermarks[1] = getLong(LOW_WATERMARK, 1000);
+        watermarks[2] = Math.max(watermarks[1], getLong(HIGH_WATERMARK, 5000));
+        watermarks[3] = Math.max(watermarks[2], getLong(CRITICAL_WATERMARK, 20000));
+        criticalBytes = getLong(CRITICAL_BYTES, 16 * 1024 * 1024);
+        DSIObject interval = get(SHED_INTERVAL);
+        shedInterval = interval instanceof DSElement
+                ? (long) (((DSElement) interval).toDouble() * 1000) : 10000;
+    }
+
+    /**
+     * Moves to the level the backlog calls for, entering levels at their watermark and leaving
+     * them at half of it.
+     */
+    private void evaluate() {
+        boolean changed;
+        int newLevel;
+        synchronized (this) {
+            long m = messages.get();
+            long b = bytes.get();
+            newLevel = level;
+            if (!enabled) {
+                newLevel = 0;
+            } else {
+                while (newLevel < 3 && m >= watermarks[newLevel + 1]) {
+                    newLevel++;
+                }
+                if (b >= criticalBytes) {
+                    newLevel = 3;
+                }
+                while (newLevel > 0 && m < watermarks[newLevel] / 2 && b < criticalBytes / 2) {
+                    newLevel--;
+                }
+            }
+            changed = newLevel != level;
+            level = newLevel;
+        }
+        if (!changed) {
+            return;
+        }
+        info("Load shedding level of " + getParent().getName() + " is now "
+                     + LEVEL_NAMES[newLevel]);
+        BlockingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (D2CRule rule : rules) {
+                    rule.onShedLevel();
+                }
+                refreshStats();
+            }
+        });
+    }
+
+    private boolean getBool(String name, boolean def) {
+        DSIObject obj = get(name);
+        return obj instanceof DSBool ? ((DSBool) obj).toBoolean() : def;
+    }
+
+    private long getLong(String name, long def) {
+        DSIObject obj = get(name);
+        return obj instanceof DSElement ? ((DSElement) obj).toLong() : def;
+    }
+
+    private void refreshStats() {
+        put(LEVEL, DSString.valueOf(LEVEL_NAMES[level]));
+        put(QUEUED_MESSAGES, DSLong.valueOf(Math.max(0, messages.get())));
+        put(QUEUED_BYTES, DSLong.valueOf(Math.max(0, bytes.get())));
+        put(PAUSED, DSLong.valueOf(paused.get()));
+    }
+
+}
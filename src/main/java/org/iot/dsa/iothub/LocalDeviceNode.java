@@ -1,6 +1,5 @@
 package org.iot.dsa.iothub;
 
-import com.microsoft.azure.sdk.iot.device.DeviceClient;
 import com.microsoft.azure.sdk.iot.device.DeviceTwin.Device;
 import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodCallback;
 import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodData;
@@ -13,8 +12,6 @@ import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
 import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
 import com.microsoft.azure.sdk.iot.device.Message;
 import com.microsoft.azure.sdk.iot.device.MessageCallback;
-import com.microsoft.azure.sdk.iot.device.MessageProperty;
-import com.microsoft.azure.sdk.iot.device.MessageType;
 import com.microsoft.azure.sdk.iot.device.transport.IotHubConnectionStatus;
 import java.io.File;
 import java.io.FileInputStream;
@@ -22,23 +19,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.iot.dsa.DSRuntime;
 import org.iot.dsa.conn.DSConnection;
 import org.iot.dsa.dslink.Action.ResultsType;
 import org.iot.dsa.dslink.ActionResults;
 import org.iot.dsa.dslink.DSRequestException;
 import org.iot.dsa.dslink.restadapter.Constants;
 import org.iot.dsa.dslink.restadapter.ResponseWrapper;
-import org.iot.dsa.iothub.node.BoolNode;
-import org.iot.dsa.iothub.node.DoubleNode;
-import org.iot.dsa.iothub.node.ListNode;
-import org.iot.dsa.iothub.node.StringNode;
+import org.iot.dsa.io.json.JsonReader;
 import org.iot.dsa.node.DSBool;
+import org.iot.dsa.node.DSDouble;
 import org.iot.dsa.node.DSElement;
 import org.iot.dsa.node.DSFlexEnum;
 import org.iot.dsa.node.DSIObject;
-import org.iot.dsa.node.DSIValue;
 import org.iot.dsa.node.DSInfo;
 import org.iot.dsa.node.DSJavaEnum;
 import org.iot.dsa.node.DSList;
@@ -59,19 +59,62 @@ import org.iot.dsa.time.DSDateTime;
  */
 public class LocalDeviceNode extends DSConnection {
 
+    /**
+     * How many times a message rejected because of throttling is resent before the
+     * throttled response is returned to the caller.
+     */
+    private static final int MAX_THROTTLED_RETRIES = 5;
+    /**
+     * How many received C2D messages are listed.
+     */
+    private static final int MAX_C2D_MESSAGES = 100;
+    /**
+     * Milliseconds the Upload File action waits for the upload to finish.
+     */
+    private static final long UPLOAD_ACTION_TIMEOUT = 5 * 60 * 1000;
+    private static final String REPORTED_STATE = "Reported State";
+    /**
+     * Milliseconds changes to the reported properties and twin state are gathered before they
+     * are persisted.
+     */
+    private static final long SAVE_DELAY = 2000;
+    private static final String TWIN_STATE = "Twin State";
+    static final String CONNECTION_MODE = "Connection Mode";
+    static final String LINGER = "Linger";
+    static final String WAKE_INTERVAL = "Wake Interval";
+    private static final String LOAD_SHEDDING = "Load Shedding";
+    private static final String IDLE_STATUS = "Idle, connects on demand";
+
     private DSInfo c2d;
     private DSList c2dList = new DSList();
-    private DeviceClient client;
+    private C2DRoutingNode c2dRules;
+    private DeviceTransport client;
     private Object clientLock = new Object();
     private String connectionString;
-    private DSNode desiredNode;
+    private TwinView desiredNode;
+    private final FlatTwinStore desiredStore = new FlatTwinStore();
     private String deviceId;
+    private DesiredBindingsNode desiredBindings;
+    private DeviceImport deviceImport;
+    /**
+     * The last properties map passed to {@link #doSendD2C(DSMap, String, boolean)}, and its
+     * precomputed set.
+     */
+    private volatile CachedPropertySet lastPropertySet;
     private DSNode methodsNode;
+    private volatile OnDemandConnector onDemand;
     private IotHubClientProtocol protocol;
+    private HubRateLimitNode rateLimits;
     private ReportedPropsNode reportedNode;
+    private final FlatTwinStore reportedStore = new FlatTwinStore();
+    private boolean reportedDirty;
+    private final Object saveLock = new Object();
+    private DSRuntime.Timer saveTimer;
     private DSNode rulesNode;
     private DSInfo status;
     private Device twin;
+    private TwinStateStore twinState;
+    private boolean twinStateDirty;
 
     public LocalDeviceNode() {
     }
@@ -87,39 +130,133 @@ public class LocalDeviceNode extends DSConnection {
         this.connectionString = connectionString;
     }
 
+    /**
+     * Sends a D2C message with properties given as a map. The precomputed form of the last map
+     * is kept, so callers that send with the same properties each time, such as the Send D2C
+     * Message action, don't rebuild it for every message.
+     */
     public ResponseWrapper doSendD2C(DSMap properties, String messageBody, boolean awaitResponse) {
-        final List<IotHubStatusCode> lockobj = new ArrayList<IotHubStatusCode>();
-        synchronized (clientLock) {
-            if (client == null) {
-                throw new DSRequestException("Client not initialized");
-            }
-            Message msg = new Message(messageBody);
-            for (Entry entry : properties) {
-                msg.setProperty(entry.getKey(), entry.getValue().toString());
-            }
-            msg.setMessageId(java.util.UUID.randomUUID().toString());
+        return doSendD2C(null, getPropertySet(properties), null, messageBody, awaitResponse);
+    }
 
-            if (!awaitResponse) {
-                client.sendEventAsync(msg, null, null);
-                return new SimpleResponseWrapper(202, "Message sent, not waiting for response",
-                                                 DSDateTime.now());
-            }
-            client.sendEventAsync(msg, new ResponseCallback(), lockobj);
+    private D2CPropertySet getPropertySet(DSMap properties) {
+        DSMap key = properties != null ? properties : new DSMap();
+        CachedPropertySet cached = lastPropertySet;
+        if (cached != null && cached.properties.equals(key)) {
+            return cached.set;
         }
-        synchronized (lockobj) {
-            try {
-                lockobj.wait();
-            } catch (InterruptedException e) {
+        cached = new CachedPropertySet(key.copy());
+        lastPropertySet = cached;
+        return cached.set;
+    }
+
+    private static class CachedPropertySet {
+
+        final DSMap properties;
+        final D2CPropertySet set;
+
+        CachedPropertySet(DSMap properties) {
+            this.properties = properties;
+            this.set = new D2CPropertySet(properties);
+        }
+    }
+
+    /**
+     * Sends a D2C message.
+     *
+     * @param rule          Name of the rule sending the message, for Flight Recorder events, or
+     *                      null.
+     * @param propertySet   The precomputed message properties of the sender.
+     * @param update        The update whose values resolve the placeholders of the properties,
+     *                      or null.
+     * @param messageBody   The body of the message.
+     * @param awaitResponse Whether to wait for IoT Hub to acknowledge the message.
+     */
+    public ResponseWrapper doSendD2C(String rule, D2CPropertySet propertySet, D2CUpdate update,
+                                     String messageBody, boolean awaitResponse) {
+        Object timer = PipelineEvents.beginD2CSend();
+        byte[] body = MessageEncoder.encode(messageBody);
+        ResponseWrapper resp = null;
+        OnDemandConnector od = beginWork();
+        try {
+            resp = sendD2C(propertySet, update, body, awaitResponse);
+            return resp;
+        } finally {
+            endWork(od);
+            PipelineEvents.endD2CSend(timer, getName(), rule,
+                                      update != null ? update.getPath() : "",
+                                      body.length,
+                                      resp != null ? String.valueOf(resp.getCode()) : "error");
+        }
+    }
+
+    private ResponseWrapper sendD2C(D2CPropertySet propertySet, D2CUpdate update, byte[] body,
+                                    boolean awaitResponse) {
+        AdaptiveRateLimiter limiter = rateLimits != null ? rateLimits.getD2CLimiter() : null;
+        int attempt = 0;
+        while (true) {
+            if (limiter != null) {
+                limiter.acquire(0);
+            }
+            PendingSend pending = awaitResponse ? new PendingSend() : null;
+            synchronized (clientLock) {
+                if (client == null) {
+                    throw new DSRequestException("Client not initialized");
+                }
+                Message msg = newMessage(propertySet, update, body);
+                if (!awaitResponse) {
+                    OnDemandConnector od = holdWork();
+                    try {
+                        client.sendEventAsync(msg, new RetryingSend(propertySet, update, body, od),
+                                              null);
+                    } catch (RuntimeException e) {
+                        endWork(od);
+                        throw e;
+                    }
+                    return new SimpleResponseWrapper(202, "Message sent, not waiting for response",
+                                                     DSDateTime.now());
+                }
+                client.sendEventAsync(msg, pending, limiter);
             }
-            if (lockobj.isEmpty()) {
+            IotHubStatusCode respStatus = pending.await();
+            if (respStatus == null) {
                 return new SimpleResponseWrapper(408, "No response from Iot Hub", DSDateTime.now());
             }
-            IotHubStatusCode respStatus = lockobj.get(0);
-            return new SimpleResponseWrapper(Util.iotHubStatusToHttpCode(respStatus),
-                                             respStatus.toString(), DSDateTime.now());
+            if (!Util.isThrottled(respStatus) || ++attempt > MAX_THROTTLED_RETRIES) {
+                return new SimpleResponseWrapper(Util.iotHubStatusToHttpCode(respStatus),
+                                                 respStatus.toString(), DSDateTime.now());
+            }
+            debug("D2C message throttled with " + respStatus + ", retrying");
         }
     }
 
+    private static Message newMessage(D2CPropertySet propertySet, D2CUpdate update,
+                                      byte[] body) {
+        Message msg = new Message(body);
+        propertySet.apply(msg, update);
+        msg.setMessageId(MessageIds.next());
+        return msg;
+    }
+
+    /**
+     * Adds D2C rules, for example from the rule templates of a device import.
+     *
+     * @param rules Rule parameters by rule name.
+     */
+    public void addRules(DSMap rules) {
+        DSNode container = getNode("D2C Rules");
+        for (Entry entry : rules) {
+            if (entry.getValue().isMap()) {
+                DSMap params = DeviceImport.resolveTemplate(entry.getValue().toMap(), getDeviceId());
+                container.add(entry.getKey(), new D2CRuleNode(params));
+            }
+        }
+    }
+
+    public String getDeviceId() {
+        return deviceId != null ? deviceId : getName();
+    }
+
     public DirectMethodNode getDirectMethod(String methodName) {
         if (methodsNode == null) {
             return null;
@@ -131,8 +268,17 @@ public class LocalDeviceNode extends DSConnection {
         return null;
     }
 
+    /**
+     * Adds a received message to the list, dropping the oldest once it holds
+     * {@link #MAX_C2D_MESSAGES}.
+     */
     public void incomingMessage(DSMap message) {
-        c2dList.add(message);
+        synchronized (c2dList) {
+            while (c2dList.size() >= MAX_C2D_MESSAGES) {
+                c2dList.remove(0);
+            }
+            c2dList.add(message);
+        }
         fire(VALUE_CHANGED_EVENT, c2d, null);
     }
 
@@ -147,28 +293,35 @@ public class LocalDeviceNode extends DSConnection {
 
     public void setupClient() throws IOException, URISyntaxException {
         synchronized (clientLock) {
-            this.client = new DeviceClient(connectionString, protocol);
+            this.client = MainNode.getTransportType().newTransport(connectionString, protocol);
             MessageCallback callback = new C2DMessageCallback();
             client.setMessageCallback(callback, null);
-            client.registerConnectionStatusChangeCallback(new ConnectionStatusCallback(), null);
+            client.setConnectionStatusCallback(new ConnectionStatusCallback(), null);
 
             client.open();
 
-            client.subscribeToDeviceMethod(new DirectMethodCallback(), null,
-                                           new DirectMethodStatusCallback(), null);
+            client.subscribeToMethods(new DirectMethodCallback(),
+                                      new DirectMethodStatusCallback());
 
             twin = new Device() {
 
                 @Override
                 public void PropertyCall(String propertyKey, Object propertyValue, Object context) {
-                    desiredNode.put(propertyKey, DSString.valueOf(propertyValue)).setTransient(true)
-                               .setReadOnly(true);
+                    touchOnDemand();
+                    desiredStore.put(propertyKey, propertyValue);
+                    twinState.onDesired(propertyKey, propertyValue);
+                    saveTwinState();
+                    desiredBindings.onDesired(propertyKey, propertyValue);
                 }
             };
-
-            client.startDeviceTwin(new DeviceTwinStatusCallback(), null, twin, null);
-            client.subscribeToDesiredProperties(twin.getDesiredProp());
         }
+        final DeviceTransport started = client;
+        BlockingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                startTwin(started);
+            }
+        });
     }
 
     @Override
@@ -180,18 +333,56 @@ public class LocalDeviceNode extends DSConnection {
     protected void declareDefaults() {
         super.declareDefaults();
         declareDefault("Methods", new MethodsNode());
-        declareDefault("Desired Properties", new DSNode());
+        declareDefault("Desired Properties", new TwinView());
+        declareDefault("Desired Bindings", new DesiredBindingsNode());
+        declareDefault("Reported Bindings", new ReportedBindingsNode());
         declareDefault("Reported Properties", new ReportedPropsNode());
         declareDefault("D2C Rules", new D2CRoutingNode());
+        declareDefault("C2D Rules", new C2DRoutingNode());
+        declareDefault(LOAD_SHEDDING, new LoadSheddingNode());
+
+        declareDefault(CONNECTION_MODE, DSJavaEnum.valueOf(ConnectionMode.ALWAYS));
+        declareDefault(LINGER, DSDouble.valueOf(30));
+        declareDefault(WAKE_INTERVAL, DSDouble.valueOf(900));
 
         declareDefault("Send D2C Message", makeSendMessageAction());
         declareDefault("Upload File", makeUploadFileAction());
         declareDefault("Refresh", makeRefreshAction());
     }
 
+    /**
+     * Connects to IoT Hub on the calling thread.
+     *
+     * @return True if the client was opened successfully.
+     */
+    boolean connectNow() {
+        return init();
+    }
+
+    /**
+     * @return The text of the STATUS value.
+     */
+    String getStatusText() {
+        return status != null ? status.getValue().toString() : "";
+    }
+
+    /**
+     * Defers the connection of this device to the connection pool of an import. Must be called
+     * before the device is added to the tree.
+     */
+    void setImport(DeviceImport deviceImport) {
+        this.deviceImport = deviceImport;
+    }
+
     @Override
     protected void doConnect() {
-        init();
+        DeviceImport imp = deviceImport;
+        if (imp != null) {
+            deviceImport = null;
+            imp.connect(this);
+        } else {
+            init();
+        }
     }
 
     @Override
@@ -199,20 +390,52 @@ public class LocalDeviceNode extends DSConnection {
         // TODO Auto-generated method stub
     }
 
+    /**
+     * Only rebuilds the client if the protocol or connection string actually changed.
+     */
     protected void edit(DSMap parameters) {
         String protocolStr = parameters.getString("Protocol");
-        protocol = IotHubClientProtocol.valueOf(protocolStr);
-        connectionString = parameters.getString("Connection String");
+        IotHubClientProtocol newProtocol = IotHubClientProtocol.valueOf(protocolStr);
+        String newConnString = parameters.getString("Connection String");
+        boolean sameConnString = newConnString == null || newConnString.isEmpty()
+                ? connectionString == null || connectionString.isEmpty()
+                : newConnString.equals(connectionString);
+        if (newProtocol == protocol && sameConnString) {
+            return;
+        }
+        protocol = newProtocol;
+        connectionString = newConnString;
         init();
     }
 
+    @Override
+    protected void onChildChanged(DSInfo info) {
+        super.onChildChanged(info);
+        String name = info.getName();
+        if (CONNECTION_MODE.equals(name) || LINGER.equals(name) || WAKE_INTERVAL.equals(name)) {
+            if (isStable()) {
+                configureConnectionMode();
+                init();
+            }
+        }
+    }
+
     @Override
     protected void onRemoved() {
         super.onRemoved();
+        DeviceImport imp = deviceImport;
+        if (imp != null) {
+            deviceImport = null;
+            imp.fail(getName(), "Removed before connecting");
+        }
+        OnDemandConnector od = onDemand;
+        if (od != null) {
+            od.close();
+        }
         synchronized (clientLock) {
             if (client != null) {
                 try {
-                    client.closeNow();
+                    client.close();
                 } catch (IOException e) {
                     warn(e);
                 }
@@ -234,9 +457,16 @@ public class LocalDeviceNode extends DSConnection {
         c2d = add("Cloud-To-Device Messages", c2dList);
         c2d.setTransient(true).setReadOnly(true);
         methodsNode = getNode("Methods");
-        desiredNode = getNode("Desired Properties");
+        desiredNode = (TwinView) getNode("Desired Properties");
+        desiredBindings = (DesiredBindingsNode) getNode("Desired Bindings");
         reportedNode = (ReportedPropsNode) getNode("Reported Properties");
         rulesNode = getNode("D2C Rules");
+        c2dRules = (C2DRoutingNode) getNode("C2D Rules");
+        for (Entry entry : twinState.getDesired()) {
+            desiredStore.put(entry.getKey(), entry.getValue());
+        }
+        desiredNode.setStore(desiredStore);
+        loadReportedProps();
     }
 
     @Override
@@ -251,6 +481,215 @@ public class LocalDeviceNode extends DSConnection {
             DSIObject cs = get("Connection String");
             connectionString = cs instanceof DSString ? cs.toString() : null;
         }
+        DSIObject ts = get(TWIN_STATE);
+        twinState = new TwinStateStore(ts instanceof DSMap ? (DSMap) ts : null);
+        configureConnectionMode();
+    }
+
+    @Override
+    protected void onStopped() {
+        super.onStopped();
+        flushSaves();
+    }
+
+    /**
+     * Waits until the hub's twin update quota allows another reported properties patch.
+     */
+    private void acquireTwinUpdate() {
+        if (rateLimits != null) {
+            rateLimits.getTwinLimiter().acquire(0);
+        }
+    }
+
+    /**
+     * Starts outbound work, connecting first if this is an idle on-demand device.
+     *
+     * @return The connector to pass to {@link #endWork(OnDemandConnector)}, null if the device
+     * is always connected.
+     */
+    OnDemandConnector beginWork() {
+        OnDemandConnector od = onDemand;
+        if (od != null) {
+            od.begin();
+        }
+        return od;
+    }
+
+    /**
+     * Keeps the connection of an on-demand device open until a response arrives, without
+     * connecting.
+     *
+     * @return The connector to pass to {@link #endWork(OnDemandConnector)}, null if the device
+     * is always connected.
+     */
+    private OnDemandConnector holdWork() {
+        OnDemandConnector od = onDemand;
+        if (od != null) {
+            od.hold();
+        }
+        return od;
+    }
+
+    void endWork(OnDemandConnector od) {
+        if (od != null) {
+            od.end();
+        }
+    }
+
+    private void touchOnDemand() {
+        OnDemandConnector od = onDemand;
+        if (od != null) {
+            od.touch();
+        }
+    }
+
+    /**
+     * Replaces the on-demand connector to match the connection mode settings.
+     */
+    private void configureConnectionMode() {
+        OnDemandConnector old = onDemand;
+        if (old != null) {
+            old.close();
+        }
+        DSIObject mode = get(CONNECTION_MODE);
+        if (mode == null || !ConnectionMode.ON_DEMAND.name().equals(mode.toString())) {
+            onDemand = null;
+            return;
+        }
+        DSIObject linger = get(LINGER);
+        DSIObject wake = get(WAKE_INTERVAL);
+        onDemand = new OnDemandConnector(
+                this, linger instanceof DSElement ? ((DSElement) linger).toDouble() : 30,
+                wake instanceof DSElement ? ((DSElement) wake).toDouble() : 900);
+    }
+
+    /**
+     * Restores the reported properties, and moves any still held as nodes into the store.
+     */
+    private void loadReportedProps() {
+        DSIObject saved = get(REPORTED_STATE);
+        if (saved instanceof DSMap) {
+            for (Entry entry : (DSMap) saved) {
+                reportedStore.put(entry.getKey(), entry.getValue());
+            }
+        }
+        List<String> legacy = new ArrayList<String>();
+        for (DSInfo info : reportedNode) {
+            DSIObject value = info.get();
+            if (!info.isAction() && value instanceof TwinProperty) {
+                reportedStore.put(info.getName(), ((TwinProperty) value).getObject());
+                legacy.add(info.getName());
+            }
+        }
+        for (String name : legacy) {
+            reportedNode.remove(name);
+        }
+        if (!legacy.isEmpty()) {
+            saveReportedProps();
+        }
+        reportedNode.setStore(reportedStore);
+    }
+
+    private void saveReportedProps() {
+        scheduleSave(true, false);
+    }
+
+    private void saveTwinState() {
+        scheduleSave(false, true);
+    }
+
+    /**
+     * Persists the reported properties and twin state after {@link #SAVE_DELAY}, so that a
+     * burst of edits, acknowledgements and desired properties copies each of them once.
+     */
+    private void scheduleSave(boolean reported, boolean state) {
+        synchronized (saveLock) {
+            reportedDirty |= reported;
+            twinStateDirty |= state;
+            if (saveTimer == null) {
+                saveTimer = DSRuntime.runDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushSaves();
+                    }
+                }, SAVE_DELAY);
+            }
+        }
+    }
+
+    /**
+     * Persists whatever changed since the last save.
+     */
+    private void flushSaves() {
+        boolean reported;
+        boolean state;
+        synchronized (saveLock) {
+            if (saveTimer != null) {
+                saveTimer.cancel();
+                saveTimer = null;
+            }
+            reported = reportedDirty;
+            state = twinStateDirty;
+            reportedDirty = false;
+            twinStateDirty = false;
+        }
+        if (reported) {
+            put(REPORTED_STATE, reportedStore.toFlatMap()).setPrivate(true);
+        }
+        if (state) {
+            put(TWIN_STATE, twinState.toMap()).setPrivate(true);
+        }
+    }
+
+    /**
+     * Patches the reported properties that differ from the state IoT Hub last acknowledged.
+     */
+    private void sendChangedReportedProperties(DeviceTransport c) throws IOException {
+        Map<String, Object> current = new HashMap<String, Object>();
+        for (FlatTwinStore.Child child : reportedStore.getChildren("")) {
+            current.put(child.name, reportedStore.getObject(child.name));
+        }
+        Set<Property> props = twinState.diffReported(current);
+        if (props.isEmpty()) {
+            return;
+        }
+        debug("Patching " + props.size() + " of " + current.size() + " reported properties");
+        acquireTwinUpdate();
+        sendPatch(c, twinState.newPatch(props));
+    }
+
+    /**
+     * Hands a patch to the client. Its values only become acknowledged state once IoT Hub has
+     * accepted this very patch, and an on-demand connection stays open until it responds.
+     */
+    private void sendPatch(DeviceTransport c, TwinStateStore.Patch patch) throws IOException {
+        OnDemandConnector od = holdWork();
+        try {
+            c.sendReportedProperties(patch.getProperties(), new PatchCallback(od), patch);
+        } catch (IOException | RuntimeException e) {
+            endWork(od);
+            throw e;
+        }
+        twinState.onPatchSent(patch);
+        PipelineEvents.twinPatchSent(getName(), patch.size());
+    }
+
+    /**
+     * Starts the device twin in the background, so that connecting doesn't wait for the twin to
+     * be fetched. Until it is, the desired properties show the persisted state.
+     */
+    private void startTwin(DeviceTransport c) {
+        try {
+            synchronized (clientLock) {
+                if (client != c) {
+                    return;
+                }
+                c.startTwin(twin, new DeviceTwinStatusCallback());
+            }
+            sendChangedReportedProperties(c);
+        } catch (IOException | RuntimeException e) {
+            warn("Error starting device twin", e);
+        }
     }
 
     private void addDirectMethod(DSMap parameters) {
@@ -260,83 +699,141 @@ public class LocalDeviceNode extends DSConnection {
         methodsNode.add(methodName, new DirectMethodNode(methodName, path, dsaMethod));
     }
 
+    /**
+     * Sets a reported property, or a value nested in one when the name is a dotted path, and
+     * sends the top level property it belongs to.
+     */
     private void addReportedProp(DSMap parameters) {
-        String name = parameters.getString("Name");
-        String vt = parameters.getString("Value Type");
-        TwinProperty vn;
-        switch (vt.charAt(0)) {
-            case 'S':
-                vn = new StringNode();
-                break;
+        String path = parameters.getString("Name");
+        if (path == null || path.isEmpty()) {
+            throw new DSRequestException("Missing name");
+        }
+        String str = parameters.get("Value", "");
+        Object value;
+        switch (parameters.get("Value Type", "String").charAt(0)) {
             case 'N':
-                vn = new DoubleNode();
+                try {
+                    value = Double.valueOf(str.trim());
+                } catch (NumberFormatException e) {
+                    throw new DSRequestException("Not a number: " + str);
+                }
                 break;
             case 'B':
-                vn = new BoolNode();
-                break;
-            case 'L':
-                vn = new ListNode();
+                value = Boolean.valueOf(str.trim());
                 break;
             case 'M':
-                vn = new TwinPropertyNode();
+                value = parseMap(str);
                 break;
             default:
-                vn = null;
-                break;
+                value = str;
         }
-        if (vn != null) {
-            reportedNode.put(name, vn);
-            if (vn instanceof DSNode) {
-                reportedNode.onChange(((DSNode) vn).getInfo());
+        reportedStore.put(path, value);
+        saveReportedProps();
+        String name = topLevel(path);
+        setReportedProperty(name, reportedStore.getObject(name));
+    }
+
+    private static DSMap parseMap(String json) {
+        DSMap map = null;
+        if (!json.trim().isEmpty()) {
+            JsonReader reader = new JsonReader(json);
+            try {
+                map = reader.getMap();
+            } catch (RuntimeException e) {
+                throw new DSRequestException("Not a JSON map: " + json);
+            } finally {
+                reader.close();
             }
         }
+        if (map == null || map.isEmpty()) {
+            throw new DSRequestException("A map needs at least one value, names can also be "
+                                                 + "dotted paths into a map");
+        }
+        return map;
+    }
+
+    /**
+     * Removes a reported property, or a value nested in one, and deletes it from the twin.
+     */
+    private void removeReportedProp(DSMap parameters) {
+        String path = parameters.getString("Name");
+        if (path == null || path.isEmpty()) {
+            throw new DSRequestException("Missing name");
+        }
+        reportedStore.remove(path);
+        saveReportedProps();
+        String name = topLevel(path);
+        if (name.equals(path)) {
+            setReportedProperty(name, null);
+        } else {
+            //IoT Hub merges nested maps, so only a null removes the value
+            Map<String, Object> deleted = new HashMap<String, Object>();
+            FlatTwinStore.putNested(deleted, path.substring(name.length() + 1), null);
+            setReportedProperty(name, deleted);
+        }
+    }
+
+    private static String topLevel(String path) {
+        int idx = path.indexOf(FlatTwinStore.SEPARATOR);
+        return idx < 0 ? path : path.substring(0, idx);
     }
 
     private void addRule(DSMap parameters) {
+        AbstractD2CRuleNode.validateFilter(parameters);
         String name = parameters.getString(Constants.NAME);
         rulesNode.add(name, new D2CRuleNode(parameters));
     }
 
-    private void init() {
+    private void addWildcardRule(DSMap parameters) {
+        D2CWildcardRuleNode.validatePattern(parameters);
+        String name = parameters.getString(Constants.NAME);
+        rulesNode.add(name, new D2CWildcardRuleNode(parameters));
+    }
+
+    private boolean init() {
         put("Protocol", DSString.valueOf(protocol.toString())).setReadOnly(true);
         synchronized (clientLock) {
             if (client != null) {
                 try {
-                    client.closeNow();
+                    client.close();
                 } catch (IOException e) {
                     warn(e);
                 }
+                client = null;
             }
         }
 
         if (connectionString != null) {
             put("Connection String", DSString.valueOf(connectionString)).setReadOnly(true);
+            String hostName = Util.getFromConnString(connectionString, "HostName");
+            MainNode main = (MainNode) getAncestor(MainNode.class);
+            if (hostName != null && main != null) {
+                rateLimits = main.getHubRateLimits(hostName);
+            }
         }
 
+        OnDemandConnector od = onDemand;
+        if (od != null) {
+            put("Edit", makeEditAction()).setTransient(true);
+            put("Run Throughput Test", makeThroughputTestAction()).setTransient(true);
+            put(status, DSString.valueOf(IDLE_STATUS));
+            od.start();
+            connOk();
+            return true;
+        }
         try {
             setupClient();
-
-            HashSet<Property> props = new HashSet<Property>();
-            for (DSInfo info : reportedNode) {
-                if (!info.isAction()) {
-                    String name = info.getName();
-                    DSIObject value = info.get();
-                    if (value instanceof TwinProperty) {
-                        Object object = ((TwinProperty) value).getObject();
-                        props.add(new Property(name, object));
-                    }
-                }
-            }
-            if (!props.isEmpty()) {
-                client.sendReportedProperties(props);
-            }
             //put(status, DSString.valueOf("Connected"));
         } catch (URISyntaxException | IOException e) {
             warn("Error initializing device client", e);
             put(status, DSString.valueOf("Error initializing device client: " + e.getMessage()));
             connDown("Error initializing device client: " + e.getMessage());
+            return false;
+        } finally {
+            put("Edit", makeEditAction()).setTransient(true);
+            put("Run Throughput Test", makeThroughputTestAction()).setTransient(true);
         }
-        put("Edit", makeEditAction()).setTransient(true);
+        return true;
     }
 
     private static DSAction makeAddMethodAction() {
@@ -350,7 +847,8 @@ public class LocalDeviceNode extends DSConnection {
         act.addParameter("Method Name", DSString.NULL, null);
         act.addDefaultParameter("Path", DSString.EMPTY, null);
         act.addParameter("DSA Method", DSJavaEnum.valueOf(DSAMethod.INVOKE),
-                         "Whether to invoke, set a value, or get a value at the specified path");
+                         "Whether to invoke, set a value, or get a value at the specified path, "
+                                 + "or run a batch of those listed in the payload");
         return act;
     }
 
@@ -362,9 +860,24 @@ public class LocalDeviceNode extends DSConnection {
                 return null;
             }
         };
-        act.addParameter("Name", DSString.NULL, null);
+        act.addParameter("Name", DSString.NULL, "Use a dotted path to set a value in a map")
+           .setPlaceHolder("config.interval");
         act.addParameter("Value Type", DSFlexEnum.valueOf("String", Util.getSimpleValueTypes()),
                          null);
+        act.addDefaultParameter("Value", DSString.EMPTY, "For a Map, a JSON map");
+        return act;
+    }
+
+    private static DSAction makeRemoveReportedPropAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest req) {
+                ((LocalDeviceNode) req.getTargetInfo().getParent())
+                        .removeReportedProp(req.getParameters());
+                return null;
+            }
+        };
+        act.addParameter("Name", DSString.NULL, "Use a dotted path to remove a value from a map");
         return act;
     }
 
@@ -378,12 +891,43 @@ public class LocalDeviceNode extends DSConnection {
         };
         act.addParameter(Constants.NAME, DSString.NULL, null);
         act.addParameter(Constants.SUB_PATH, DSString.NULL, null);
-        act.addDefaultParameter("Properties", new DSMap(), null);
-        act.addParameter(Constants.REQUEST_BODY, DSString.NULL, null);
-        act.addParameter(Constants.MIN_REFRESH_RATE, DSLong.NULL,
-                         "Optional, ensures at least this many seconds between updates");
-        act.addParameter(Constants.MAX_REFRESH_RATE, DSLong.NULL,
-                         "Optional, ensures an update gets sent every this many seconds");
+        AbstractD2CRuleNode.addRuleParameters(act);
+        return act;
+    }
+
+    private DSAction makeThroughputTestAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest req) {
+                return ((LocalDeviceNode) req.getTarget()).runThroughputTest(req);
+            }
+        };
+        act.addDefaultParameter("Count", DSLong.valueOf(1000), "Number of messages to send");
+        act.addDefaultParameter("Message Size", DSLong.valueOf(256), "Payload bytes per message");
+        act.addDefaultParameter("Concurrency", DSLong.valueOf(8),
+                                "Messages awaiting acknowledgment at once");
+        act.addDefaultParameter("Protocol", DSJavaEnum.valueOf(protocol),
+                                "If not the device's protocol, a second connection is opened "
+                                        + "and the device's own connection is dropped until the "
+                                        + "test ends");
+        act.setResultsType(ResultsType.STREAM);
+        return act;
+    }
+
+    private static DSAction makeAddWildcardRuleAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest request) {
+                ((LocalDeviceNode) request.getTargetInfo().getParent())
+                        .addWildcardRule(request.getParameters());
+                return null;
+            }
+        };
+        act.addParameter(Constants.NAME, DSString.NULL, null);
+        act.addParameter(D2CWildcardRuleNode.PATH_PATTERN, DSString.NULL,
+                         "Use * within a name and ** for any depth")
+           .setPlaceHolder("/downstream/bacnet/dev1/**");
+        AbstractD2CRuleNode.addRuleParameters(act);
         return act;
     }
 
@@ -443,68 +987,197 @@ public class LocalDeviceNode extends DSConnection {
         return act;
     }
 
-    private void setReportedProperty(String name, Object value) {
-        HashSet<Property> props = new HashSet<Property>();
-        props.add(new Property(name, value));
+    /**
+     * Sends a reported properties patch, waiting for the twin update quota if necessary.
+     */
+    void sendReportedPatch(Set<Property> props) {
+        acquireTwinUpdate();
+        OnDemandConnector od = beginWork();
+        try {
+            synchronized (clientLock) {
+                if (client == null) {
+                    throw new DSRequestException("Client not initialized");
+                }
+                try {
+                    sendPatch(client, twinState.newPatch(props));
+                } catch (IOException e) {
+                    warn(e);
+                    throw new DSRequestException(e.getMessage());
+                }
+            }
+        } finally {
+            endWork(od);
+        }
+    }
+
+    /**
+     * Connects an on-demand device if it is idle, called by its connector before outbound work.
+     *
+     * @throws DSRequestException If the client couldn't be opened.
+     */
+    void openOnDemand() {
+        synchronized (clientLock) {
+            if (client != null) {
+                return;
+            }
+            put(status, DSString.valueOf("Connecting on demand"));
+            try {
+                setupClient();
+            } catch (URISyntaxException | IOException e) {
+                warn("Error connecting on demand", e);
+                client = null;
+                put(status, DSString.valueOf("Error connecting on demand: " + e.getMessage()));
+                throw new DSRequestException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the client of an on-demand device once it has lingered, called by its connector.
+     */
+    void closeOnDemand() {
+        synchronized (clientLock) {
+            if (client == null) {
+                return;
+            }
+            try {
+                client.close();
+            } catch (IOException e) {
+                warn(e);
+            }
+            client = null;
+            twin = null;
+        }
+        put(status, DSString.valueOf(IDLE_STATUS));
+    }
+
+    /**
+     * @param protocol The protocol the test wants, or null for the device's.
+     * @return The device's transport if it uses the protocol, otherwise a newly opened transport
+     * for the same device, which the caller must close.
+     */
+    DeviceTransport getClientForTest(IotHubClientProtocol protocol)
+            throws IOException, URISyntaxException {
+        synchronized (clientLock) {
+            if (protocol == null || protocol == this.protocol) {
+                return client;
+            }
+        }
+        DeviceTransport testClient = MainNode.getTransportType().newTransport(connectionString,
+                                                                              protocol);
+        testClient.open();
+        return testClient;
+    }
+
+    /**
+     * @return The desired properties, as last received from IoT Hub.
+     */
+    FlatTwinStore getDesiredStore() {
+        return desiredStore;
+    }
+
+    IotHubClientProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Uploads a file to the storage container associated with the IoT Hub. An upload that
+     * doesn't finish within the timeout carries on in the background, and an on-demand
+     * connection stays open until it has.
+     *
+     * @param timeout Milliseconds to wait for the upload to finish.
+     * @param onDone  Run once the upload has finished or failed, whether or not that was in
+     *                time, may be null.
+     * @return The status of the upload, or null if it didn't finish in time.
+     */
+    IotHubStatusCode uploadBlob(String name, File file, long timeout, final Runnable onDone)
+            throws IOException {
+        final InputStream in;
         try {
-            client.sendReportedProperties(props);
+            in = new FileInputStream(file);
         } catch (IOException e) {
-            warn(e);
-            throw new DSRequestException(e.getMessage());
+            if (onDone != null) {
+                onDone.run();
+            }
+            throw e;
         }
+        final OnDemandConnector od = beginWork();
+        PendingSend pending = new PendingSend() {
+            @Override
+            public void execute(IotHubStatusCode responseStatus, Object context) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    debug(e);
+                }
+                endWork(od);
+                if (onDone != null) {
+                    onDone.run();
+                }
+                super.execute(responseStatus, context);
+            }
+        };
+        try {
+            synchronized (clientLock) {
+                if (client == null) {
+                    throw new DSRequestException("Client not initialized");
+                }
+                client.uploadToBlobAsync(name, in, file.length(), pending, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            pending.execute(IotHubStatusCode.ERROR, null);
+            throw e;
+        }
+        return pending.await(timeout);
     }
 
+    private void setReportedProperty(String name, Object value) {
+        HashSet<Property> props = new HashSet<Property>();
+        props.add(new Property(name, value));
+        sendReportedPatch(props);
+    }
+
+    private ActionResults runThroughputTest(DSIActionRequest req) {
+        DSMap parameters = req.getParameters();
+        String protocolStr = parameters.getString("Protocol");
+        IotHubClientProtocol testProtocol = protocolStr != null
+                ? IotHubClientProtocol.valueOf(protocolStr) : protocol;
+        ThroughputTest test = new ThroughputTest(this, req,
+                                                 parameters.get("Count", 1000),
+                                                 parameters.get("Message Size", 256),
+                                                 parameters.get("Concurrency", 8),
+                                                 testProtocol);
+        test.start();
+        return test;
+    }
+
+    /**
+     * Uploads the file of the Upload File action. An upload that takes longer than
+     * {@link #UPLOAD_ACTION_TIMEOUT} carries on in the background.
+     */
     private ActionResults uploadFile(final DSIActionRequest req) {
         DSMap parameters = req.getParameters();
-        if (client == null) {
-            warn("Device Client not initialized");
-            throw new DSRequestException("Client not initialized");
-        }
         String name = parameters.getString("Name");
-        String path = parameters.getString("Filepath");
-        File file = new File(path);
-        final List<DSIValue> lockobj = new ArrayList<DSIValue>();
+        File file = new File(parameters.getString("Filepath"));
+        IotHubStatusCode status;
         try {
-            InputStream inputStream = new FileInputStream(file);
-            long streamLength = file.length();
-            client.uploadToBlobAsync(name, inputStream, streamLength, new ResponseCallback(),
-                                     lockobj);
+            status = uploadBlob(name, file, UPLOAD_ACTION_TIMEOUT, null);
         } catch (IllegalArgumentException | IOException e) {
             warn("Error uploading file", e);
             throw new DSRequestException(e.getMessage());
         }
-
-        synchronized (lockobj) {
-            try {
-                lockobj.wait();
-            } catch (InterruptedException e) {
-            }
-            DSElement value = DSString.NULL;
-            if (!lockobj.isEmpty()) {
-                value = lockobj.remove(0).toElement();
-            }
-            return DSIAction.toResults(req, value);
-        }
-
+        String result = status != null ? status.toString() : "Still uploading";
+        return DSIAction.toResults(req, DSString.valueOf(result));
     }
 
     private class C2DMessageCallback implements MessageCallback {
 
         @Override
         public IotHubMessageResult execute(Message message, Object callbackContext) {
-            DSMap msgMap = new DSMap();
             String body = new String(message.getBytes(), Message.DEFAULT_IOTHUB_MESSAGE_CHARSET);
-            String id = message.getMessageId();
-            String corrid = message.getCorrelationId();
-            MessageType type = message.getMessageType();
-            String typeStr = type != null ? type.toString() : null;
-            msgMap.put("ID", id).put("Correlation ID", corrid).put("Type", typeStr).put("Body",
-                                                                                        body);
-            for (MessageProperty prop : message.getProperties()) {
-                msgMap.put(prop.getName(), prop.getValue());
-            }
-            incomingMessage(msgMap);
-            return IotHubMessageResult.COMPLETE;
+            touchOnDemand();
+            //the routing node lists the message once it has been accepted
+            return c2dRules.receive(new C2DMessage(message, body));
         }
     }
 
@@ -515,7 +1188,17 @@ public class LocalDeviceNode extends DSConnection {
                             IotHubConnectionStatusChangeReason statusChangeReason,
                             Throwable throwable,
                             Object callbackContext) {
+            if (onDemand != null && newStatus == IotHubConnectionStatus.DISCONNECTED
+                    && statusChangeReason == IotHubConnectionStatusChangeReason.CLIENT_CLOSE) {
+                //closed after lingering, the device is still usable
+                put(status, DSString.valueOf(IDLE_STATUS));
+                PipelineEvents.connectionChanged(getName(), String.valueOf(newStatus),
+                                                 String.valueOf(statusChangeReason));
+                return;
+            }
             put(status, DSString.valueOf(newStatus + ": " + statusChangeReason));
+            PipelineEvents.connectionChanged(getName(), String.valueOf(newStatus),
+                                             String.valueOf(statusChangeReason));
             info("Connection status changed to " + newStatus + "; for reason "
                          + statusChangeReason);
             if (throwable != null) {
@@ -529,20 +1212,225 @@ public class LocalDeviceNode extends DSConnection {
         }
     }
 
+    /**
+     * @return The load shedder of the device's D2C rules.
+     */
+    public LoadSheddingNode getLoadShedding() {
+        DSIObject obj = get(LOAD_SHEDDING);
+        return obj instanceof LoadSheddingNode ? (LoadSheddingNode) obj : null;
+    }
+
+    /**
+     * @return The framer that packs rule updates into multi-point messages, or null if framing
+     * is off.
+     */
+    public D2CFramer getFramer() {
+        return rulesNode instanceof D2CRoutingNode ? ((D2CRoutingNode) rulesNode).framer : null;
+    }
+
     public static class D2CRoutingNode extends DSNode {
 
+        static final String FRAMING = "Framing";
+        static final String FRAME_INTERVAL = "Frame Interval";
+        static final String FRAME_UNITS = "Frame Units";
+
+        private volatile D2CFramer framer;
+
         @Override
         protected void declareDefaults() {
             super.declareDefaults();
+            declareDefault(FRAMING, DSBool.FALSE);
+            declareDefault(FRAME_INTERVAL, DSDouble.valueOf(1));
+            declareDefault(FRAME_UNITS, DSLong.valueOf(1));
             declareDefault(Constants.ACT_ADD_RULE, makeAddRuleAction());
+            declareDefault("Add Wildcard Rule", makeAddWildcardRuleAction());
+        }
+
+        @Override
+        protected void onChildChanged(DSInfo info) {
+            super.onChildChanged(info);
+            String name = info.getName();
+            if (FRAMING.equals(name) || FRAME_INTERVAL.equals(name) || FRAME_UNITS.equals(name)) {
+                if (isStable()) {
+                    configureFraming();
+                }
+            }
+        }
+
+        @Override
+        protected void onRemoved() {
+            super.onRemoved();
+            stopFraming();
+        }
+
+        @Override
+        protected void onStable() {
+            super.onStable();
+            configureFraming();
+        }
+
+        private synchronized void configureFraming() {
+            stopFraming();
+            DSIObject on = get(FRAMING);
+            if (!(on instanceof DSBool) || !((DSBool) on).toBoolean()) {
+                return;
+            }
+            DSIObject units = get(FRAME_UNITS);
+            DSIObject interval = get(FRAME_INTERVAL);
+            framer = new D2CFramer(
+                    (LocalDeviceNode) getParent(),
+                    units instanceof DSLong ? (int) ((DSLong) units).toLong() : 1,
+                    interval instanceof DSDouble ? (long) (((DSDouble) interval).toDouble() * 1000)
+                            : 1000);
+        }
+
+        private synchronized void stopFraming() {
+            D2CFramer old = framer;
+            framer = null;
+            if (old != null) {
+                old.close();
+            }
         }
     }
 
+    /**
+     * Receives the responses to starting the twin and subscribing to desired properties.
+     */
     private class DeviceTwinStatusCallback implements IotHubEventCallback {
 
         @Override
         public void execute(IotHubStatusCode responseStatus, Object callbackContext) {
             info("IoT Hub responded to device twin operation with status " + responseStatus.name());
+            PipelineEvents.twinResponse(getName(), responseStatus.name());
+            if (Util.isThrottled(responseStatus) && rateLimits != null) {
+                rateLimits.getTwinLimiter().onThrottled();
+            }
+        }
+    }
+
+    /**
+     * Receives the response to a single reported properties patch, which is the callback
+     * context, and then ends the work that kept an on-demand connection open for it.
+     */
+    private class PatchCallback implements IotHubEventCallback {
+
+        private final OnDemandConnector od;
+
+        PatchCallback(OnDemandConnector od) {
+            this.od = od;
+        }
+
+        @Override
+        public void execute(IotHubStatusCode responseStatus, Object context) {
+            TwinStateStore.Patch patch = (TwinStateStore.Patch) context;
+            PipelineEvents.twinResponse(getName(), responseStatus.name());
+            if (responseStatus == IotHubStatusCode.OK
+                    || responseStatus == IotHubStatusCode.OK_EMPTY) {
+                if (twinState.onPatchAcknowledged(patch)) {
+                    saveTwinState();
+                }
+                endWork(od);
+                return;
+            }
+            if (Util.isThrottled(responseStatus)) {
+                if (rateLimits != null) {
+                    rateLimits.getTwinLimiter().onThrottled();
+                }
+                if (patch.nextAttempt() <= MAX_THROTTLED_RETRIES) {
+                    debug("Reported properties patch throttled with " + responseStatus
+                                  + ", retrying");
+                    BlockingExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                resendPatch(patch);
+                            } finally {
+                                endWork(od);
+                            }
+                        }
+                    });
+                    return;
+                }
+            }
+            endWork(od);
+            warn("Reported properties patch failed with status " + responseStatus);
+        }
+    }
+
+    /**
+     * Sends a throttled patch again once the twin update quota allows, without the properties
+     * a newer patch has been sent for in the meantime.
+     */
+    private void resendPatch(TwinStateStore.Patch patch) {
+        acquireTwinUpdate();
+        try {
+            synchronized (clientLock) {
+                //without a client, the patch is sent again on the next connect
+                if (client != null && twinState.retainLatest(patch)) {
+                    sendPatch(client, patch);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            warn("Error resending reported properties patch", e);
+        }
+    }
+
+    /**
+     * Callback for a D2C message nobody waits for, which resends the message when IoT Hub
+     * throttles it, after waiting for the hub's rate limit. An on-demand connection stays open
+     * until the message is done with.
+     */
+    private class RetryingSend implements IotHubEventCallback {
+
+        private int attempt = 0;
+        private final byte[] body;
+        private final OnDemandConnector od;
+        private final D2CPropertySet propertySet;
+        private final D2CUpdate update;
+
+        RetryingSend(D2CPropertySet propertySet, D2CUpdate update, byte[] body,
+                     OnDemandConnector od) {
+            this.propertySet = propertySet;
+            this.update = update;
+            this.body = body;
+            this.od = od;
+        }
+
+        @Override
+        public void execute(IotHubStatusCode responseStatus, Object context) {
+            if (!Util.isThrottled(responseStatus)) {
+                endWork(od);
+                return;
+            }
+            AdaptiveRateLimiter limiter = rateLimits != null ? rateLimits.getD2CLimiter() : null;
+            if (limiter != null) {
+                limiter.onThrottled();
+            }
+            if (++attempt > MAX_THROTTLED_RETRIES) {
+                warn("D2C message throttled " + attempt + " times, dropping it");
+                endWork(od);
+                return;
+            }
+            BlockingExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (limiter != null) {
+                            limiter.acquire(0);
+                        }
+                        synchronized (clientLock) {
+                            if (client != null) {
+                                client.sendEventAsync(newMessage(propertySet, update, body),
+                                                      RetryingSend.this, null);
+                                return;
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        warn("Error resending throttled D2C message", e);
+                    }
+                    endWork(od);
+                }
+            });
         }
     }
 
@@ -550,6 +1438,8 @@ public class LocalDeviceNode extends DSConnection {
 
         @Override
         public DeviceMethodData call(String methodName, Object methodData, Object context) {
+            Object timer = PipelineEvents.beginMethod();
+            touchOnDemand();
             DeviceMethodData deviceMethodData;
             DirectMethodNode child = getDirectMethod(methodName);
             if (child != null) {
@@ -559,6 +1449,8 @@ public class LocalDeviceNode extends DSConnection {
                 deviceMethodData =
                         new DeviceMethodData(status, "Method '" + methodName + "' not found");
             }
+            PipelineEvents.endMethod(timer, getName(), methodName, deviceMethodData.getStatus());
+            touchOnDemand();
             return deviceMethodData;
         }
     }
@@ -580,54 +1472,76 @@ public class LocalDeviceNode extends DSConnection {
         }
     }
 
-    public static class ReportedPropsNode extends DSNode implements TwinPropertyContainer {
-
-        @Override
-        public void onChange(DSInfo info) {
-            if (info.isAction()) {
-                return;
+    /**
+     * Callback for a D2C message whose sender is waiting for the response. The callback context
+     * is the rate limiter of the hub, if any.
+     */
+    private static class PendingSend extends ThrottleCallback {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IotHubStatusCode status;
+
+        /**
+         * Waits for IoT Hub to respond to the message. Uses a latch rather than a monitor so that
+         * a waiting virtual thread doesn't pin its carrier.
+         *
+         * @return The response status, or null if there was none.
+         */
+        public IotHubStatusCode await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            String name = info.getName();
-            DSIObject value = info.get();
-            if (value instanceof TwinProperty) {
-                Object object = ((TwinProperty) value).getObject();
-                ((LocalDeviceNode) info.getParent().getParent()).setReportedProperty(name, object);
+            return status;
+        }
+
+        /**
+         * @param timeout Milliseconds to wait at most.
+         * @return The response status, or null if there was none in time.
+         */
+        public IotHubStatusCode await(long timeout) {
+            try {
+                done.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return status;
         }
 
         @Override
-        public void onDelete(DSInfo info) {
-            // if (info.isAction()) {
-            // return;
-            // }
-            // String name = info.getName();
-            // ((LocalDeviceNode) info.getParent().getParent()).setReportedProperty(name, null);
+        public void execute(IotHubStatusCode responseStatus, Object context) {
+            super.execute(responseStatus, context);
+            status = responseStatus;
+            done.countDown();
         }
+    }
+
+    /**
+     * Shows the reported properties, which are kept in a {@link FlatTwinStore} rather than as
+     * nodes, and holds the actions that change them.
+     */
+    public static class ReportedPropsNode extends TwinView {
 
         @Override
         protected void declareDefaults() {
+            super.declareDefaults();
             declareDefault("Add Reported Property", makeAddReportedPropAction());
-        }
-
-        @Override
-        protected void onChildChanged(DSInfo info) {
-            onChange(info);
+            declareDefault("Remove Reported Property", makeRemoveReportedPropAction());
         }
 
     }
 
-    private class ResponseCallback implements IotHubEventCallback {
+    /**
+     * Callback for a D2C message that reports throttling responses to the rate limiter passed
+     * as the callback context.
+     */
+    private static class ThrottleCallback implements IotHubEventCallback {
 
-        @SuppressWarnings("unchecked")
         @Override
         public void execute(IotHubStatusCode responseStatus, Object context) {
-            if (context != null) {
-                synchronized (context) {
-                    if (context instanceof List<?> && responseStatus != null) {
-                        ((List<DSIValue>) context).add(DSString.valueOf(responseStatus.toString()));
-                    }
-                    context.notify();
-                }
+            if (context instanceof AdaptiveRateLimiter && Util.isThrottled(responseStatus)) {
+                ((AdaptiveRateLimiter) context).onThrottled();
             }
         }
     }
@@ -0,0 +1,254 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Device;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodCallback;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodData;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import com.microsoft.azure.sdk.iot.device.IotHubConnectionStatusChangeCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubConnectionStatusChangeReason;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import com.microsoft.azure.sdk.iot.device.MessageCallback;
+import com.microsoft.azure.sdk.iot.device.transport.IotHubConnectionStatus;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory hub for a single device, so that the whole node tree can run and be benchmarked
+ * in-process without a network or an IoT Hub. Every operation succeeds immediately, with the
+ * callback called on the calling thread, so a throughput test measures only the overhead of the
+ * link.
+ *
+ * <p>Open transports are registered by device id, and the cloud side of the device can be
+ * driven through {@link #get(String)}: deliver C2D messages, call direct methods and change
+ * desired properties, and read back what the device sent.
+ */
+public class LoopbackTransport implements DeviceTransport {
+
+    private static final Map<String, LoopbackTransport> open =
+            new ConcurrentHashMap<String, LoopbackTransport>();
+
+    private final Map<String, Object> desired = new HashMap<String, Object>();
+    private final String deviceId;
+    private volatile DeviceMethodCallback methodCallback;
+    private volatile MessageCallback messageCallback;
+    private volatile Object messageContext;
+    private volatile boolean opened = false;
+    private final Map<String, Object> reported = new ConcurrentHashMap<String, Object>();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private volatile Sink sink;
+    private volatile IotHubConnectionStatusChangeCallback statusCallback;
+    private volatile Object statusContext;
+    private Device twin;
+
+    /**
+     * Receives every D2C message the device sends.
+     */
+    public interface Sink {
+
+        void onMessage(String deviceId, Message message);
+
+    }
+
+    /**
+     * @param connectionString Only the device id is used, the whole string if it has none.
+     */
+    public LoopbackTransport(String connectionString) {
+        String id = connectionString != null
+                ? Util.getFromConnString(connectionString, "DeviceId") : null;
+        this.deviceId = id != null ? id : String.valueOf(connectionString);
+    }
+
+    /**
+     * @return The open transport of the device, or null.
+     */
+    public static LoopbackTransport get(String deviceId) {
+        return open.get(deviceId);
+    }
+
+    /**
+     * Calls a direct method of the device, as the cloud would.
+     *
+     * @return The response of the device, or null if it hasn't subscribed to methods.
+     */
+    public DeviceMethodData callMethod(String methodName, Object payload) {
+        DeviceMethodCallback callback = methodCallback;
+        if (callback == null) {
+            return null;
+        }
+        return callback.call(methodName, payload, null);
+    }
+
+    @Override
+    public void close() {
+        if (!opened) {
+            return;
+        }
+        opened = false;
+        open.remove(deviceId, this);
+        notifyStatus(IotHubConnectionStatus.DISCONNECTED,
+                     IotHubConnectionStatusChangeReason.CLIENT_CLOSE);
+    }
+
+    /**
+     * Delivers a C2D message to the device, as the cloud would.
+     *
+     * @return How the device settled the message, or null if it has no message callback.
+     */
+    public IotHubMessageResult deliverMessage(Message message) {
+        MessageCallback callback = messageCallback;
+        if (callback == null) {
+            return null;
+        }
+        return callback.execute(message, messageContext);
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return The reported properties of the twin, as last patched by the device.
+     */
+    public Map<String, Object> getReported() {
+        return reported;
+    }
+
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    @Override
+    public void open() {
+        opened = true;
+        open.put(deviceId, this);
+        notifyStatus(IotHubConnectionStatus.CONNECTED,
+                     IotHubConnectionStatusChangeReason.CONNECTION_OK);
+    }
+
+    @Override
+    public void sendEventAsync(Message message, IotHubEventCallback callback, Object context) {
+        if (!opened) {
+            if (callback != null) {
+                callback.execute(IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE, context);
+            }
+            return;
+        }
+        sentMessages.incrementAndGet();
+        byte[] body = message.getBytes();
+        if (body != null) {
+            sentBytes.addAndGet(body.length);
+        }
+        Sink s = sink;
+        if (s != null) {
+            s.onMessage(deviceId, message);
+        }
+        if (callback != null) {
+            callback.execute(IotHubStatusCode.OK_EMPTY, context);
+        }
+    }
+
+    @Override
+    public void sendReportedProperties(Set<Property> properties, IotHubEventCallback callback,
+                                       Object context) {
+        if (!opened) {
+            callback.execute(IotHubStatusCode.MESSAGE_CANCELLED_ONCLOSE, context);
+            return;
+        }
+        for (Property prop : properties) {
+            if (prop.getValue() == null) {
+                reported.remove(prop.getKey());
+            } else {
+                reported.put(prop.getKey(), prop.getValue());
+            }
+        }
+        callback.execute(IotHubStatusCode.OK, context);
+    }
+
+    @Override
+    public void setConnectionStatusCallback(IotHubConnectionStatusChangeCallback callback,
+                                            Object context) {
+        this.statusCallback = callback;
+        this.statusContext = context;
+    }
+
+    /**
+     * Changes a desired property of the twin, as the cloud would. The device is notified if it
+     * has started its twin, and otherwise gets the property when it does.
+     */
+    public void setDesired(String name, Object value) {
+        Device t;
+        synchronized (desired) {
+            desired.put(name, value);
+            t = twin;
+        }
+        if (t != null) {
+            t.PropertyCall(name, value, null);
+        }
+    }
+
+    @Override
+    public void setMessageCallback(MessageCallback callback, Object context) {
+        this.messageCallback = callback;
+        this.messageContext = context;
+    }
+
+    /**
+     * @param sink Receives every D2C message sent from now on, null for none.
+     */
+    public void setSink(Sink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void startTwin(Device twin, IotHubEventCallback statusCallback) {
+        Map<String, Object> current;
+        synchronized (desired) {
+            this.twin = twin;
+            current = new HashMap<String, Object>(desired);
+        }
+        statusCallback.execute(IotHubStatusCode.OK, null);
+        for (Map.Entry<String, Object> entry : current.entrySet()) {
+            twin.PropertyCall(entry.getKey(), entry.getValue(), null);
+        }
+    }
+
+    @Override
+    public void subscribeToMethods(DeviceMethodCallback callback,
+                                   IotHubEventCallback statusCallback) {
+        this.methodCallback = callback;
+        statusCallback.execute(IotHubStatusCode.OK, null);
+    }
+
+    @Override
+    public void uploadToBlobAsync(String name, InputStream in, long length,
+                                  IotHubEventCallback callback, Object context)
+            throws IOException {
+        byte[] buf = new byte[8192];
+        while (in.read(buf) >= 0) {
+            //discard, only the status matters to the device
+        }
+        callback.execute(IotHubStatusCode.OK, context);
+    }
+
+    private void notifyStatus(IotHubConnectionStatus status,
+                              IotHubConnectionStatusChangeReason reason) {
+        IotHubConnectionStatusChangeCallback callback = statusCallback;
+        if (callback != null) {
+            callback.execute(status, reason, null, statusContext);
+        }
+    }
+
+}
@@ -1,15 +1,35 @@
 package org.iot.dsa.iothub;
 
 import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.dslink.Action.ResultsType;
 import org.iot.dsa.dslink.ActionResults;
 import org.iot.dsa.dslink.DSIRequester;
 import org.iot.dsa.dslink.DSLinkConnection;
 import org.iot.dsa.dslink.DSMainNode;
+import org.iot.dsa.dslink.DSRequestException;
+import org.iot.dsa.node.DSBool;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSIObject;
 import org.iot.dsa.node.DSInfo;
 import org.iot.dsa.node.DSJavaEnum;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSLong;
 import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSNode;
 import org.iot.dsa.node.DSString;
 import org.iot.dsa.node.action.DSAction;
+import org.iot.dsa.node.action.DSIAction;
 import org.iot.dsa.node.action.DSIActionRequest;
 import org.iot.dsa.util.DSException;
 
@@ -20,26 +40,133 @@ import org.iot.dsa.util.DSException;
  */
 public class MainNode extends DSMainNode {
 
+    static final String BLOCKING_MODE = "Blocking Mode";
+    static final String BLOCKING_POOL_SIZE = "Blocking Pool Size";
+    static final String BLOCKING_THREADS = "Blocking Threads";
+    static final String FLIGHT_RECORDER = "Flight Recorder Events";
+    static final String SPREAD_REFRESH = "Spread Refresh Timers";
+    static final String TRANSPORT = "Transport";
+    static final String HUB_RATE_LIMITS = "Hub Rate Limits";
+    static final String IMPORT_FAILURES = "Import Failures";
+    static final String IMPORT_STATUS = "Import Status";
+    static final String SHARED_SUBSCRIPTIONS = "Shared Subscriptions";
+    static final String REQUESTER_TIMEOUT = "Requester Timeout";
+    private static final Executor runtimeExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            DSRuntime.run(command);
+        }
+    };
     private static final Object requesterLock = new Object();
-    private static DSIRequester requester;
+    private static CompletableFuture<DSIRequester> requester = new CompletableFuture<DSIRequester>();
+    private static volatile long requesterTimeout = 5000;
+    private static volatile TransportType transportType = TransportType.AZURE;
+    private static final SubscriptionManager subscriptions = new SubscriptionManager();
 
+    /**
+     * @return The requester, or null if the link is not currently connected to the broker.
+     */
     public static DSIRequester getRequester() {
+        return getRequesterFuture().getNow(null);
+    }
+
+    /**
+     * Waits for the link to be connected to the broker.
+     *
+     * @param timeout Maximum milliseconds to wait.
+     * @return The requester, or null if the timeout elapsed first.
+     */
+    public static DSIRequester getRequester(long timeout) {
+        try {
+            return getRequesterFuture().get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new DSRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return A future that completes once the link is connected to the broker. If the link
+     * disconnects, later calls return a new future.
+     */
+    public static CompletableFuture<DSIRequester> getRequesterFuture() {
         synchronized (requesterLock) {
-            while (requester == null) {
-                try {
-                    requesterLock.wait();
-                } catch (InterruptedException e) {
-                    DSException.throwRuntime(e);
-                }
-            }
             return requester;
         }
     }
 
+    /**
+     * @return The subscriptions shared by all the D2C rules of the link.
+     */
+    public static SubscriptionManager getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * @return What local devices connect with the next time they open a connection.
+     */
+    public static TransportType getTransportType() {
+        return transportType;
+    }
+
+    /**
+     * @return How many milliseconds callers that need the requester should wait for it, as
+     * configured on the main node.
+     */
+    public static long getRequesterTimeout() {
+        return requesterTimeout;
+    }
+
+    /**
+     * Overrides the transport setting, for devices that run without a main node, such as in
+     * tests.
+     */
+    static void setTransportType(TransportType type) {
+        transportType = type;
+    }
+
+    /**
+     * Sets the requester, or clears it when the link disconnects from the broker.
+     */
     public static void setRequester(DSIRequester requester) {
         synchronized (requesterLock) {
-            MainNode.requester = requester;
-            requesterLock.notifyAll();
+            if (requester == null) {
+                if (MainNode.requester.isDone()) {
+                    MainNode.requester = new CompletableFuture<DSIRequester>();
+                }
+            } else if (!MainNode.requester.complete(requester)
+                    && MainNode.requester.getNow(null) != requester) {
+                MainNode.requester = CompletableFuture.completedFuture(requester);
+            }
+        }
+    }
+
+    /**
+     * Runs the callback on a DSRuntime thread once the link is connected to the broker,
+     * immediately if it already is.
+     */
+    public static void whenRequesterReady(Consumer<DSIRequester> callback) {
+        getRequesterFuture().thenAcceptAsync(callback, runtimeExecutor);
+    }
+
+    /**
+     * Returns the node holding the rate limiters for the IoT Hub with the given host name,
+     * creating it if necessary.
+     */
+    public HubRateLimitNode getHubRateLimits(String hostName) {
+        DSNode container = getNode(HUB_RATE_LIMITS);
+        synchronized (container) {
+            DSIObject node = container.get(hostName);
+            if (node instanceof HubRateLimitNode) {
+                return (HubRateLimitNode) node;
+            }
+            HubRateLimitNode limits = new HubRateLimitNode();
+            container.put(hostName, limits);
+            return limits;
         }
     }
 
@@ -50,20 +177,112 @@ public class MainNode extends DSMainNode {
                 "https://github.com/iot-dsa-v2/dslink-java-v2-iothub/blob/develop/README.md"))
                 .setTransient(true).setReadOnly(true);
 
+        declareDefault(REQUESTER_TIMEOUT, DSDouble.valueOf(5));
+        declareDefault(BLOCKING_MODE, DSJavaEnum.valueOf(BlockingMode.AUTO));
+        declareDefault(BLOCKING_POOL_SIZE, DSLong.valueOf(64));
+        declareDefault(BLOCKING_THREADS, DSString.EMPTY).setTransient(true).setReadOnly(true);
+        declareDefault(FLIGHT_RECORDER, DSBool.FALSE);
+        declareDefault(SPREAD_REFRESH, DSBool.TRUE);
+        declareDefault(TRANSPORT, DSJavaEnum.valueOf(TransportType.AZURE));
+        declareDefault(HUB_RATE_LIMITS, new DSNode());
         declareDefault("Add Device by Connection String", makeAddDeviceByConnStrAction());
+        declareDefault("Import Devices", makeImportDevicesAction());
+        declareDefault(IMPORT_STATUS, DSString.EMPTY).setTransient(true).setReadOnly(true);
+        declareDefault(IMPORT_FAILURES, new DSList()).setTransient(true).setReadOnly(true);
+        declareDefault(SHARED_SUBSCRIPTIONS, DSLong.valueOf(0)).setTransient(true)
+                                                               .setReadOnly(true);
         //declareDefault("Add Device by DPS", makeAddDeviceByDPSAction());
     }
 
+    @Override
+    protected void onChildChanged(DSInfo info) {
+        super.onChildChanged(info);
+        String name = info.getName();
+        if (REQUESTER_TIMEOUT.equals(name)) {
+            updateRequesterTimeout();
+        } else if (BLOCKING_MODE.equals(name) || BLOCKING_POOL_SIZE.equals(name)) {
+            configureBlocking();
+        } else if (FLIGHT_RECORDER.equals(name)) {
+            configureFlightRecorder();
+        } else if (SPREAD_REFRESH.equals(name)) {
+            configureRefreshSpread();
+        } else if (TRANSPORT.equals(name)) {
+            configureTransport();
+        }
+    }
+
     @Override
     protected void onStarted() {
         super.onStarted();
+        updateRequesterTimeout();
+        configureBlocking();
+        configureFlightRecorder();
+        configureRefreshSpread();
+        configureTransport();
+        subscriptions.setOwner(this);
+        TimingWheel.getShared().setOwner(this);
         getLink().getConnection().subscribe(((event, node, child, data) -> {
             if (event.equals(DSLinkConnection.CONNECTED_EVENT)) {
                 MainNode.setRequester(getLink().getConnection().getRequester());
+            } else if (event.equals(DSLinkConnection.DISCONNECTED_EVENT)) {
+                MainNode.setRequester(null);
             }
         }));
     }
 
+    private void configureBlocking() {
+        BlockingMode mode;
+        DSIObject m = get(BLOCKING_MODE);
+        try {
+            mode = m != null ? BlockingMode.valueOf(m.toString()) : BlockingMode.AUTO;
+        } catch (IllegalArgumentException e) {
+            warn("Unknown blocking mode " + m);
+            mode = BlockingMode.AUTO;
+        }
+        DSIObject size = get(BLOCKING_POOL_SIZE);
+        int poolSize = size instanceof DSLong ? (int) ((DSLong) size).toLong() : 64;
+        String threads;
+        if (BlockingExecutor.configure(mode, poolSize)) {
+            threads = "Virtual threads";
+        } else {
+            if (mode == BlockingMode.VIRTUAL_THREADS) {
+                warn("Virtual threads require Java 21 or later, using a thread pool");
+            }
+            threads = "Thread pool of " + Math.max(1, poolSize);
+        }
+        put(BLOCKING_THREADS, DSString.valueOf(threads));
+    }
+
+    private void configureFlightRecorder() {
+        DSIObject on = get(FLIGHT_RECORDER);
+        boolean enable = on instanceof DSBool && ((DSBool) on).toBoolean();
+        if (!PipelineEvents.setEnabled(enable) && enable) {
+            warn("Flight Recorder events are not supported by this JVM");
+        }
+    }
+
+    private void configureRefreshSpread() {
+        DSIObject on = get(SPREAD_REFRESH);
+        D2CRule.setPhaseSpread(!(on instanceof DSBool) || ((DSBool) on).toBoolean());
+    }
+
+    private void configureTransport() {
+        DSIObject t = get(TRANSPORT);
+        try {
+            transportType = t != null ? TransportType.valueOf(t.toString()) : TransportType.AZURE;
+        } catch (IllegalArgumentException e) {
+            warn("Unknown transport " + t);
+            transportType = TransportType.AZURE;
+        }
+    }
+
+    private void updateRequesterTimeout() {
+        DSIObject timeout = get(REQUESTER_TIMEOUT);
+        if (timeout instanceof DSDouble) {
+            requesterTimeout = (long) (((DSDouble) timeout).toDouble() * 1000);
+        }
+    }
+
     private void addDeviceByConnStr(DSMap parameters) {
         String connStr = parameters.getString("Connection String");
         String id = Util.getFromConnString(connStr, "DeviceId");
@@ -76,6 +295,103 @@ public class MainNode extends DSMainNode {
         add(id, new LocalDeviceNode(id, protocol, connStr));
     }
 
+    /**
+     * Publishes the number of requester subscriptions shared by the rules of the link.
+     */
+    void updateSharedSubscriptions(int count) {
+        put(SHARED_SUBSCRIPTIONS, DSLong.valueOf(count));
+    }
+
+    /**
+     * Reports the progress of a device import in the import status and failures values.
+     */
+    void updateImportStatus(DeviceImport deviceImport) {
+        put(IMPORT_STATUS, DSString.valueOf(deviceImport.getStatus()));
+        put(IMPORT_FAILURES, deviceImport.getFailures());
+    }
+
+    private ActionResults importDevices(DSIActionRequest req) {
+        DSMap parameters = req.getParameters();
+        List<DSMap> entries = DeviceImport.readFile(parameters.getString("File Path"));
+        IotHubClientProtocol defaultProtocol =
+                IotHubClientProtocol.valueOf(parameters.getString("Protocol"));
+        DSMap ruleTemplates = parameters.getMap("Rule Templates");
+        DeviceImport deviceImport = new DeviceImport(this, (int) parameters.getLong("Parallelism"));
+
+        //Build all the nodes before connecting anything
+        List<LocalDeviceNode> devices = new ArrayList<LocalDeviceNode>(entries.size());
+        List<DSMap> rules = new ArrayList<DSMap>(entries.size());
+        Set<String> ids = new HashSet<String>();
+        int skipped = 0;
+        for (DSMap entry : entries) {
+            String connStr = entry.getString("Connection String");
+            String id = connStr != null ? Util.getFromConnString(connStr, "DeviceId") : null;
+            try {
+                if (id == null) {
+                    throw new IllegalArgumentException("Connection String missing Device ID");
+                }
+                if (get(id) != null) {
+                    throw new IllegalArgumentException("Device already exists");
+                }
+                if (!ids.add(id)) {
+                    throw new IllegalArgumentException("Duplicate Device ID in file");
+                }
+                LocalDeviceNode device = new LocalDeviceNode(
+                        id, DeviceImport.getProtocol(entry, defaultProtocol), connStr);
+                device.setImport(deviceImport);
+                devices.add(device);
+                DSMap deviceRules = entry.getMap("Rules");
+                rules.add(deviceRules != null ? deviceRules : ruleTemplates);
+            } catch (IllegalArgumentException e) {
+                skipped++;
+                deviceImport.addFailure(id != null ? id : String.valueOf(connStr), e.getMessage());
+            }
+        }
+        deviceImport.start(devices.size());
+        for (int i = 0; i < devices.size(); i++) {
+            LocalDeviceNode device = devices.get(i);
+            try {
+                add(device.getDeviceId(), device);
+            } catch (RuntimeException e) {
+                //never connects, but must still be counted so the import can finish
+                deviceImport.fail(device.getDeviceId(), String.valueOf(e.getMessage()));
+                skipped++;
+                continue;
+            }
+            DSMap deviceRules = rules.get(i);
+            if (deviceRules != null) {
+                device.addRules(deviceRules);
+            }
+        }
+        updateImportStatus(deviceImport);
+        String result = "Added " + (entries.size() - skipped) + " devices, " + skipped
+                + " skipped";
+        return DSIAction.toResults(req, DSString.valueOf(result));
+    }
+
+    private static DSAction makeImportDevicesAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest req) {
+                return ((MainNode) req.getTarget()).importDevices(req);
+            }
+        };
+        act.addParameter("File Path", DSString.NULL,
+                         "CSV of connection strings and optional protocols, or a JSON list")
+           .setPlaceHolder("devices.csv");
+        act.addParameter("Protocol", DSJavaEnum.valueOf(IotHubClientProtocol.MQTT),
+                         "Used for devices that don't specify a protocol");
+        act.addDefaultParameter("Rule Templates", new DSMap(),
+                                "Optional, D2C rules to add to each device, by rule name. "
+                                        + DeviceImport.DEVICE_ID_PLACEHOLDER
+                                        + " is replaced with the device id");
+        act.addDefaultParameter("Parallelism", DSLong.valueOf(8),
+                                "How many devices to connect at the same time");
+        act.setResultsType(ResultsType.VALUES);
+        act.addColumnMetadata("Result", DSString.NULL);
+        return act;
+    }
+
     private static DSAction makeAddDeviceByConnStrAction() {
         DSAction act = new DSAction() {
             @Override
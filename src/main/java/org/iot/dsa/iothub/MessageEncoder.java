@@ -0,0 +1,66 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * Encodes message bodies using a per thread encoder and buffer, so that the only allocation per
+ * message is the exactly sized byte array handed to the IoT Hub client.
+ */
+public class MessageEncoder {
+
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+    private static final ThreadLocal<MessageEncoder> encoders = new ThreadLocal<MessageEncoder>() {
+        @Override
+        protected MessageEncoder initialValue() {
+            return new MessageEncoder();
+        }
+    };
+
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private final CharsetEncoder encoder = Message.DEFAULT_IOTHUB_MESSAGE_CHARSET.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private MessageEncoder() {
+    }
+
+    /**
+     * @return The body encoded in the default IoT Hub message charset.
+     */
+    public static byte[] encode(CharSequence body) {
+        return encoders.get().doEncode(body);
+    }
+
+    private byte[] doEncode(CharSequence body) {
+        if (body == null || body.length() == 0) {
+            return new byte[0];
+        }
+        CharBuffer in = CharBuffer.wrap(body);
+        while (true) {
+            encoder.reset();
+            buffer.clear();
+            CoderResult result = encoder.encode(in, buffer, true);
+            if (!result.isOverflow()) {
+                result = encoder.flush(buffer);
+            }
+            if (!result.isOverflow()) {
+                break;
+            }
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            in.rewind();
+        }
+        byte[] bytes = Arrays.copyOf(buffer.array(), buffer.position());
+        if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+        return bytes;
+    }
+
+}
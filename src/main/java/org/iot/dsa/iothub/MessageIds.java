@@ -0,0 +1,24 @@
+package org.iot.dsa.iothub;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates message ids that are unique across restarts of the link without the contention of
+ * {@link java.util.UUID#randomUUID()}, which draws from a shared SecureRandom. An id is a random
+ * prefix chosen when the link starts followed by a sequence number.
+ */
+public class MessageIds {
+
+    private static final String PREFIX = Long.toHexString(ThreadLocalRandom.current().nextLong())
+            + '-';
+    private static final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @return A new message id.
+     */
+    public static String next() {
+        return PREFIX.concat(Long.toString(sequence.incrementAndGet(), 36));
+    }
+
+}
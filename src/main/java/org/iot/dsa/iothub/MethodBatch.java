@@ -0,0 +1,247 @@
+package org.iot.dsa.iothub;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.iot.dsa.dslink.DSRequestException;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSMap;
+
+/**
+ * Runs the operations of a batch direct method. The payload lists many GET, SET and INVOKE
+ * operations, which run in parallel on the blocking executor, at most a given number at a time
+ * and all within one deadline, which is never later than the method's own. The response has a
+ * result for every operation, in order.
+ *
+ * <p>Payload: {@code {"ops": [{"op": "GET", "path": "..."}, {"op": "SET", "path": "...",
+ * "value": ...}, {"op": "INVOKE", "path": "...", "params": {...}}], "concurrency": 8,
+ * "timeout": 20}}, or just the list of operations.
+ *
+ * <p>Response: {@code {"ok": 2, "failed": 1, "results": [{"status": 200, "value": ...}, ...]}}.
+ * A response too large for a method leaves values out, see {@link #fit(DSMap, int)}.
+ */
+class MethodBatch {
+
+    static final int DEFAULT_CONCURRENCY = 8;
+    static final double DEFAULT_TIMEOUT = 20;
+    static final int MAX_CONCURRENCY = 64;
+    private static final int STATUS_BAD_REQUEST = 400;
+    private static final int STATUS_TIMED_OUT = 504;
+
+    private final int concurrency;
+    private final long deadline;
+    private final CountDownLatch done;
+    private final AtomicInteger next = new AtomicInteger();
+    private final DSList ops;
+    private final DSMap[] results;
+    private final String root;
+
+    /**
+     * @param root Prefixed to the paths of the operations, may be empty.
+     */
+    private MethodBatch(String root, DSList ops, int concurrency, long timeout) {
+        this.root = root;
+        this.ops = ops;
+        this.concurrency = Math.max(1, Math.min(MAX_CONCURRENCY, concurrency));
+        this.deadline = System.currentTimeMillis() + timeout;
+        this.done = new CountDownLatch(ops.size());
+        this.results = new DSMap[ops.size()];
+    }
+
+    /**
+     * Runs a batch and waits for all its operations, or for the deadline.
+     *
+     * @param root    Prefixed to the paths of the operations, may be empty.
+     * @param payload The list of operations, or a map with the list as "ops".
+     * @throws DSRequestException If the payload isn't a batch.
+     */
+    static DSMap run(String root, DSElement payload) {
+        DSList ops = null;
+        int concurrency = DEFAULT_CONCURRENCY;
+        double timeout = DEFAULT_TIMEOUT;
+        if (payload != null && payload.isList()) {
+            ops = payload.toList();
+        } else if (payload != null && payload.isMap()) {
+            DSMap map = payload.toMap();
+            ops = map.getList("ops");
+            concurrency = map.get("concurrency", DEFAULT_CONCURRENCY);
+            //a longer timeout would outlast the method, and its results would never be seen
+            timeout = Math.min(map.get("timeout", DEFAULT_TIMEOUT),
+                               DirectMethodNode.METHOD_DEADLINE / 1000.0);
+        }
+        if (ops == null) {
+            throw new DSRequestException("Expected a list of operations");
+        }
+        MethodBatch batch = new MethodBatch(root, ops, concurrency, (long) (timeout * 1000));
+        batch.start();
+        return batch.await();
+    }
+
+    private DSMap await() {
+        try {
+            done.await(Math.max(0, deadline - System.currentTimeMillis()),
+                       TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        DSList list = new DSList();
+        int ok = 0;
+        synchronized (results) {
+            for (int i = 0; i < results.length; i++) {
+                DSMap result = results[i];
+                if (result == null) {
+                    result = failure(STATUS_TIMED_OUT, "Timed out");
+                    results[i] = result;
+                }
+                if (result.get("status", 0) == DirectMethodNode.METHOD_SUCCESS) {
+                    ok++;
+                }
+                list.add(result);
+            }
+        }
+        return new DSMap().put("ok", ok)
+                          .put("failed", results.length - ok)
+                          .put("results", list);
+    }
+
+    /**
+     * Keeps a response within the size of a method response. Values, and then error texts, are
+     * left out of the results from the last one on until it fits, and each result that lost
+     * something is marked truncated. The status of every operation is always kept, so the
+     * caller knows which ones were applied.
+     *
+     * @param budget UTF-8 bytes.
+     */
+    static DSMap fit(DSMap response, int budget) {
+        if (Util.utf8Length(response.toString()) <= budget) {
+            return response;
+        }
+        response.put("truncated", true);
+        DSList results = response.getList("results");
+        if (!strip(results, "value", response, budget)) {
+            strip(results, "error", response, budget);
+        }
+        return response;
+    }
+
+    /**
+     * Removes the key from results, last first, until the response fits.
+     *
+     * @return Whether the response fits.
+     */
+    private static boolean strip(DSList results, String key, DSMap response, int budget) {
+        int size = Util.utf8Length(response.toString());
+        int i = results.size() - 1;
+        while (true) {
+            for (; i >= 0 && size > budget; i--) {
+                DSMap result = results.getMap(i);
+                DSElement removed = result.remove(key);
+                if (removed != null) {
+                    //"key":removed is replaced by "truncated":true
+                    size += 16 - (key.length() + 3 + Util.utf8Length(removed.toString()));
+                    result.put("truncated", true);
+                }
+            }
+            //the estimate ignores separators, so measure again
+            size = Util.utf8Length(response.toString());
+            if (size <= budget || i < 0) {
+                return size <= budget;
+            }
+        }
+    }
+
+    private static DSMap failure(int status, String error) {
+        return new DSMap().put("status", status).put("error", error);
+    }
+
+    /**
+     * Runs a single operation and returns its result.
+     */
+    private DSMap perform(DSElement elem) {
+        if (elem == null || !elem.isMap()) {
+            return failure(STATUS_BAD_REQUEST, "Expected a map");
+        }
+        DSMap op = elem.toMap();
+        String path = op.getString("path");
+        if (path == null || path.isEmpty()) {
+            return failure(STATUS_BAD_REQUEST, "Missing path");
+        }
+        DSAMethod method;
+        try {
+            method = DSAMethod.valueOf(op.get("op", "GET").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return failure(STATUS_BAD_REQUEST, "Unknown op " + op.getString("op"));
+        }
+        path = resolve(path);
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return failure(STATUS_TIMED_OUT, "Timed out");
+        }
+        DSMap result = new DSMap().put("status", DirectMethodNode.METHOD_SUCCESS);
+        try {
+            switch (method) {
+                case GET:
+                    result.put("value", RequesterOps.get(path, remaining));
+                    break;
+                case SET:
+                    DSElement value = op.get("value");
+                    RequesterOps.set(path, value != null ? value : DSElement.makeNull(),
+                                     remaining);
+                    break;
+                case INVOKE:
+                    DSMap params = op.getMap("params");
+                    DSList row = RequesterOps.invoke(path, params != null ? params : new DSMap(),
+                                                     remaining);
+                    if (row != null) {
+                        result.put("value", row);
+                    }
+                    break;
+                default:
+                    return failure(STATUS_BAD_REQUEST, "Op not allowed in a batch: " + method);
+            }
+        } catch (DSRequestException e) {
+            return failure(MainNode.getRequester() == null ? DirectMethodNode.METHOD_UNAVAILABLE
+                                   : DirectMethodNode.METHOD_FAILED, e.getMessage());
+        } catch (RuntimeException e) {
+            return failure(DirectMethodNode.METHOD_FAILED, String.valueOf(e.getMessage()));
+        }
+        return result;
+    }
+
+    private String resolve(String path) {
+        if (root.isEmpty()) {
+            return path;
+        }
+        if (root.endsWith("/") || path.startsWith("/")) {
+            return root + path;
+        }
+        return root + '/' + path;
+    }
+
+    /**
+     * Starts as many workers as the concurrency allows, each takes the next operation until
+     * there are none left.
+     */
+    private void start() {
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = next.getAndIncrement()) < results.length) {
+                    DSMap result = perform(ops.get(i));
+                    synchronized (results) {
+                        if (results[i] == null) {
+                            results[i] = result;
+                        }
+                    }
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = Math.min(concurrency, results.length); i > 0; i--) {
+            BlockingExecutor.execute(worker);
+        }
+    }
+
+}
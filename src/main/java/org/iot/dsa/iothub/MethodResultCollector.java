@@ -0,0 +1,280 @@
+package org.iot.dsa.iothub;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import org.iot.dsa.dslink.requester.AbstractInvokeHandler;
+import org.iot.dsa.dslink.requester.ErrorType;
+import org.iot.dsa.dslink.requester.OutboundStream;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSMap;
+
+/**
+ * Collects every row of an action's results into compact JSON:
+ * <code>{"columns":["a","b"],"rows":[[1,2],[3,4]]}</code>
+ *
+ * <p>Rows are kept in memory only up to the response budget. Beyond that, everything collected
+ * so far is spilled to a temporary file and the remaining rows are written straight to it, so
+ * the memory used per invocation stays capped. The file is itself capped, after which the
+ * stream is closed and the results are marked as truncated.
+ */
+public class MethodResultCollector extends AbstractInvokeHandler {
+
+    private final int budget;
+    private StringBuilder buffer = new StringBuilder();
+    private int bufferBytes;
+    private boolean closed = false;
+    private String columns = "[]";
+    private String error;
+    private long lastActivity = System.currentTimeMillis();
+    private final long maxSpillBytes;
+    private int rowCount = 0;
+    private File spillFile;
+    private long spillBytes;
+    private Writer spillWriter;
+    private boolean truncated = false;
+
+    /**
+     * @param budget        The most bytes of JSON to keep in memory.
+     * @param maxSpillBytes The most bytes of JSON to write to the spill file.
+     */
+    public MethodResultCollector(int budget, long maxSpillBytes) {
+        this.budget = budget;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    /**
+     * Deletes the spill file, if any.
+     */
+    public synchronized void discard() {
+        closeSpill();
+        if (spillFile != null) {
+            if (!spillFile.delete()) {
+                spillFile.deleteOnExit();
+            }
+            spillFile = null;
+        }
+    }
+
+    /**
+     * @return The results JSON, or null if it was spilled.
+     */
+    public synchronized String getJson() {
+        if (spillFile != null) {
+            return null;
+        }
+        return header().append(buffer).append("]}").toString();
+    }
+
+    public synchronized int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Finishes and returns the spill file, or null if the results fit in memory.
+     */
+    public synchronized File getSpillFile() throws IOException {
+        if (spillFile != null && spillWriter != null) {
+            spillWriter.write("]}");
+            spillBytes += 2;
+            closeSpill();
+        }
+        return spillFile;
+    }
+
+    public synchronized long getSpillSize() {
+        return spillBytes;
+    }
+
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public void onClose() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void onColumns(DSList list) {
+        DSList names = new DSList();
+        for (DSElement col : list) {
+            names.add(col.isMap() ? col.toMap().getString("name") : col.toString());
+        }
+        columns = names.toString();
+        activity();
+    }
+
+    @Override
+    public void onError(ErrorType type, String msg) {
+        super.onError(type, msg);
+        synchronized (this) {
+            error = type + ": " + msg;
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onInsert(int index, DSList rows) {
+        for (DSElement row : rows) {
+            onUpdate(row.isList() ? row.toList() : new DSList().add(row));
+        }
+    }
+
+    @Override
+    public void onMode(Mode mode) {
+    }
+
+    @Override
+    public void onReplace(int start, int end, DSList rows) {
+        onInsert(start, rows);
+    }
+
+    @Override
+    public void onTableMeta(DSMap map) {
+    }
+
+    @Override
+    public void onUpdate(DSList row) {
+        boolean full;
+        synchronized (this) {
+            if (closed || truncated) {
+                return;
+            }
+            append(row.toString());
+            full = truncated;
+            activity();
+        }
+        if (full) {
+            closeStream();
+        }
+    }
+
+    /**
+     * Waits for the action to close its stream. Open streams are closed once no rows have
+     * arrived for the idle timeout, and the rows so far are used.
+     *
+     * @throws RuntimeException If the action failed.
+     */
+    public void waitForClose(long idleTimeout) {
+        waitForClose(idleTimeout, Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits for the action to close its stream. Open streams are closed once no rows have
+     * arrived for the idle timeout, or at the deadline, and the rows so far are used.
+     *
+     * @param deadline Time in milliseconds, as System.currentTimeMillis(), to stop waiting at.
+     * @throws RuntimeException If the action failed.
+     */
+    public void waitForClose(long idleTimeout, long deadline) {
+        synchronized (this) {
+            while (!closed) {
+                long remaining = Math.min(lastActivity + idleTimeout, deadline)
+                        - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (error != null) {
+                throw new IllegalStateException(error);
+            }
+            if (closed) {
+                return;
+            }
+        }
+        closeStream();
+    }
+
+    private void activity() {
+        lastActivity = System.currentTimeMillis();
+        notifyAll();
+    }
+
+    /**
+     * Must be called while synchronized.
+     */
+    private void append(String row) {
+        int rowBytes = Util.utf8Length(row) + (rowCount > 0 ? 1 : 0);
+        try {
+            if (spillWriter == null && bufferBytes + rowBytes > budget) {
+                spill();
+            }
+            if (spillWriter != null) {
+                if (spillBytes + rowBytes + 2 > maxSpillBytes) {
+                    truncated = true;
+                    return;
+                }
+                if (rowCount > 0) {
+                    spillWriter.write(',');
+                }
+                spillWriter.write(row);
+                spillBytes += rowBytes;
+            } else {
+                if (rowCount > 0) {
+                    buffer.append(',');
+                }
+                buffer.append(row);
+                bufferBytes += rowBytes;
+            }
+            rowCount++;
+        } catch (IOException e) {
+            error = "Unable to spill results: " + e.getMessage();
+            truncated = true;
+            closeSpill();
+        }
+    }
+
+    private void closeSpill() {
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException ignore) {
+            }
+            spillWriter = null;
+        }
+    }
+
+    private void closeStream() {
+        OutboundStream stream = getStream();
+        if (stream != null && stream.isStreamOpen()) {
+            stream.closeStream();
+        }
+    }
+
+    private StringBuilder header() {
+        return new StringBuilder(bufferBytes + columns.length() + 24)
+                .append("{\"columns\":").append(columns).append(",\"rows\":[");
+    }
+
+    /**
+     * Moves the buffered rows to a new spill file.
+     */
+    private void spill() throws IOException {
+        spillFile = File.createTempFile("iothub-method-", ".json");
+        spillWriter = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(spillFile), StandardCharsets.UTF_8));
+        String head = header().toString();
+        spillWriter.write(head);
+        spillWriter.write(buffer.toString());
+        spillBytes = Util.utf8Length(head) + bufferBytes;
+        buffer = null;
+        bufferBytes = 0;
+    }
+
+}
@@ -0,0 +1,203 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.DSRuntime;
+
+/**
+ * Opens the connection of an on-demand device when there is outbound work, and closes it once
+ * the device has been idle for the linger period. Callers bracket their work with
+ * {@link #begin()} and {@link #end()}, and the connection is never closed while any work is in
+ * progress, including messages and patches sent asynchronously that IoT Hub hasn't responded
+ * to yet, which {@link #hold()} the connection. Inbound activity, such as a C2D message, extends
+ * the linger period.
+ */
+class OnDemandConnector {
+
+    private int active = 0;
+    private boolean closed = false;
+    private boolean closing = false;
+    private final LocalDeviceNode device;
+    private long lastActivity = System.currentTimeMillis();
+    private final long linger;
+    private DSRuntime.Timer lingerTimer;
+    private final long wakeInterval;
+    private DSRuntime.Timer wakeTimer;
+
+    /**
+     * @param lingerSeconds How long the connection stays open after the last activity.
+     * @param wakeSeconds   How often an idle device connects to pick up messages and desired
+     *                      property changes, 0 or less to never.
+     */
+    OnDemandConnector(LocalDeviceNode device, double lingerSeconds, double wakeSeconds) {
+        this.device = device;
+        this.linger = Math.max(0, (long) (lingerSeconds * 1000));
+        this.wakeInterval = (long) (wakeSeconds * 1000);
+    }
+
+    /**
+     * Marks the start of outbound work, connecting first if the device is idle.
+     *
+     * @throws RuntimeException If the connection couldn't be opened, in which case
+     *                          {@link #end()} must not be called.
+     */
+    void begin() {
+        synchronized (this) {
+            while (closing) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for the client to close");
+                }
+            }
+            active++;
+            cancel(lingerTimer);
+            lingerTimer = null;
+        }
+        try {
+            device.openOnDemand();
+        } catch (RuntimeException e) {
+            end();
+            throw e;
+        }
+    }
+
+    /**
+     * Marks the start of work on a connection that is already open, such as waiting for IoT Hub
+     * to respond to a message sent asynchronously, without connecting. The connection isn't
+     * closed until {@link #end()} is called.
+     */
+    synchronized void hold() {
+        active++;
+        cancel(lingerTimer);
+        lingerTimer = null;
+    }
+
+    /**
+     * Stops the timers, the device closes its own client.
+     */
+    synchronized void close() {
+        closed = true;
+        cancel(lingerTimer);
+        cancel(wakeTimer);
+        lingerTimer = null;
+        wakeTimer = null;
+    }
+
+    /**
+     * Marks the end of outbound work started with {@link #begin()}.
+     */
+    void end() {
+        synchronized (this) {
+            active--;
+            lastActivity = System.currentTimeMillis();
+            if (active == 0) {
+                scheduleLinger(linger);
+            }
+        }
+    }
+
+    /**
+     * Starts the periodic wake ups.
+     */
+    synchronized void start() {
+        cancel(wakeTimer);
+        wakeTimer = null;
+        scheduleWake();
+    }
+
+    /**
+     * Records inbound activity, which keeps an open connection open for another linger period.
+     */
+    void touch() {
+        synchronized (this) {
+            lastActivity = System.currentTimeMillis();
+            if (active == 0 && lingerTimer == null) {
+                scheduleLinger(linger);
+            }
+        }
+    }
+
+    private static void cancel(DSRuntime.Timer timer) {
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    private void lingerExpired() {
+        synchronized (this) {
+            lingerTimer = null;
+            if (closed || active > 0) {
+                return;
+            }
+            long remaining = lastActivity + linger - System.currentTimeMillis();
+            if (remaining > 0) {
+                scheduleLinger(remaining);
+                return;
+            }
+            //work that begins while the client closes waits for it to finish
+            closing = true;
+        }
+        try {
+            device.closeOnDemand();
+        } finally {
+            synchronized (this) {
+                closing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Must be called while synchronized on this.
+     */
+    private void scheduleLinger(long delay) {
+        if (closed) {
+            return;
+        }
+        cancel(lingerTimer);
+        lingerTimer = DSRuntime.runDelayed(new Runnable() {
+            @Override
+            public void run() {
+                BlockingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        lingerExpired();
+                    }
+                });
+            }
+        }, delay);
+    }
+
+    /**
+     * Must be called while synchronized on this.
+     */
+    private void scheduleWake() {
+        if (closed || wakeInterval <= 0) {
+            return;
+        }
+        wakeTimer = DSRuntime.runDelayed(new Runnable() {
+            @Override
+            public void run() {
+                BlockingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        wake();
+                    }
+                });
+            }
+        }, wakeInterval);
+    }
+
+    private void wake() {
+        try {
+            begin();
+            end();
+        } catch (RuntimeException e) {
+            device.warn("Error waking on demand device", e);
+        }
+        synchronized (this) {
+            scheduleWake();
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package org.iot.dsa.iothub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A glob over DSA paths. Within a path segment, <code>*</code> matches any characters and
+ * <code>?</code> matches one character. A segment that is only <code>**</code> matches any
+ * number of segments, including none.
+ *
+ * <p>For example, <code>/downstream/bacnet/dev1/**</code> matches every path below dev1, and
+ * <code>/downstream/bacnet/*&#47;Present_Value</code> matches Present_Value on every device.
+ */
+public class PathPattern {
+
+    private static final Object ANY_DEPTH = new Object();
+
+    private final String pattern;
+    private final String root;
+    /**
+     * Either literal strings, compiled patterns, or ANY_DEPTH.
+     */
+    private final Object[] segments;
+
+    public PathPattern(String pattern) {
+        if (pattern == null || pattern.trim().isEmpty()) {
+            throw new IllegalArgumentException("Empty path pattern");
+        }
+        this.pattern = pattern.trim();
+        List<Object> segs = new ArrayList<Object>();
+        StringBuilder rootBuf = new StringBuilder();
+        boolean literal = true;
+        for (String seg : split(this.pattern)) {
+            Object compiled;
+            if ("**".equals(seg)) {
+                compiled = ANY_DEPTH;
+            } else if (seg.indexOf('*') >= 0 || seg.indexOf('?') >= 0) {
+                compiled = compileSegment(seg);
+            } else {
+                compiled = seg;
+            }
+            if (literal && compiled instanceof String) {
+                rootBuf.append('/').append(seg);
+            } else {
+                literal = false;
+            }
+            segs.add(compiled);
+        }
+        if (literal) {
+            throw new IllegalArgumentException(
+                    "Path pattern has no wildcards, use a D2C rule instead: " + pattern);
+        }
+        this.root = rootBuf.length() == 0 ? "/" : rootBuf.toString();
+        this.segments = segs.toArray();
+    }
+
+    /**
+     * @return True if some descendant of the node at the path could match the pattern, meaning
+     * the children of the node need to be listed.
+     */
+    public boolean canDescend(String path) {
+        return match(0, split(path), 0, true);
+    }
+
+    /**
+     * @return The deepest path that contains every match, where listing starts.
+     */
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * @return True if the path matches the pattern.
+     */
+    public boolean matches(String path) {
+        return match(0, split(path), 0, false);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private static Pattern compileSegment(String seg) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < seg.length(); i++) {
+            char ch = seg.charAt(i);
+            if (ch == '*' || ch == '?') {
+                if (i > start) {
+                    regex.append(Pattern.quote(seg.substring(start, i)));
+                }
+                regex.append(ch == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < seg.length()) {
+            regex.append(Pattern.quote(seg.substring(start)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @param prefix If true, succeeds when the path runs out before the pattern does, as long
+     *               as the path is still a possible prefix of a match.
+     */
+    private boolean match(int patIdx, String[] path, int pathIdx, boolean prefix) {
+        while (patIdx < segments.length) {
+            Object seg = segments[patIdx];
+            if (seg == ANY_DEPTH) {
+                if (prefix) {
+                    return true;
+                }
+                for (int i = pathIdx; i <= path.length; i++) {
+                    if (match(patIdx + 1, path, i, false)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (pathIdx >= path.length) {
+                return prefix;
+            }
+            String name = path[pathIdx];
+            if (seg instanceof String) {
+                if (!seg.equals(name)) {
+                    return false;
+                }
+            } else if (!((Pattern) seg).matcher(name).matches()) {
+                return false;
+            }
+            patIdx++;
+            pathIdx++;
+        }
+        //A path that equals the whole pattern has no descendants that match
+        return !prefix && pathIdx == path.length;
+    }
+
+    private static String[] split(String path) {
+        List<String> segs = new ArrayList<String>();
+        for (String seg : path.split("/")) {
+            if (!seg.isEmpty()) {
+                segs.add(seg);
+            }
+        }
+        return segs.toArray(new String[segs.size()]);
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.iot.dsa.iothub;
+
+/**
+ * Entry point for recording JDK Flight Recorder events of the device pipeline. Recording is off
+ * unless enabled on the main node, in which case every method here is a single null check.
+ *
+ * <p>The event classes use jdk.jfr, which older Java 8 runtimes don't have, so they are built
+ * from their own source set, src/jfr, and only loaded once recording is enabled on a JVM that
+ * supports it.
+ */
+public class PipelineEvents {
+
+    private static final String RECORDER_CLASS = "org.iot.dsa.iothub.jfr.JfrRecorder";
+
+    private static volatile PipelineRecorder recorder;
+
+    private PipelineEvents() {
+    }
+
+    /**
+     * @return True if the JVM supports Flight Recorder events.
+     */
+    public static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return recorder != null;
+    }
+
+    /**
+     * @return True if recording is now enabled, false if disabled or not supported.
+     */
+    public static synchronized boolean setEnabled(boolean enabled) {
+        if (!enabled || !isAvailable()) {
+            recorder = null;
+            return false;
+        }
+        if (recorder == null) {
+            try {
+                recorder = (PipelineRecorder) Class.forName(RECORDER_CLASS)
+                                                   .getDeclaredConstructor().newInstance();
+            } catch (Exception | LinkageError e) {
+                recorder = null;
+            }
+        }
+        return recorder != null;
+    }
+
+    public static Object beginC2D() {
+        PipelineRecorder r = recorder;
+        return r != null ? r.beginC2D() : null;
+    }
+
+    public static Object beginD2CSend() {
+        PipelineRecorder r = recorder;
+        return r != null ? r.beginD2CSend() : null;
+    }
+
+    public static Object beginDesiredApply() {
+        PipelineRecorder r = recorder;
+        return r != null ? r.beginDesiredApply() : null;
+    }
+
+    public static Object beginMethod() {
+        PipelineRecorder r = recorder;
+        return r != null ? r.beginMethod() : null;
+    }
+
+    public static void connectionChanged(String device, String status, String reason) {
+        PipelineRecorder r = recorder;
+        if (r != null) {
+            r.connectionChanged(device, status, reason);
+        }
+    }
+
+    public static void d2cEnqueued(String device, String rule, String path) {
+        PipelineRecorder r = recorder;
+        if (r != null) {
+            r.d2cEnqueued(device, rule, path);
+        }
+    }
+
+    public static void endC2D(Object timer, String device, String messageId, String result) {
+        PipelineRecorder r = recorder;
+        if (r != null && timer != null) {
+            r.endC2D(timer, device, messageId, result);
+        }
+    }
+
+    public static void endD2CSend(Object timer, String device, String rule, String path,
+                                  int bytes, String status) {
+        PipelineRecorder r = recorder;
+        if (r != null && timer != null) {
+            r.endD2CSend(timer, device, rule, path, bytes, status);
+        }
+    }
+
+    public static void endDesiredApply(Object timer, String device, String property,
+                                       String path, boolean success) {
+        PipelineRecorder r = recorder;
+        if (r != null && timer != null) {
+            r.endDesiredApply(timer, device, property, path, success);
+        }
+    }
+
+    public static void endMethod(Object timer, String device, String method, int status) {
+        PipelineRecorder r = recorder;
+        if (r != null && timer != null) {
+            r.endMethod(timer, device, method, status);
+        }
+    }
+
+    public static void twinPatchSent(String device, int properties) {
+        PipelineRecorder r = recorder;
+        if (r != null) {
+            r.twinPatchSent(device, properties);
+        }
+    }
+
+    public static void twinResponse(String device, String status) {
+        PipelineRecorder r = recorder;
+        if (r != null) {
+            r.twinResponse(device, status);
+        }
+    }
+
+}
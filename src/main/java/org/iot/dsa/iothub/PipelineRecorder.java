@@ -0,0 +1,43 @@
+package org.iot.dsa.iothub;
+
+/**
+ * Records timing events of the device pipeline. Methods named begin return a timer for the
+ * matching end method.
+ *
+ * @see PipelineEvents
+ */
+public interface PipelineRecorder {
+
+    Object beginC2D();
+
+    Object beginD2CSend();
+
+    Object beginDesiredApply();
+
+    Object beginMethod();
+
+    void connectionChanged(String device, String status, String reason);
+
+    /**
+     * @param rule Name of the D2C rule node.
+     */
+    void d2cEnqueued(String device, String rule, String path);
+
+    void endC2D(Object timer, String device, String messageId, String result);
+
+    /**
+     * @param rule Name of the D2C rule node, or null for a frame or a message sent by action.
+     */
+    void endD2CSend(Object timer, String device, String rule, String path, int bytes,
+                    String status);
+
+    void endDesiredApply(Object timer, String device, String property, String path,
+                         boolean success);
+
+    void endMethod(Object timer, String device, String method, int status);
+
+    void twinPatchSent(String device, int properties);
+
+    void twinResponse(String device, String status);
+
+}
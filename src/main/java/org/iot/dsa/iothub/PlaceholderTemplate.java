@@ -0,0 +1,126 @@
+package org.iot.dsa.iothub;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A string containing the placeholders %VALUE%, %TIMESTAMP%, %STATUS% and %PATH%, compiled once into
+ * literal and placeholder segments so that resolving it for an update doesn't need to search
+ * the string.
+ */
+public class PlaceholderTemplate {
+
+    static final String PATH = "%PATH%";
+    static final String STATUS = "%STATUS%";
+    static final String TIMESTAMP = "%TIMESTAMP%";
+    static final String VALUE = "%VALUE%";
+
+    private static final Object PATH_SEG = new Object();
+    private static final Object STATUS_SEG = new Object();
+    private static final Object TIMESTAMP_SEG = new Object();
+    private static final Object VALUE_SEG = new Object();
+    private static final ThreadLocal<StringBuilder> builders = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
+
+    private final String literal;
+    private final Object[] segments;
+    private final String text;
+
+    public PlaceholderTemplate(String text) {
+        this.text = text != null ? text : "";
+        List<Object> segs = new ArrayList<Object>();
+        int start = 0;
+        int idx = this.text.indexOf('%');
+        while (idx >= 0) {
+            Object seg = null;
+            int len = 0;
+            if (this.text.startsWith(VALUE, idx)) {
+                seg = VALUE_SEG;
+                len = VALUE.length();
+            } else if (this.text.startsWith(TIMESTAMP, idx)) {
+                seg = TIMESTAMP_SEG;
+                len = TIMESTAMP.length();
+            } else if (this.text.startsWith(STATUS, idx)) {
+                seg = STATUS_SEG;
+                len = STATUS.length();
+            } else if (this.text.startsWith(PATH, idx)) {
+                seg = PATH_SEG;
+                len = PATH.length();
+            }
+            if (seg != null) {
+                if (idx > start) {
+                    segs.add(this.text.substring(start, idx));
+                }
+                segs.add(seg);
+                start = idx + len;
+                idx = this.text.indexOf('%', start);
+            } else {
+                idx = this.text.indexOf('%', idx + 1);
+            }
+        }
+        if (segs.isEmpty()) {
+            literal = this.text.intern();
+            segments = null;
+        } else {
+            if (start < this.text.length()) {
+                segs.add(this.text.substring(start));
+            }
+            literal = null;
+            segments = segs.toArray();
+        }
+    }
+
+    /**
+     * @return The text this template was compiled from.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return True if the template contains no placeholders.
+     */
+    public boolean isLiteral() {
+        return literal != null;
+    }
+
+    /**
+     * @param update May be null, in which case placeholders are left as they are.
+     * @return The template with the placeholders replaced by the values of the update.
+     */
+    public String resolve(D2CUpdate update) {
+        if (literal != null) {
+            return literal;
+        }
+        if (update == null) {
+            return text;
+        }
+        if (segments.length == 1) {
+            return resolve(segments[0], update);
+        }
+        StringBuilder buf = builders.get();
+        buf.setLength(0);
+        for (Object seg : segments) {
+            buf.append(resolve(seg, update));
+        }
+        return buf.toString();
+    }
+
+    private static String resolve(Object segment, D2CUpdate update) {
+        if (segment == VALUE_SEG) {
+            return update.getValueString();
+        } else if (segment == TIMESTAMP_SEG) {
+            return update.getTimestampString();
+        } else if (segment == STATUS_SEG) {
+            return update.getStatusString();
+        } else if (segment == PATH_SEG) {
+            return update.getPath();
+        }
+        return (String) segment;
+    }
+
+}
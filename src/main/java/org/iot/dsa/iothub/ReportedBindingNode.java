@@ -0,0 +1,197 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSNode;
+import org.iot.dsa.node.DSStatus;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * Mirrors a DSA value into a reported property of the device twin. Updates closer together than
+ * the minimum interval are held back, and numeric changes smaller than the threshold are ignored.
+ */
+public class ReportedBindingNode extends DSNode implements SubscriptionManager.Listener {
+
+    static final String MIN_INTERVAL = "Min Interval";
+    static final String PATH = "Path";
+    static final String PROPERTY = "Property";
+    static final String THRESHOLD = "Change Threshold";
+    private static final String LAST_REPORTED = "Last Reported";
+    private static final String LAST_RESULT = "Last Result";
+
+    private DSElement held;
+    private DSRuntime.Timer heldTimer;
+    private DSInfo lastReported = getInfo(LAST_REPORTED);
+    private DSInfo lastResult = getInfo(LAST_RESULT);
+    private long lastTime;
+    private DSElement lastValue;
+    private Double minInterval;
+    private String path;
+    private String property;
+    private SubscriptionManager.Subscription subscription;
+    private Double threshold;
+
+    public ReportedBindingNode() {
+    }
+
+    public ReportedBindingNode(DSMap parameters) {
+        this.property = parameters.getString(PROPERTY);
+        this.path = parameters.getString(PATH);
+        this.minInterval = parameters.get(MIN_INTERVAL, 1.0);
+        this.threshold = parameters.get(THRESHOLD, 0.0);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    @Override
+    public void onUpdate(DSDateTime dateTime, DSElement value, DSStatus status) {
+        if (value == null || (status != null && !status.isOk())) {
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            if (!isChange(value)) {
+                held = null;
+                return;
+            }
+            delay = lastTime + (long) (minInterval * 1000) - System.currentTimeMillis();
+            if (delay > 0) {
+                held = value;
+                if (heldTimer == null) {
+                    heldTimer = DSRuntime.runDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            releaseHeld();
+                        }
+                    }, delay);
+                }
+                return;
+            }
+            accept(value);
+        }
+        offer(value);
+    }
+
+    /**
+     * Records the outcome of the patch that carried the last reported value.
+     */
+    void recordResult(String result) {
+        put(lastResult, DSString.valueOf(DSDateTime.now() + " " + result));
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(LAST_REPORTED, DSString.EMPTY).setTransient(true).setReadOnly(true);
+        declareDefault(LAST_RESULT, DSString.EMPTY).setTransient(true).setReadOnly(true);
+    }
+
+    @Override
+    protected void onRemoved() {
+        super.onRemoved();
+        close();
+    }
+
+    @Override
+    protected void onStable() {
+        super.onStable();
+        property = load(PROPERTY, property, "");
+        path = load(PATH, path, "");
+        minInterval = load(MIN_INTERVAL, minInterval, 1.0);
+        threshold = load(THRESHOLD, threshold, 0.0);
+        if (!property.isEmpty() && !path.isEmpty()) {
+            subscription = MainNode.getSubscriptions().subscribe(path, this);
+        }
+    }
+
+    @Override
+    protected void onStopped() {
+        super.onStopped();
+        close();
+    }
+
+    private void accept(DSElement value) {
+        lastValue = value;
+        lastTime = System.currentTimeMillis();
+        held = null;
+    }
+
+    private void close() {
+        SubscriptionManager.Subscription sub;
+        synchronized (this) {
+            sub = subscription;
+            subscription = null;
+            if (heldTimer != null) {
+                heldTimer.cancel();
+                heldTimer = null;
+            }
+        }
+        if (sub != null) {
+            sub.close();
+        }
+    }
+
+    /**
+     * Must be called while synchronized on this node.
+     */
+    private boolean isChange(DSElement value) {
+        if (lastValue == null) {
+            return true;
+        }
+        if (value.isNumber() && lastValue.isNumber()) {
+            return Math.abs(value.toDouble() - lastValue.toDouble()) > Math.max(threshold, 0);
+        }
+        return !value.equals(lastValue);
+    }
+
+    private String load(String name, String value, String def) {
+        if (value == null) {
+            DSIObject obj = get(name);
+            return obj instanceof DSString ? obj.toString() : def;
+        }
+        put(name, DSString.valueOf(value)).setReadOnly(true);
+        return value;
+    }
+
+    private Double load(String name, Double value, double def) {
+        if (value == null) {
+            DSIObject obj = get(name);
+            return obj instanceof DSElement ? ((DSElement) obj).toDouble() : def;
+        }
+        put(name, DSDouble.valueOf(value)).setReadOnly(true);
+        return value;
+    }
+
+    private void offer(DSElement value) {
+        put(lastReported, value);
+        DSNode parent = getParent();
+        if (parent instanceof ReportedBindingsNode) {
+            ((ReportedBindingsNode) parent).offer(this, value);
+        }
+    }
+
+    private void releaseHeld() {
+        DSElement value;
+        synchronized (this) {
+            heldTimer = null;
+            value = held;
+            if (value == null || subscription == null) {
+                return;
+            }
+            accept(value);
+        }
+        offer(value);
+    }
+
+}
@@ -0,0 +1,141 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.dslink.ActionResults;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSNode;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.node.action.DSAction;
+import org.iot.dsa.node.action.DSIActionRequest;
+
+/**
+ * Holds the reported property bindings of a device. Values offered by all bindings during the
+ * flush window are merged, and sent to IoT Hub as a single reported properties patch.
+ */
+public class ReportedBindingsNode extends DSNode {
+
+    static final String FLUSH_WINDOW = "Flush Window";
+
+    private Map<String, Pending> pending = new LinkedHashMap<String, Pending>();
+    private boolean scheduled = false;
+
+    /**
+     * Queues the latest value of a binding for the next patch.
+     */
+    void offer(ReportedBindingNode binding, DSElement value) {
+        synchronized (this) {
+            pending.put(binding.getProperty(), new Pending(binding, value));
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        DSRuntime.runDelayed(new Runnable() {
+            @Override
+            public void run() {
+                BlockingExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+            }
+        }, getFlushWindow());
+    }
+
+    @Override
+    protected void declareDefaults() {
+        super.declareDefaults();
+        declareDefault(FLUSH_WINDOW, DSDouble.valueOf(1));
+        declareDefault("Add Binding", makeAddBindingAction());
+    }
+
+    private void addBinding(DSMap parameters) {
+        String name = parameters.getString("Name");
+        add(name, new ReportedBindingNode(parameters));
+    }
+
+    /**
+     * Sends everything offered since the last flush as one patch.
+     */
+    private void flush() {
+        Map<String, Pending> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new LinkedHashMap<String, Pending>();
+            scheduled = false;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        Set<Property> props = new HashSet<Property>();
+        List<ReportedBindingNode> sources = new ArrayList<ReportedBindingNode>(batch.size());
+        for (Map.Entry<String, Pending> e : batch.entrySet()) {
+            props.add(new Property(e.getKey(), Util.elementToObject(e.getValue().value)));
+            sources.add(e.getValue().binding);
+        }
+        String result;
+        DSNode parent = getParent();
+        if (!(parent instanceof LocalDeviceNode)) {
+            return;
+        }
+        try {
+            ((LocalDeviceNode) parent).sendReportedPatch(props);
+            result = "Sent in a patch of " + props.size();
+        } catch (RuntimeException e) {
+            warn("Error sending reported property bindings", e);
+            result = "Failed: " + e.getMessage();
+        }
+        for (ReportedBindingNode binding : sources) {
+            binding.recordResult(result);
+        }
+    }
+
+    private long getFlushWindow() {
+        DSIObject window = get(FLUSH_WINDOW);
+        return window instanceof DSElement ? (long) (((DSElement) window).toDouble() * 1000)
+                : 1000;
+    }
+
+    private static DSAction makeAddBindingAction() {
+        DSAction act = new DSAction() {
+            @Override
+            public ActionResults invoke(DSIActionRequest req) {
+                ((ReportedBindingsNode) req.getTarget()).addBinding(req.getParameters());
+                return null;
+            }
+        };
+        act.addParameter("Name", DSString.NULL, null);
+        act.addParameter(ReportedBindingNode.PROPERTY, DSString.NULL,
+                         "Name of the reported property");
+        act.addParameter(ReportedBindingNode.PATH, DSString.NULL,
+                         "DSA path of the value to report");
+        act.addDefaultParameter(ReportedBindingNode.MIN_INTERVAL, DSDouble.valueOf(1),
+                                "Minimum seconds between reports of this value");
+        act.addDefaultParameter(ReportedBindingNode.THRESHOLD, DSDouble.valueOf(0),
+                                "Numeric changes no larger than this are not reported");
+        return act;
+    }
+
+    private static class Pending {
+
+        final ReportedBindingNode binding;
+        final DSElement value;
+
+        Pending(ReportedBindingNode binding, DSElement value) {
+            this.binding = binding;
+            this.value = value;
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.dslink.DSIRequester;
+import org.iot.dsa.dslink.DSRequestException;
+import org.iot.dsa.dslink.requester.ErrorType;
+import org.iot.dsa.dslink.requester.SimpleInvokeHandler;
+import org.iot.dsa.dslink.requester.SimpleRequestHandler;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSStatus;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * Blocking helpers for performing DSA operations through the link's requester.
+ */
+public class RequesterOps {
+
+    /**
+     * Reads the current value of a path through the link's shared subscriptions, so a path
+     * that is already subscribed, such as by a D2C rule, answers at once.
+     *
+     * @throws RuntimeException If not connected to the broker, or on timeout.
+     */
+    public static DSElement get(String path, long timeout) {
+        requester();
+        GetListener listener = new GetListener();
+        SubscriptionManager.Subscription sub = MainNode.getSubscriptions().subscribe(path,
+                                                                                  listener);
+        try {
+            return listener.waitForValue(timeout);
+        } finally {
+            sub.close();
+        }
+    }
+
+    /**
+     * Invokes an action and waits for the first row of results.
+     *
+     * @return The first row, or null if the action doesn't return anything.
+     * @throws RuntimeException If not connected to the broker, on timeout or if the action fails.
+     */
+    public static DSList invoke(String path, DSMap params, long timeout) {
+        SimpleInvokeHandler handler = new SimpleInvokeHandler();
+        requester().invoke(path, params, handler);
+        return handler.getUpdate(timeout);
+    }
+
+    /**
+     * Sets a value and waits for the broker to close the request.
+     *
+     * @throws RuntimeException If not connected to the broker, on timeout or if the set fails.
+     */
+    public static void set(String path, DSElement value, long timeout) {
+        SetHandler handler = new SetHandler();
+        requester().set(path, value, handler);
+        handler.waitForClose(timeout);
+    }
+
+    private static DSIRequester requester() {
+        DSIRequester requester = MainNode.getRequester(MainNode.getRequesterTimeout());
+        if (requester == null) {
+            throw new DSRequestException("Not connected to the DSA broker");
+        }
+        return requester;
+    }
+
+    /**
+     * Waits for the first update of a subscription.
+     */
+    private static class GetListener implements SubscriptionManager.Listener {
+
+        private DSElement value;
+
+        @Override
+        public synchronized void onUpdate(DSDateTime dateTime, DSElement value, DSStatus status) {
+            if (this.value == null) {
+                this.value = value;
+                notifyAll();
+            }
+        }
+
+        synchronized DSElement waitForValue(long timeout) {
+            long end = System.currentTimeMillis() + timeout;
+            while (value == null) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Get timed out");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted");
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Tracks the outcome of a set request.
+     */
+    private static class SetHandler extends SimpleRequestHandler {
+
+        private boolean closed = false;
+        private String error;
+
+        @Override
+        public void onClose() {
+            super.onClose();
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onError(ErrorType type, String msg) {
+            super.onError(type, msg);
+            synchronized (this) {
+                error = type + ": " + msg;
+                closed = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void waitForClose(long timeout) {
+            long end = System.currentTimeMillis() + timeout;
+            while (!closed) {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Set timed out");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted");
+                }
+            }
+            if (error != null) {
+                throw new DSRequestException(error);
+            }
+        }
+    }
+
+}
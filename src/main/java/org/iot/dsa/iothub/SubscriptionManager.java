@@ -0,0 +1,308 @@
+package org.iot.dsa.iothub;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.iot.dsa.dslink.DSIRequester;
+import org.iot.dsa.dslink.requester.AbstractSubscribeHandler;
+import org.iot.dsa.dslink.requester.ErrorType;
+import org.iot.dsa.dslink.requester.OutboundStream;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSInt;
+import org.iot.dsa.node.DSStatus;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * Shares DSA subscriptions between everything in the link that watches the same path. There is
+ * at most one requester subscription per path, whose updates are fanned out to all listeners of
+ * that path. The subscription is closed when its last listener goes away.
+ */
+public class SubscriptionManager {
+
+    private MainNode owner;
+    private final Map<String, SharedSubscription> subscriptions =
+            new HashMap<String, SharedSubscription>();
+
+    /**
+     * @return The number of requester subscriptions currently open or opening.
+     */
+    public int getCount() {
+        synchronized (subscriptions) {
+            return subscriptions.size();
+        }
+    }
+
+    /**
+     * Subscribes to a path. If another listener is already subscribed to the path, the listener
+     * immediately receives the last update of the path, if there has been one.
+     *
+     * @return Handle for closing the subscription.
+     */
+    public Subscription subscribe(String path, Listener listener) {
+        SharedSubscription shared;
+        boolean created = false;
+        synchronized (subscriptions) {
+            shared = subscriptions.get(path);
+            if (shared == null) {
+                shared = new SharedSubscription(path);
+                subscriptions.put(path, shared);
+                created = true;
+            }
+            shared.addListener(listener);
+        }
+        if (created) {
+            shared.open();
+            countChanged();
+        } else {
+            shared.replay(listener);
+        }
+        return new Subscription(shared, listener);
+    }
+
+    /**
+     * Called by the main node once it has started, it is used for logging and to publish the
+     * subscription count.
+     */
+    void setOwner(MainNode owner) {
+        this.owner = owner;
+        countChanged();
+    }
+
+    private void countChanged() {
+        MainNode main = owner;
+        if (main != null) {
+            main.updateSharedSubscriptions(getCount());
+        }
+    }
+
+    private void release(SharedSubscription shared, Listener listener) {
+        boolean last = false;
+        synchronized (subscriptions) {
+            if (shared.removeListener(listener) && shared.isUnused()
+                    && subscriptions.get(shared.path) == shared) {
+                subscriptions.remove(shared.path);
+                last = true;
+            }
+        }
+        if (last) {
+            shared.close();
+            countChanged();
+        }
+    }
+
+    /**
+     * Receives the updates of a subscribed path.
+     */
+    public interface Listener {
+
+        void onUpdate(DSDateTime dateTime, DSElement value, DSStatus status);
+
+    }
+
+    /**
+     * The subscription of a single listener.
+     */
+    public class Subscription {
+
+        private boolean closed = false;
+        private final Listener listener;
+        private final SharedSubscription shared;
+
+        private Subscription(SharedSubscription shared, Listener listener) {
+            this.shared = shared;
+            this.listener = listener;
+        }
+
+        /**
+         * Stops delivering updates to the listener. Safe to call more than once.
+         */
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            release(shared, listener);
+        }
+
+        public String getPath() {
+            return shared.path;
+        }
+
+    }
+
+    /**
+     * The requester subscription to a single path.
+     */
+    private class SharedSubscription extends AbstractSubscribeHandler {
+
+        private boolean closed = false;
+        private final Object deliveryLock = new Object();
+        private LastUpdate last;
+        private volatile Delivery[] listeners = new Delivery[0];
+        private final String path;
+        private long seq;
+
+        SharedSubscription(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void onError(ErrorType type, String msg) {
+            super.onError(type, msg);
+            MainNode main = owner;
+            if (main != null) {
+                main.warn("Subscription to " + path + " failed: " + type + ", " + msg);
+            }
+        }
+
+        /**
+         * Updates and replays are delivered under the same lock, so a listener never receives
+         * the replay of an older value after a newer one.
+         */
+        @Override
+        public void onUpdate(DSDateTime dateTime, DSElement value, DSStatus status) {
+            synchronized (deliveryLock) {
+                LastUpdate update = new LastUpdate(++seq, dateTime, value, status);
+                last = update;
+                for (Delivery delivery : listeners) {
+                    delivery.seq = update.seq;
+                    deliver(delivery.listener, update);
+                }
+            }
+        }
+
+        /**
+         * Must be called while holding the lock of the subscriptions map.
+         */
+        void addListener(Listener listener) {
+            Delivery[] current = listeners;
+            Delivery[] added = Arrays.copyOf(current, current.length + 1);
+            added[current.length] = new Delivery(listener);
+            listeners = added;
+        }
+
+        void close() {
+            OutboundStream stream;
+            synchronized (this) {
+                closed = true;
+                stream = getStream();
+            }
+            if (stream != null) {
+                stream.closeStream();
+            }
+        }
+
+        /**
+         * Must be called while holding the lock of the subscriptions map.
+         */
+        boolean isUnused() {
+            return listeners.length == 0;
+        }
+
+        void open() {
+            MainNode.whenRequesterReady(requester -> subscribe(requester));
+        }
+
+        /**
+         * Must be called while holding the lock of the subscriptions map.
+         *
+         * @return True if the listener was removed.
+         */
+        boolean removeListener(Listener listener) {
+            Delivery[] current = listeners;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].listener == listener) {
+                    Delivery[] removed = new Delivery[current.length - 1];
+                    System.arraycopy(current, 0, removed, 0, i);
+                    System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+                    listeners = removed;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Delivers the last update to a listener that was just added, unless it has already
+         * received it, or a newer one, as a live update.
+         */
+        void replay(Listener listener) {
+            synchronized (deliveryLock) {
+                LastUpdate update = last;
+                if (update == null) {
+                    return;
+                }
+                for (Delivery delivery : listeners) {
+                    if (delivery.listener == listener) {
+                        if (delivery.seq < update.seq) {
+                            delivery.seq = update.seq;
+                            deliver(listener, update);
+                        }
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void deliver(Listener listener, LastUpdate update) {
+            try {
+                listener.onUpdate(update.dateTime, update.value, update.status);
+            } catch (Exception e) {
+                MainNode main = owner;
+                if (main != null) {
+                    main.warn("Error handling update of " + path, e);
+                }
+            }
+        }
+
+        private void subscribe(DSIRequester requester) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            requester.subscribe(path, DSInt.valueOf(0), this);
+            OutboundStream stream = null;
+            synchronized (this) {
+                if (closed) {
+                    stream = getStream();
+                }
+            }
+            if (stream != null) {
+                stream.closeStream();
+            }
+        }
+    }
+
+    /**
+     * A listener of a shared subscription, with the sequence number of the last update it was
+     * given.
+     */
+    private static class Delivery {
+
+        final Listener listener;
+        long seq;
+
+        Delivery(Listener listener) {
+            this.listener = listener;
+        }
+    }
+
+    private static class LastUpdate {
+
+        final DSDateTime dateTime;
+        final long seq;
+        final DSStatus status;
+        final DSElement value;
+
+        LastUpdate(long seq, DSDateTime dateTime, DSElement value, DSStatus status) {
+            this.seq = seq;
+            this.dateTime = dateTime;
+            this.value = value;
+            this.status = status;
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubEventCallback;
+import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
+import com.microsoft.azure.sdk.iot.device.Message;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.iot.dsa.dslink.Action.ResultsType;
+import org.iot.dsa.dslink.ActionResults;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSLong;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSMap.Entry;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.node.DSValueType;
+import org.iot.dsa.node.action.DSIActionRequest;
+
+/**
+ * Measures what the connection of a device can sustain by sending synthetic D2C messages, and
+ * streams the progress as rows of action results. Test messages have the property
+ * {@value #TEST_PROPERTY} so that IoT Hub routing can drop them.
+ *
+ * <p>The test bypasses the hub rate limiter, since its point is to find the limit. When run with
+ * a protocol other than the device's, it opens a second client for the same device, and IoT Hub
+ * will disconnect the device's own client until the test is over.
+ */
+public class ThroughputTest implements ActionResults {
+
+    static final int MAX_COUNT = 1000000;
+    static final String TEST_PROPERTY = "dsa-throughput-test";
+    private static final String[] COLUMNS = {
+            "Phase", "Sent", "Acknowledged", "Errors", "Msgs/Sec", "Bytes/Sec", "P50 ms",
+            "P90 ms", "P99 ms", "Max ms", "Errors By Status"
+    };
+    private static final DSValueType[] TYPES = {
+            DSValueType.STRING, DSValueType.NUMBER, DSValueType.NUMBER, DSValueType.NUMBER,
+            DSValueType.NUMBER, DSValueType.NUMBER, DSValueType.NUMBER, DSValueType.NUMBER,
+            DSValueType.NUMBER, DSValueType.NUMBER, DSValueType.MAP
+    };
+    private static final long DRAIN_TIMEOUT = 60000;
+    /**
+     * Errors key of messages that were never acknowledged, which aren't counted in acked.
+     */
+    private static final String NO_RESPONSE = "NO_RESPONSE";
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private int acked = 0;
+    private volatile boolean closed = false;
+    private final int concurrency;
+    private final int count;
+    private DSList current;
+    private final LocalDeviceNode device;
+    private final Map<String, Integer> errors = new TreeMap<String, Integer>();
+    private final long[] latencies;
+    private final IotHubClientProtocol protocol;
+    private final DSIActionRequest req;
+    private final ArrayDeque<DSList> rows = new ArrayDeque<DSList>();
+    private int sent = 0;
+    private final int size;
+    private long startTime;
+    private final long[] sendTimes;
+
+    public ThroughputTest(LocalDeviceNode device, DSIActionRequest req, int count, int size,
+                          int concurrency, IotHubClientProtocol protocol) {
+        this.device = device;
+        this.req = req;
+        this.count = Math.max(1, Math.min(count, MAX_COUNT));
+        this.size = Math.max(0, size);
+        this.concurrency = Math.max(1, concurrency);
+        this.protocol = protocol;
+        this.latencies = new long[this.count];
+        this.sendTimes = new long[this.count];
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public void getColumnMetadata(int idx, DSMap bucket) {
+        for (Entry entry : Util.makeColumn(COLUMNS[idx], TYPES[idx])) {
+            bucket.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void getResults(DSList bucket) {
+        if (current != null) {
+            bucket.addAll(current);
+        }
+    }
+
+    @Override
+    public ResultsType getResultsType() {
+        return ResultsType.STREAM;
+    }
+
+    @Override
+    public synchronized boolean next() {
+        current = rows.poll();
+        return current != null;
+    }
+
+    @Override
+    public void onClose() {
+        closed = true;
+    }
+
+    /**
+     * Runs the test in the background.
+     */
+    public void start() {
+        BlockingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //an on-demand device connects for a test on its own connection, and stays
+                //connected until the test ends
+                boolean shared = protocol == null || protocol == device.getProtocol();
+                try {
+                    OnDemandConnector od = shared ? device.beginWork() : null;
+                    try {
+                        runTest();
+                    } finally {
+                        device.endWork(od);
+                    }
+                } catch (Exception e) {
+                    device.warn("Throughput test failed", e);
+                    req.close(e);
+                }
+            }
+        });
+    }
+
+    private void publish(String phase) {
+        DSList row;
+        synchronized (this) {
+            double elapsed = Math.max(1, System.nanoTime() - startTime) / 1e9;
+            int errorCount = 0;
+            int ackedErrors = 0;
+            DSMap byStatus = new DSMap();
+            for (Map.Entry<String, Integer> e : errors.entrySet()) {
+                errorCount += e.getValue();
+                if (!NO_RESPONSE.equals(e.getKey())) {
+                    ackedErrors += e.getValue();
+                }
+                byStatus.put(e.getKey(), e.getValue());
+            }
+            int ok = acked - ackedErrors;
+            long[] done = Arrays.copyOf(latencies, acked);
+            Arrays.sort(done);
+            row = new DSList().add(phase)
+                              .add(DSLong.valueOf(sent))
+                              .add(DSLong.valueOf(ok))
+                              .add(DSLong.valueOf(errorCount))
+                              .add(DSDouble.valueOf(ok / elapsed))
+                              .add(DSDouble.valueOf((double) ok * size / elapsed))
+                              .add(percentile(done, 0.5))
+                              .add(percentile(done, 0.9))
+                              .add(percentile(done, 0.99))
+                              .add(percentile(done, 1))
+                              .add(byStatus);
+            rows.add(row);
+        }
+        req.sendResults();
+    }
+
+    private static DSDouble percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return DSDouble.valueOf(0);
+        }
+        int idx = (int) Math.ceil(p * sorted.length) - 1;
+        idx = Math.max(0, Math.min(sorted.length - 1, idx));
+        return DSDouble.valueOf(sorted[idx] / 1e6);
+    }
+
+    private void runTest() throws Exception {
+        DeviceTransport client = device.getClientForTest(protocol);
+        boolean own = client != null && protocol != null && protocol != device.getProtocol();
+        if (client == null) {
+            throw new IllegalStateException("Client not initialized");
+        }
+        try {
+            byte[] payload = new byte[size];
+            Arrays.fill(payload, (byte) 'x');
+            final Semaphore inFlight = new Semaphore(concurrency);
+            IotHubEventCallback callback = new IotHubEventCallback() {
+                @Override
+                public void execute(IotHubStatusCode status, Object context) {
+                    int idx = (Integer) context;
+                    long latency = System.nanoTime() - sendTimes[idx];
+                    synchronized (ThroughputTest.this) {
+                        latencies[acked++] = latency;
+                        if (status != IotHubStatusCode.OK && status != IotHubStatusCode.OK_EMPTY) {
+                            String key = String.valueOf(status);
+                            Integer n = errors.get(key);
+                            errors.put(key, n == null ? 1 : n + 1);
+                        }
+                    }
+                    inFlight.release();
+                }
+            };
+            startTime = System.nanoTime();
+            long nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL;
+            for (int i = 0; i < count && !closed; i++) {
+                inFlight.acquire();
+                Message msg = new Message(payload);
+                msg.setProperty(TEST_PROPERTY, "true");
+                msg.setMessageId(MessageIds.next());
+                sendTimes[i] = System.nanoTime();
+                client.sendEventAsync(msg, callback, i);
+                synchronized (this) {
+                    sent++;
+                }
+                if (System.currentTimeMillis() >= nextProgress) {
+                    publish("Running");
+                    nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL;
+                }
+            }
+            if (!inFlight.tryAcquire(concurrency, DRAIN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                synchronized (this) {
+                    errors.put(NO_RESPONSE, sent - acked);
+                }
+            }
+            publish(closed ? "Cancelled" : "Done");
+            req.close();
+        } finally {
+            if (own) {
+                client.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+package org.iot.dsa.iothub;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.iot.dsa.DSRuntime;
+
+/**
+ * A hierarchical timing wheel, shared by the rules of the link for their refresh deadlines.
+ * Scheduling and cancelling are constant time, and however many timeouts are pending, a single
+ * repeating task drives the wheel and fires everything that is due in a tick as one batch.
+ *
+ * <p>The first level has a slot per tick. Timeouts further out go into coarser levels, and are
+ * moved down a level each time the level below wraps around. Deadlines are rounded up to the
+ * tick.
+ */
+public class TimingWheel {
+
+    private static final int LEVEL0_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVELS = 4;
+    private static final TimingWheel shared = new TimingWheel(100);
+
+    private final Bucket[][] buckets = new Bucket[LEVELS][];
+    private long currentTick = 0;
+    private DSRuntime.Timer driver;
+    private volatile MainNode owner;
+    private int pending = 0;
+    private long startNanos;
+    private final long tickMillis;
+
+    /**
+     * @param tickMillis The resolution of the wheel.
+     */
+    public TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            int size = 1 << (level == 0 ? LEVEL0_BITS : LEVEL_BITS);
+            buckets[level] = new Bucket[size];
+            for (int i = 0; i < size; i++) {
+                buckets[level][i] = new Bucket();
+            }
+        }
+    }
+
+    /**
+     * @return The wheel shared by the whole link.
+     */
+    public static TimingWheel getShared() {
+        return shared;
+    }
+
+    /**
+     * @return The number of timeouts waiting to fire.
+     */
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * Called by the main node once it has started, it is used to log tasks that fail.
+     */
+    void setOwner(MainNode owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Runs the task on the wheel's thread once the delay has passed. Tasks must be quick, since
+     * they run one after another.
+     *
+     * @return Handle for cancelling the task.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task);
+        synchronized (this) {
+            if (driver == null) {
+                startNanos = System.nanoTime();
+                currentTick = 0;
+                driver = DSRuntime.runAfterDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        tick();
+                    }
+                }, tickMillis, tickMillis);
+            }
+            long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+            timeout.deadline = currentTick + ticks;
+            place(timeout);
+            pending++;
+        }
+        return timeout;
+    }
+
+    /**
+     * Moves the timeouts of a slot of a coarse level to the levels below. Must be called while
+     * synchronized on this.
+     */
+    private void cascade(int level, int index) {
+        Bucket bucket = buckets[level][index];
+        Timeout t = bucket.head;
+        bucket.head = null;
+        while (t != null) {
+            Timeout next = t.next;
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            place(t);
+            t = next;
+        }
+    }
+
+    private static int levelShift(int level) {
+        return level == 0 ? 0 : LEVEL0_BITS + (level - 1) * LEVEL_BITS;
+    }
+
+    /**
+     * Must be called while synchronized on this.
+     */
+    private void place(Timeout t) {
+        long diff = t.deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && diff >= (1L << levelShift(level + 1))) {
+            level++;
+        }
+        long slotTick = t.deadline;
+        long range = 1L << (levelShift(LEVELS - 1) + LEVEL_BITS);
+        if (diff >= range) {
+            //beyond the range of the wheel, parked in the furthest slot and placed again from there
+            slotTick = currentTick + range - (1L << levelShift(LEVELS - 1));
+        }
+        int index = (int) ((slotTick >>> levelShift(level)) & (buckets[level].length - 1));
+        buckets[level][index].add(t);
+    }
+
+    private void tick() {
+        List<Timeout> due = null;
+        synchronized (this) {
+            long target = (System.nanoTime() - startNanos) / (tickMillis * 1000000L);
+            while (currentTick < target) {
+                currentTick++;
+                for (int level = 1; level < LEVELS; level++) {
+                    int shift = levelShift(level);
+                    if ((currentTick & ((1L << shift) - 1)) != 0) {
+                        break;
+                    }
+                    cascade(level, (int) ((currentTick >>> shift) & (buckets[level].length - 1)));
+                }
+                Bucket bucket = buckets[0][(int) (currentTick & (buckets[0].length - 1))];
+                Timeout t = bucket.head;
+                while (t != null) {
+                    Timeout next = t.next;
+                    if (t.deadline <= currentTick) {
+                        bucket.remove(t);
+                        pending--;
+                        if (due == null) {
+                            due = new ArrayList<Timeout>();
+                        }
+                        due.add(t);
+                    }
+                    t = next;
+                }
+            }
+            if (pending == 0 && driver != null) {
+                driver.cancel();
+                driver = null;
+            }
+        }
+        if (due == null) {
+            return;
+        }
+        for (Timeout t : due) {
+            try {
+                t.task.run();
+            } catch (RuntimeException e) {
+                MainNode main = owner;
+                if (main != null) {
+                    main.warn("Error running timer task", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public class Timeout {
+
+        private Bucket bucket;
+        private long deadline;
+        private Timeout next;
+        private Timeout prev;
+        private final Runnable task;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Prevents the task from running, if it hasn't already. Safe to call more than once.
+         */
+        public void cancel() {
+            synchronized (TimingWheel.this) {
+                if (bucket != null) {
+                    bucket.remove(this);
+                    pending--;
+                }
+            }
+        }
+    }
+
+    private static class Bucket {
+
+        Timeout head;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.prev = null;
+            t.next = head;
+            if (head != null) {
+                head.prev = t;
+            }
+            head = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev != null) {
+                t.prev.next = t.next;
+            } else {
+                head = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import java.net.URISyntaxException;
+
+/**
+ * Which {@link DeviceTransport} local devices connect with.
+ */
+public enum TransportType {
+
+    /**
+     * The Azure IoT device client, connected to a real hub.
+     */
+    AZURE {
+        @Override
+        public DeviceTransport newTransport(String connectionString,
+                                           IotHubClientProtocol protocol)
+                throws URISyntaxException {
+            return new AzureDeviceTransport(connectionString, protocol);
+        }
+    },
+
+    /**
+     * An in-memory hub that accepts everything, for benchmarking the link on its own and
+     * running it without a network.
+     */
+    LOOPBACK {
+        @Override
+        public DeviceTransport newTransport(String connectionString,
+                                           IotHubClientProtocol protocol) {
+            return new LoopbackTransport(connectionString);
+        }
+    };
+
+    /**
+     * @return A transport that hasn't been opened yet.
+     */
+    public abstract DeviceTransport newTransport(String connectionString,
+                                                 IotHubClientProtocol protocol)
+            throws URISyntaxException;
+
+}
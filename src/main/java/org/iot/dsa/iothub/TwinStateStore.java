@@ -0,0 +1,177 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSMap.Entry;
+
+/**
+ * The twin state of a device as last acknowledged by IoT Hub, persisted with the device so that a
+ * restart only patches reported properties that changed while the link was down, and the desired
+ * properties can be shown before the twin has been fetched again.
+ *
+ * <p>Each reported properties patch is a {@link Patch}, whose values only become part of the
+ * acknowledged state once IoT Hub has accepted that patch. A patch that fails is simply not
+ * recorded, so its properties are patched again on the next connect.
+ */
+public class TwinStateStore {
+
+    static final String DESIRED = "Desired";
+    static final String REPORTED = "Reported";
+
+    private final DSMap desired;
+    /**
+     * The sequence number of the latest patch sent for each reported property.
+     */
+    private final Map<String, Long> lastSent = new HashMap<String, Long>();
+    private long nextSeq = 1;
+    private final DSMap reported;
+
+    /**
+     * @param persisted The map previously returned by {@link #toMap()}, or null.
+     */
+    public TwinStateStore(DSMap persisted) {
+        DSMap r = persisted != null ? persisted.getMap(REPORTED) : null;
+        DSMap d = persisted != null ? persisted.getMap(DESIRED) : null;
+        reported = r != null ? r.copy() : new DSMap();
+        desired = d != null ? d.copy() : new DSMap();
+    }
+
+    /**
+     * @param current Reported property values by name, as used by the IoT Hub client.
+     * @return The properties whose value differs from the acknowledged state.
+     */
+    public synchronized Set<Property> diffReported(Map<String, Object> current) {
+        Set<Property> changed = new HashSet<Property>();
+        for (Map.Entry<String, Object> e : current.entrySet()) {
+            DSElement acked = reported.get(e.getKey());
+            if (acked == null || !sameValue(acked, Util.objectToElement(e.getValue()))) {
+                changed.add(new Property(e.getKey(), e.getValue()));
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return A copy of the last known desired properties.
+     */
+    public synchronized DSMap getDesired() {
+        return desired.copy();
+    }
+
+    /**
+     * Records a desired property received from IoT Hub.
+     */
+    public synchronized void onDesired(String name, Object value) {
+        desired.put(name, Util.objectToElement(value));
+    }
+
+    /**
+     * @return A patch of the properties, to be passed to the other patch methods.
+     */
+    public synchronized Patch newPatch(Set<Property> props) {
+        return new Patch(props, nextSeq++);
+    }
+
+    /**
+     * Records the values of a patch IoT Hub accepted.
+     *
+     * @return True if the acknowledged state changed and should be persisted.
+     */
+    public synchronized boolean onPatchAcknowledged(Patch patch) {
+        if (patch.values.isEmpty()) {
+            return false;
+        }
+        for (Entry entry : patch.values) {
+            reported.put(entry.getKey(), entry.getValue());
+        }
+        return true;
+    }
+
+    /**
+     * Records that a patch was handed to the client, call only once that succeeded.
+     */
+    public synchronized void onPatchSent(Patch patch) {
+        for (Property prop : patch.properties) {
+            lastSent.put(prop.getKey(), patch.seq);
+        }
+    }
+
+    /**
+     * Removes the properties of a patch that a newer patch has been sent for since, so that
+     * resending it can't overwrite a newer value.
+     *
+     * @return False if nothing is left to resend.
+     */
+    public synchronized boolean retainLatest(Patch patch) {
+        Iterator<Property> it = patch.properties.iterator();
+        while (it.hasNext()) {
+            Property prop = it.next();
+            Long seq = lastSent.get(prop.getKey());
+            if (seq != null && seq > patch.seq) {
+                it.remove();
+                patch.values.remove(prop.getKey());
+            }
+        }
+        return !patch.properties.isEmpty();
+    }
+
+    /**
+     * Numbers are compared by value, since a double that happens to be whole may be read back
+     * from the persisted state as a long.
+     */
+    private static boolean sameValue(DSElement a, DSElement b) {
+        if (a.isNumber() && b.isNumber()) {
+            return a.toDouble() == b.toDouble();
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * @return The acknowledged state, to be persisted.
+     */
+    public synchronized DSMap toMap() {
+        return new DSMap().put(REPORTED, reported.copy())
+                          .put(DESIRED, desired.copy());
+    }
+
+    /**
+     * A reported properties patch and the values it will make acknowledged.
+     */
+    public static class Patch {
+
+        private int attempts = 0;
+        private final Set<Property> properties;
+        private final long seq;
+        private final DSMap values = new DSMap();
+
+        Patch(Set<Property> props, long seq) {
+            this.properties = new HashSet<Property>(props);
+            this.seq = seq;
+            for (Property prop : props) {
+                values.put(prop.getKey(), Util.objectToElement(prop.getValue()));
+            }
+        }
+
+        public Set<Property> getProperties() {
+            return properties;
+        }
+
+        /**
+         * @return How many times the patch has been resent, after incrementing it.
+         */
+        int nextAttempt() {
+            return ++attempts;
+        }
+
+        public int size() {
+            return properties.size();
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.iot.dsa.iothub;
+
+import java.util.List;
+import org.iot.dsa.DSRuntime;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSIObject;
+import org.iot.dsa.node.DSInfo;
+import org.iot.dsa.node.DSNode;
+import org.iot.dsa.iothub.FlatTwinStore.Child;
+
+/**
+ * Presents a branch of a {@link FlatTwinStore} as DSA nodes. The children of a branch are only
+ * created while it is listed or subscribed, and are released again once it has been idle for a
+ * while. The top level is always present so that its values can be subscribed to directly.
+ */
+public class TwinView extends DSNode implements FlatTwinStore.Listener {
+
+    private static final long RELEASE_DELAY = 60000;
+
+    private boolean materialized;
+    private String prefix = "";
+    private DSRuntime.Timer releaseTimer;
+    private FlatTwinStore store;
+
+    public TwinView() {
+    }
+
+    TwinView(FlatTwinStore store, String prefix) {
+        this.store = store;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void onChanged(String path) {
+        update(path);
+    }
+
+    /**
+     * Binds the top level view to its store and shows the top level of the store.
+     */
+    public void setStore(FlatTwinStore store) {
+        this.store = store;
+        store.setListener(this);
+        materialize();
+    }
+
+    @Override
+    protected void onSubscribed() {
+        super.onSubscribed();
+        synchronized (this) {
+            if (releaseTimer != null) {
+                releaseTimer.cancel();
+                releaseTimer = null;
+            }
+        }
+        if (!materialized) {
+            materialize();
+        }
+    }
+
+    @Override
+    protected void onUnsubscribed() {
+        super.onUnsubscribed();
+        if (prefix.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (releaseTimer != null) {
+                releaseTimer.cancel();
+            }
+            releaseTimer = DSRuntime.runDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    release();
+                }
+            }, RELEASE_DELAY);
+        }
+    }
+
+    /**
+     * Brings a materialized view in line with a change to the store.
+     */
+    synchronized void update(String path) {
+        if (!materialized || store == null) {
+            return;
+        }
+        if (!prefix.isEmpty() && !path.startsWith(prefix + FlatTwinStore.SEPARATOR)) {
+            return;
+        }
+        String rel = prefix.isEmpty() ? path : path.substring(prefix.length() + 1);
+        int idx = rel.indexOf(FlatTwinStore.SEPARATOR);
+        String name = idx < 0 ? rel : rel.substring(0, idx);
+        String childPath = FlatTwinStore.childPath(prefix, name);
+        DSElement value = store.get(childPath);
+        if (value != null) {
+            put(name, value).setTransient(true).setReadOnly(true);
+            return;
+        }
+        if (!store.hasChildren(childPath)) {
+            if (getInfo(name) != null) {
+                remove(name);
+            }
+            return;
+        }
+        DSIObject existing = get(name);
+        if (existing instanceof TwinView) {
+            TwinView view = (TwinView) existing;
+            if (childPath.equals(path)) {
+                view.rematerialize();
+            } else {
+                view.update(path);
+            }
+        } else {
+            put(name, new TwinView(store, childPath)).setTransient(true).setReadOnly(true);
+        }
+    }
+
+    private synchronized void materialize() {
+        if (store == null) {
+            return;
+        }
+        clear();
+        List<Child> children = store.getChildren(prefix);
+        for (Child child : children) {
+            String childPath = FlatTwinStore.childPath(prefix, child.name);
+            DSIObject obj;
+            if (child.leaf) {
+                obj = store.get(childPath);
+                if (obj == null) {
+                    continue;
+                }
+            } else {
+                obj = new TwinView(store, childPath);
+            }
+            put(child.name, obj).setTransient(true).setReadOnly(true);
+        }
+        materialized = true;
+    }
+
+    private synchronized void rematerialize() {
+        if (materialized) {
+            materialize();
+        }
+    }
+
+    /**
+     * Drops the children, unless one of the branches below is still in use in which case the
+     * release is retried after another delay.
+     */
+    private synchronized void release() {
+        releaseTimer = null;
+        if (isSubscribed() || !materialized) {
+            return;
+        }
+        for (DSInfo info : this) {
+            DSIObject obj = info.get();
+            if ((obj instanceof TwinView) && ((TwinView) obj).materialized) {
+                onUnsubscribed();
+                return;
+            }
+        }
+        materialized = false;
+        clear();
+    }
+
+}
@@ -1,16 +1,22 @@
 package org.iot.dsa.iothub;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.iot.dsa.iothub.node.BoolNode;
 import org.iot.dsa.iothub.node.DoubleNode;
 import org.iot.dsa.iothub.node.StringNode;
 import org.iot.dsa.node.DSBool;
 import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
 import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSLong;
 import org.iot.dsa.node.DSMap;
 import org.iot.dsa.node.DSMap.Entry;
 import org.iot.dsa.node.DSMetadata;
+import org.iot.dsa.node.DSNull;
 import org.iot.dsa.node.DSString;
 import org.iot.dsa.node.DSValueType;
 import com.microsoft.azure.sdk.iot.device.IotHubStatusCode;
@@ -82,6 +88,109 @@ public class Util {
         }
     }
     
+    /**
+     * Converts a twin property value, as used by the IoT Hub client, to an element.
+     */
+    @SuppressWarnings("unchecked")
+    public static DSElement objectToElement(Object o) {
+        if (o == null) {
+            return DSNull.NULL;
+        }
+        if (o instanceof DSElement) {
+            return (DSElement) o;
+        }
+        if (o instanceof Long || o instanceof Integer) {
+            return DSLong.valueOf(((Number) o).longValue());
+        }
+        if (o instanceof Number) {
+            return DSDouble.valueOf(((Number) o).doubleValue());
+        }
+        if (o instanceof Boolean) {
+            return DSBool.valueOf(((Boolean) o).booleanValue());
+        }
+        if (o instanceof Map) {
+            DSMap map = new DSMap();
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) o).entrySet()) {
+                map.put(e.getKey(), objectToElement(e.getValue()));
+            }
+            return map;
+        }
+        if (o instanceof Collection) {
+            DSList list = new DSList();
+            for (Object item : (Collection<Object>) o) {
+                list.add(objectToElement(item));
+            }
+            return list;
+        }
+        return DSString.valueOf(o.toString());
+    }
+
+    /**
+     * Converts an element to a twin property value, as used by the IoT Hub client.
+     */
+    public static Object elementToObject(DSElement e) {
+        if (e == null || e.isNull()) {
+            return null;
+        }
+        if (e.isBoolean()) {
+            return e.toBoolean();
+        }
+        if (e.isNumber()) {
+            return (e instanceof DSLong) ? (Object) e.toLong() : (Object) e.toDouble();
+        }
+        if (e.isMap()) {
+            Map<String, Object> map = new HashMap<String, Object>();
+            for (Entry en : e.toMap()) {
+                map.put(en.getKey(), elementToObject(en.getValue()));
+            }
+            return map;
+        }
+        if (e.isList()) {
+            List<Object> list = new ArrayList<Object>();
+            for (DSElement item : e.toList()) {
+                list.add(elementToObject(item));
+            }
+            return list;
+        }
+        return e.toString();
+    }
+
+    /**
+     * @return How many bytes the string takes when encoded as UTF-8.
+     */
+    public static int utf8Length(String str) {
+        int len = 0;
+        for (int i = 0, n = str.length(); i < n; i++) {
+            char ch = str.charAt(i);
+            if (ch < 0x80) {
+                len++;
+            } else if (ch < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(ch)) {
+                len += 4;
+                i++;
+            } else {
+                len += 3;
+            }
+        }
+        return len;
+    }
+
+    /**
+     * @return True if any of the keys has a different value in the two maps, a missing key only
+     * equals another missing key.
+     */
+    public static boolean isChanged(DSMap before, DSMap after, String... keys) {
+        for (String key : keys) {
+            DSElement a = before.get(key);
+            DSElement b = after.get(key);
+            if (a == null ? b != null : !a.equals(b)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static String getFromConnString(String connStr, String key) {
         key = key + "=";
         int idx = connStr.indexOf(key);
@@ -96,6 +205,14 @@ public class Util {
         return value;
     }
     
+    /**
+     * @return True if the status means IoT Hub rejected the operation because the hub is over
+     * its quota, and the operation should be retried at a lower rate.
+     */
+    public static boolean isThrottled(IotHubStatusCode status) {
+        return status == IotHubStatusCode.THROTTLED || status == IotHubStatusCode.SERVER_BUSY;
+    }
+
     public static int iotHubStatusToHttpCode(IotHubStatusCode status) {
         switch (status) {
             case BAD_FORMAT:
@@ -0,0 +1,68 @@
+package org.iot.dsa.iothub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The throttling response and token accounting of {@link AdaptiveRateLimiter}.
+ */
+public class AdaptiveRateLimiterTest {
+
+    @Test
+    public void noCeilingNeverWaits() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(0);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(limiter.acquire(1));
+        }
+        limiter.onThrottled();
+        assertEquals(1, limiter.getThrottledCount());
+        assertEquals(0, limiter.getRate(), 0);
+    }
+
+    @Test
+    public void throttlingHalvesTheRateOncePerBurst() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100);
+        assertEquals(100, limiter.getRate(), 0);
+        limiter.onThrottled();
+        assertEquals(50, limiter.getRate(), 0);
+        //within the holdoff, further throttling belongs to the same burst
+        limiter.onThrottled();
+        limiter.onThrottled();
+        assertEquals(50, limiter.getRate(), 0);
+        assertEquals(3, limiter.getThrottledCount());
+    }
+
+    @Test
+    public void acquireTimesOutWithoutTokens() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(1);
+        long start = System.currentTimeMillis();
+        assertFalse(limiter.acquire(50));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    @Test
+    public void tokensAccrueAtTheRate() throws InterruptedException {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100);
+        Thread.sleep(100);
+        //about 10 tokens have accrued, far fewer than the burst of 100
+        int taken = 0;
+        while (limiter.acquire(1)) {
+            taken++;
+        }
+        assertTrue("Took " + taken, taken >= 5 && taken < 100);
+    }
+
+    @Test
+    public void loweringTheCeilingCapsTheRate() {
+        AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(100);
+        limiter.setCeiling(10);
+        assertEquals(10, limiter.getRate(), 0);
+        assertEquals(10, limiter.getCeiling(), 0);
+        limiter.setCeiling(50);
+        assertEquals(10, limiter.getRate(), 1);
+    }
+
+}
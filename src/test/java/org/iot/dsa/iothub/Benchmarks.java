@@ -0,0 +1,58 @@
+package org.iot.dsa.iothub;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measurement helpers shared by the benchmarks, which are plain main classes run with
+ * {@code gradlew benchmark -Pbench=<class name>} rather than unit tests.
+ */
+class Benchmarks {
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @return Bytes allocated by the calling thread so far, or -1 if the JVM can't tell.
+     */
+    static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * @return CPU nanoseconds used by the whole process so far, or -1 if the JVM can't tell.
+     */
+    static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os =
+                ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    static void report(String name, String format, Object... args) {
+        System.out.println(String.format("%-40s ", name) + String.format(format, args));
+    }
+
+    /**
+     * @return Bytes of heap in use after collecting garbage.
+     */
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import java.util.UUID;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSMap;
+import org.iot.dsa.node.DSMap.Entry;
+import org.iot.dsa.node.DSStatus;
+import org.iot.dsa.time.DSDateTime;
+
+/**
+ * Bytes allocated per D2C message assembled from a rule update: the way messages used to be
+ * built, from a properties map and strings resolved for every update with a random UUID id,
+ * against the precomputed {@link D2CTemplate}, the pooled {@link MessageEncoder} and
+ * {@link MessageIds}.
+ */
+public class D2CAllocationBenchmark {
+
+    private static final String BODY = "{\"value\": %VALUE%, \"ts\": \"%TIMESTAMP%\"}";
+    private static final int COUNT = 1000000;
+    private static final int WARMUP = 200000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        DSMap properties = new DSMap().put("site", "plant-1")
+                                      .put("point", "%PATH%")
+                                      .put("status", "%STATUS%");
+        D2CTemplate template = new D2CTemplate(properties, BODY);
+        D2CUpdate update = new D2CUpdate("/downstream/bacnet/dev1/temp", DSDateTime.now(),
+                                         DSDouble.valueOf(21.5), DSStatus.ok);
+        run("before: map, String.replace, UUID", () -> {
+            DSMap resolved = new DSMap();
+            for (Entry entry : properties) {
+                resolved.put(entry.getKey(), resolve(entry.getValue().toString(), update));
+            }
+            Message msg = new Message(resolve(BODY, update));
+            for (Entry entry : resolved) {
+                msg.setProperty(entry.getKey(), entry.getValue().toString());
+            }
+            msg.setMessageId(UUID.randomUUID().toString());
+            sink = msg;
+        });
+        run("after: template, encoder, MessageIds", () -> {
+            Message msg = new Message(MessageEncoder.encode(template.getBody().resolve(update)));
+            template.getProperties().apply(msg, update);
+            msg.setMessageId(MessageIds.next());
+            sink = msg;
+        });
+    }
+
+    private static String resolve(String text, D2CUpdate update) {
+        return text.replace(PlaceholderTemplate.VALUE, update.getValueString())
+                   .replace(PlaceholderTemplate.TIMESTAMP, update.getTimestampString())
+                   .replace(PlaceholderTemplate.STATUS, update.getStatusString())
+                   .replace(PlaceholderTemplate.PATH, update.getPath());
+    }
+
+    private static void run(String name, Runnable assemble) {
+        for (int i = 0; i < WARMUP; i++) {
+            assemble.run();
+        }
+        long bytes = Benchmarks.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            assemble.run();
+        }
+        long nanos = System.nanoTime() - start;
+        bytes = Benchmarks.allocatedBytes() - bytes;
+        Benchmarks.report(name, "%8.1f bytes/msg %8.1f ns/msg", (double) bytes / COUNT,
+                          (double) nanos / COUNT);
+    }
+
+}
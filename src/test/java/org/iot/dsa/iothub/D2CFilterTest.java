@@ -0,0 +1,120 @@
+package org.iot.dsa.iothub;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSStatus;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.time.DSDateTime;
+import org.junit.Test;
+
+/**
+ * Parsing, operator precedence and the stateful functions of {@link D2CFilter}.
+ */
+public class D2CFilterTest {
+
+    @Test
+    public void comparisons() {
+        D2CFilter filter = D2CFilter.compile("value > 80");
+        D2CFilter.State state = filter.newState();
+        assertTrue(accept(filter, state, 81));
+        assertFalse(accept(filter, state, 80));
+        filter = D2CFilter.compile("value == \"on\"");
+        state = filter.newState();
+        assertTrue(accept(filter, state, DSString.valueOf("on")));
+        assertFalse(accept(filter, state, DSString.valueOf("off")));
+    }
+
+    @Test
+    public void precedence() {
+        D2CFilter filter = D2CFilter.compile("1 + 2 * 3 == 7");
+        assertTrue(accept(filter, filter.newState(), 0));
+        //&& binds tighter than ||
+        filter = D2CFilter.compile("value > 1 || value < 0 && false");
+        assertTrue(accept(filter, filter.newState(), 2));
+        assertFalse(accept(filter, filter.newState(), -1));
+        filter = D2CFilter.compile("(value > 1 || value < 0) && false");
+        assertFalse(accept(filter, filter.newState(), 2));
+        filter = D2CFilter.compile("!(value > 1) && value >= 0");
+        assertTrue(accept(filter, filter.newState(), 1));
+        assertFalse(accept(filter, filter.newState(), 2));
+    }
+
+    @Test
+    public void malformedFiltersReportThePosition() {
+        assertRejected("value > 80)", "position 11");
+        assertRejected("value >", "position");
+        assertRejected("(value > 80", "Expected ')'");
+    }
+
+    @Test
+    public void risingAndFalling() {
+        D2CFilter filter = D2CFilter.compile("rising(50)");
+        D2CFilter.State state = filter.newState();
+        assertFalse(accept(filter, state, 60));
+        assertFalse(accept(filter, state, 40));
+        assertTrue(accept(filter, state, 55));
+        assertFalse(accept(filter, state, 70));
+        filter = D2CFilter.compile("falling(50)");
+        state = filter.newState();
+        assertFalse(accept(filter, state, 60));
+        assertTrue(accept(filter, state, 40));
+        assertFalse(accept(filter, state, 30));
+    }
+
+    @Test
+    public void aboveLatchesUntilTheResetThreshold() {
+        D2CFilter filter = D2CFilter.compile("above(80, 70)");
+        D2CFilter.State state = filter.newState();
+        assertFalse(accept(filter, state, 75));
+        assertTrue(accept(filter, state, 85));
+        assertTrue(accept(filter, state, 75));
+        assertTrue(accept(filter, state, 70));
+        assertFalse(accept(filter, state, 69));
+        assertFalse(accept(filter, state, 75));
+    }
+
+    @Test
+    public void belowLatchesUntilTheResetThreshold() {
+        D2CFilter filter = D2CFilter.compile("below(20, 30)");
+        D2CFilter.State state = filter.newState();
+        assertFalse(accept(filter, state, 25));
+        assertTrue(accept(filter, state, 15));
+        assertTrue(accept(filter, state, 25));
+        assertFalse(accept(filter, state, 31));
+    }
+
+    @Test
+    public void latchesArePerState() {
+        D2CFilter filter = D2CFilter.compile("above(80, 70) || below(20, 30)");
+        D2CFilter.State first = filter.newState();
+        D2CFilter.State second = filter.newState();
+        assertTrue(accept(filter, first, 90));
+        assertFalse(accept(filter, second, 75));
+        assertTrue(accept(filter, first, 75));
+        //both latches see every update, even when the left side is already true
+        assertTrue(accept(filter, second, 10));
+        assertTrue(accept(filter, second, 25));
+    }
+
+    private static boolean accept(D2CFilter filter, D2CFilter.State state, double value) {
+        return accept(filter, state, DSDouble.valueOf(value));
+    }
+
+    private static boolean accept(D2CFilter filter, D2CFilter.State state, DSElement value) {
+        return filter.accept(new D2CUpdate(DSDateTime.now(), value, DSStatus.ok), state);
+    }
+
+    private static void assertRejected(String source, String message) {
+        try {
+            D2CFilter.compile(source);
+            fail("Compiled " + source);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package org.iot.dsa.iothub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.iot.dsa.dslink.DSIRequester;
+import org.iot.dsa.dslink.restadapter.AbstractRuleNode;
+import org.iot.dsa.dslink.restadapter.ResponseWrapper;
+import org.iot.dsa.dslink.restadapter.WebClientProxy;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSElement;
+import org.iot.dsa.node.DSString;
+import org.iot.dsa.node.DSStatus;
+import org.iot.dsa.time.DSDateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * How a {@link D2CFramer} packs points into frames, sent through a device on the
+ * {@link LoopbackTransport}.
+ */
+public class D2CFramerTest {
+
+    private static final int CAPACITY = D2CFramer.BILLING_UNIT - 256;
+    /**
+     * Long enough that frames are only sent when full or flushed.
+     */
+    private static final long INTERVAL = 60000;
+
+    private LocalDeviceNode device;
+    private List<String> frames;
+    private LoopbackTransport hub;
+
+    @Before
+    public void setUp() {
+        MainNode.setTransportType(TransportType.LOOPBACK);
+        device = LocalDeviceLoopbackTest.startDevice("framer");
+        hub = LoopbackTransport.get("framer");
+        frames = new CopyOnWriteArrayList<String>();
+        hub.setSink((id, message) -> frames.add(
+                new String(message.getBytes(), Message.DEFAULT_IOTHUB_MESSAGE_CHARSET)));
+    }
+
+    @After
+    public void tearDown() {
+        device.stop();
+        hub.close();
+        MainNode.setTransportType(TransportType.AZURE);
+    }
+
+    @Test
+    public void pointsArePackedInOrderWithinTheCapacity() {
+        D2CFramer framer = new D2CFramer(device, 1, INTERVAL);
+        TestRule rule = new TestRule();
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            framer.add(rule, update("/downstream/dev/point" + i, DSDouble.valueOf(i)));
+        }
+        //the first frame is sent as soon as the next point doesn't fit
+        assertEquals(1, frames.size());
+        framer.flush();
+        assertEquals(2, frames.size());
+        StringBuilder all = new StringBuilder();
+        for (String frame : frames) {
+            assertTrue(Util.utf8Length(frame) <= CAPACITY);
+            assertTrue(frame.startsWith("[[") && frame.endsWith("]]"));
+            all.append(frame);
+        }
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            int at = all.indexOf("[\"/downstream/dev/point" + i + "\",");
+            assertTrue("point" + i + " out of order", at > last);
+            last = at;
+        }
+        assertEquals(2, rule.codes.size());
+        framer.close();
+        assertEquals(2, frames.size());
+    }
+
+    @Test
+    public void oversizedPointIsRejected() {
+        D2CFramer framer = new D2CFramer(device, 1, INTERVAL);
+        TestRule rule = new TestRule();
+        StringBuilder big = new StringBuilder();
+        while (big.length() < CAPACITY) {
+            big.append("0123456789");
+        }
+        framer.add(rule, update("/downstream/dev/big", DSString.valueOf(big.toString())));
+        assertEquals(1, rule.codes.size());
+        assertEquals(Integer.valueOf(D2CFramer.STATUS_TOO_LARGE), rule.codes.get(0));
+        framer.add(rule, update("/downstream/dev/small", DSDouble.valueOf(1)));
+        framer.close();
+        assertEquals(1, frames.size());
+        assertTrue(frames.get(0).contains("/downstream/dev/small"));
+        assertFalse(frames.get(0).contains("/downstream/dev/big"));
+    }
+
+    @Test
+    public void encoding() {
+        String point = D2CFramer.encode(update("/a\"b", DSDouble.valueOf(Double.NaN)));
+        assertTrue(point, point.startsWith("[\"/a\\\"b\","));
+        assertTrue(point, point.contains(",null,"));
+        point = D2CFramer.encode(update("/s", DSString.valueOf("line\nbreak")));
+        assertTrue(point, point.contains(",\"line\\nbreak\","));
+    }
+
+    private static D2CUpdate update(String path, DSElement value) {
+        return new D2CUpdate(path, DSDateTime.now(), value, DSStatus.ok);
+    }
+
+    /**
+     * Records the status of every response.
+     */
+    private static class TestRule extends AbstractRuleNode {
+
+        final List<Integer> codes = new CopyOnWriteArrayList<Integer>();
+
+        @Override
+        public DSIRequester getRequester() {
+            return null;
+        }
+
+        @Override
+        public WebClientProxy getWebClientProxy() {
+            return null;
+        }
+
+        @Override
+        public void responseRecieved(ResponseWrapper resp, int rowNum) {
+            codes.add(resp != null ? resp.getCode() : -1);
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+package org.iot.dsa.iothub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.iot.dsa.node.DSMap;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Removing and replacing subtrees of a {@link FlatTwinStore}, and the branch index that has to
+ * follow.
+ */
+public class FlatTwinStoreTest {
+
+    private List<String> changes;
+    private FlatTwinStore store;
+
+    @Before
+    public void setUp() {
+        store = new FlatTwinStore();
+        store.put("config", new DSMap().put("interval", 10)
+                                       .put("nested", new DSMap().put("a", 1).put("b", 2)));
+        store.put("mode", "auto");
+        changes = new CopyOnWriteArrayList<String>();
+        store.setListener(path -> changes.add(path));
+    }
+
+    @Test
+    public void removeSubtree() {
+        assertEquals(4, store.size());
+        store.remove("config.nested");
+        assertNull(store.get("config.nested.a"));
+        assertNull(store.get("config.nested.b"));
+        assertFalse(store.hasChildren("config.nested"));
+        List<FlatTwinStore.Child> children = store.getChildren("config");
+        assertEquals(1, children.size());
+        assertEquals("interval", children.get(0).name);
+        assertTrue(children.get(0).leaf);
+        assertEquals(2, store.size());
+        assertEquals(1, changes.size());
+        assertEquals("config.nested", changes.get(0));
+    }
+
+    @Test
+    public void removingTheLastLeafRemovesTheBranch() {
+        store.remove("config.nested");
+        store.remove("config.interval");
+        assertFalse(store.hasChildren("config"));
+        assertNull(store.getObject("config"));
+        List<FlatTwinStore.Child> top = store.getChildren("");
+        assertEquals(1, top.size());
+        assertEquals("mode", top.get(0).name);
+    }
+
+    @Test
+    public void removeOnlyMatchesWholeNames() {
+        store.put("a.b", 1);
+        store.put("a.bc", 2);
+        store.put("ab", 3);
+        store.remove("a.b");
+        assertNull(store.get("a.b"));
+        assertEquals(2, store.get("a.bc").toDouble(), 0);
+        assertEquals(3, store.get("ab").toDouble(), 0);
+        assertEquals(2, store.get("config.nested.b").toDouble(), 0);
+    }
+
+    @Test
+    public void removingNothingDoesntNotify() {
+        store.remove("missing");
+        store.remove("config.missing");
+        assertTrue(changes.isEmpty());
+        assertEquals(4, store.size());
+    }
+
+    @Test
+    public void leafReplacesSubtree() {
+        store.put("config", 5);
+        assertFalse(store.hasChildren("config"));
+        assertNull(store.get("config.interval"));
+        assertEquals(5, store.get("config").toDouble(), 0);
+        assertEquals(2, store.size());
+        store.put("config", new DSMap().put("x", true));
+        assertNull(store.get("config"));
+        assertTrue(store.get("config.x").toBoolean());
+        assertEquals(2, store.size());
+    }
+
+}
@@ -0,0 +1,143 @@
+package org.iot.dsa.iothub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.DeviceMethodData;
+import com.microsoft.azure.sdk.iot.device.DeviceTwin.Property;
+import com.microsoft.azure.sdk.iot.device.IotHubClientProtocol;
+import com.microsoft.azure.sdk.iot.device.IotHubMessageResult;
+import com.microsoft.azure.sdk.iot.device.Message;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.iot.dsa.dslink.restadapter.ResponseWrapper;
+import org.iot.dsa.node.DSList;
+import org.iot.dsa.node.DSMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a local device against the {@link LoopbackTransport}, driving the cloud side of each
+ * feature: D2C messages, C2D messages, direct methods and both halves of the twin.
+ */
+public class LocalDeviceLoopbackTest {
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+    private static final long TIMEOUT = 5000;
+
+    private LocalDeviceNode device;
+    private String deviceId;
+    private LoopbackTransport hub;
+
+    @Before
+    public void setUp() {
+        MainNode.setTransportType(TransportType.LOOPBACK);
+        deviceId = "device" + nextId.incrementAndGet();
+        device = startDevice(deviceId);
+        hub = LoopbackTransport.get(deviceId);
+        assertNotNull(hub);
+    }
+
+    @After
+    public void tearDown() {
+        device.stop();
+        hub.close();
+        MainNode.setTransportType(TransportType.AZURE);
+    }
+
+    @Test
+    public void d2cMessageReachesHub() {
+        List<Message> received = new CopyOnWriteArrayList<Message>();
+        hub.setSink((id, message) -> received.add(message));
+        ResponseWrapper resp = device.doSendD2C(new DSMap().put("site", "plant-1"),
+                                                "{\"value\": 21.5}", true);
+        assertEquals(204, resp.getCode());
+        assertEquals(1, received.size());
+        Message message = received.get(0);
+        assertEquals("{\"value\": 21.5}",
+                     new String(message.getBytes(), Message.DEFAULT_IOTHUB_MESSAGE_CHARSET));
+        assertEquals("plant-1", message.getProperty("site"));
+        assertNotNull(message.getMessageId());
+    }
+
+    @Test
+    public void d2cMessageWithoutWaiting() {
+        ResponseWrapper resp = device.doSendD2C(new DSMap(), "hello", false);
+        assertEquals(202, resp.getCode());
+        assertEquals(1, hub.getSentMessages());
+        assertEquals(5, hub.getSentBytes());
+    }
+
+    @Test
+    public void c2dMessageIsCompleted() {
+        Message message = new Message("set point");
+        message.setMessageId("c2d-1");
+        assertEquals(IotHubMessageResult.COMPLETE, hub.deliverMessage(message));
+        DSList messages = (DSList) device.get("Cloud-To-Device Messages");
+        assertEquals(1, messages.size());
+        DSMap received = messages.getMap(0);
+        assertEquals("c2d-1", received.getString("ID"));
+        assertEquals("set point", received.getString("Body"));
+    }
+
+    @Test
+    public void directMethods() {
+        device.getNode("Methods").add("ping", new DirectMethodNode("ping", "", DSAMethod.INVOKE));
+        DeviceMethodData resp = hub.callMethod("ping", null);
+        assertEquals(DirectMethodNode.METHOD_SUCCESS, resp.getStatus());
+        resp = hub.callMethod("missing", null);
+        assertEquals(DirectMethodNode.METHOD_NOT_DEFINED, resp.getStatus());
+    }
+
+    @Test
+    public void reportedPropertiesReachHub() {
+        Set<Property> props = new HashSet<Property>();
+        props.add(new Property("firmware", "1.2.0"));
+        props.add(new Property("uptime", 3600));
+        device.sendReportedPatch(props);
+        assertEquals("1.2.0", hub.getReported().get("firmware"));
+        assertEquals(3600, hub.getReported().get("uptime"));
+    }
+
+    @Test
+    public void desiredPropertiesReachDevice() throws InterruptedException {
+        hub.setDesired("setpoint", 21.5);
+        waitFor("setpoint", () -> Double.valueOf(21.5)
+                .equals(device.getDesiredStore().getObject("setpoint")));
+        hub.setDesired("setpoint", 19.0);
+        waitFor("changed setpoint", () -> Double.valueOf(19.0)
+                .equals(device.getDesiredStore().getObject("setpoint")));
+    }
+
+    /**
+     * Starts a device outside of a link and connects it on the calling thread.
+     */
+    static LocalDeviceNode startDevice(String deviceId) {
+        LocalDeviceNode device = new LocalDeviceNode(
+                deviceId, IotHubClientProtocol.MQTT,
+                "HostName=loopback;DeviceId=" + deviceId + ";SharedAccessKey=bG9vcGJhY2s=");
+        device.start();
+        device.stable();
+        assertTrue(device.connectNow());
+        return device;
+    }
+
+    private static void waitFor(String what, BooleanSupplier condition)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + what);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+}
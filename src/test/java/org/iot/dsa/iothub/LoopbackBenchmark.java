@@ -0,0 +1,49 @@
+package org.iot.dsa.iothub;
+
+import com.microsoft.azure.sdk.iot.device.Message;
+import org.iot.dsa.node.DSMap;
+
+/**
+ * Overhead of the link per operation, with a local device on the {@link LoopbackTransport} so
+ * that no network or hub is involved: D2C messages with and without waiting for the
+ * acknowledgement, C2D messages, and direct methods.
+ */
+public class LoopbackBenchmark {
+
+    private static final String BODY = "{\"value\": 21.5, \"ts\": \"2020-01-01T00:00:00.000Z\"}";
+    private static final int COUNT = 200000;
+    private static final int WARMUP = 50000;
+
+    public static void main(String[] args) {
+        MainNode.setTransportType(TransportType.LOOPBACK);
+        String deviceId = "benchmark";
+        LocalDeviceNode device = LocalDeviceLoopbackTest.startDevice(deviceId);
+        LoopbackTransport hub = LoopbackTransport.get(deviceId);
+        device.getNode("Methods").add("ping", new DirectMethodNode("ping", "", DSAMethod.INVOKE));
+        DSMap properties = new DSMap().put("site", "plant-1");
+        try {
+            run("D2C, awaiting the response", () -> device.doSendD2C(properties, BODY, true));
+            run("D2C, not awaiting the response",
+                () -> device.doSendD2C(properties, BODY, false));
+            run("C2D", () -> hub.deliverMessage(new Message(BODY)));
+            run("direct method", () -> hub.callMethod("ping", null));
+        } finally {
+            device.stop();
+            hub.close();
+        }
+    }
+
+    private static void run(String name, Runnable op) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            op.run();
+        }
+        long nanos = System.nanoTime() - start;
+        Benchmarks.report(name, "%8.1f us/op %10.0f ops/s", nanos / 1e3 / COUNT,
+                          COUNT * 1e9 / nanos);
+    }
+
+}
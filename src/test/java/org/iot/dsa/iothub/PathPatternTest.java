@@ -0,0 +1,76 @@
+package org.iot.dsa.iothub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Matching, descending and the listing root of {@link PathPattern}.
+ */
+public class PathPatternTest {
+
+    @Test
+    public void anyDepth() {
+        PathPattern pattern = new PathPattern("/downstream/bacnet/dev1/**");
+        assertEquals("/downstream/bacnet/dev1", pattern.getRoot());
+        assertTrue(pattern.matches("/downstream/bacnet/dev1/a"));
+        assertTrue(pattern.matches("/downstream/bacnet/dev1/a/b/c"));
+        assertTrue(pattern.matches("/downstream/bacnet/dev1"));
+        assertFalse(pattern.matches("/downstream/bacnet/dev2/a"));
+        assertTrue(pattern.canDescend("/downstream/bacnet/dev1/a"));
+        assertFalse(pattern.canDescend("/downstream/modbus"));
+    }
+
+    @Test
+    public void anyDepthInTheMiddle() {
+        PathPattern pattern = new PathPattern("/downstream/**/Present_Value");
+        assertTrue(pattern.matches("/downstream/Present_Value"));
+        assertTrue(pattern.matches("/downstream/bacnet/dev1/ai1/Present_Value"));
+        assertFalse(pattern.matches("/downstream/bacnet/dev1/ai1/Present_Value/x"));
+    }
+
+    @Test
+    public void wildcardsWithinASegment() {
+        PathPattern pattern = new PathPattern("/downstream/bacnet/*/Present_Value");
+        assertEquals("/downstream/bacnet", pattern.getRoot());
+        assertTrue(pattern.matches("/downstream/bacnet/dev1/Present_Value"));
+        assertFalse(pattern.matches("/downstream/bacnet/dev1/ai1/Present_Value"));
+        assertFalse(pattern.matches("/downstream/bacnet/dev1"));
+        assertTrue(pattern.canDescend("/downstream/bacnet"));
+        assertTrue(pattern.canDescend("/downstream/bacnet/dev1"));
+        //the full match has no matching descendants
+        assertFalse(pattern.canDescend("/downstream/bacnet/dev1/Present_Value"));
+        pattern = new PathPattern("/downstream/dev?/temp*");
+        assertTrue(pattern.matches("/downstream/dev1/temp"));
+        assertTrue(pattern.matches("/downstream/dev2/temperature"));
+        assertFalse(pattern.matches("/downstream/dev10/temp"));
+    }
+
+    @Test
+    public void regexCharactersAreLiteral() {
+        PathPattern pattern = new PathPattern("/a.b/*(1)");
+        assertTrue(pattern.matches("/a.b/x(1)"));
+        assertFalse(pattern.matches("/aXb/x(1)"));
+        assertFalse(pattern.matches("/a.b/x1"));
+    }
+
+    @Test
+    public void patternsWithoutWildcardsAreRejected() {
+        assertRejected("/downstream/bacnet/dev1");
+        assertRejected(" ");
+        assertRejected(null);
+    }
+
+    private static void assertRejected(String pattern) {
+        try {
+            new PathPattern(pattern);
+            fail("Accepted " + pattern);
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.iot.dsa.iothub;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.iot.dsa.DSRuntime;
+
+/**
+ * CPU and heap of the maximum refresh deadlines of 50,000 rules: the way rules used to schedule
+ * them, a DSRuntime timer per rule with a new task every time, against the shared
+ * {@link TimingWheel} with a task created once per rule. Every rule resends each second, with
+ * its first resend spread across the interval as {@link D2CRule} does, while updates keep
+ * pushing deadlines back.
+ */
+public class RefreshTimerBenchmark {
+
+    private static final long INTERVAL = 1000;
+    private static final int RULES = 50000;
+    private static final long RUN_MILLIS = 10000;
+    private static final int UPDATES = 1000000;
+
+    private static final AtomicLong fired = new AtomicLong();
+
+    public static void main(String[] args) throws InterruptedException {
+        run("before: DSRuntime timer per rule", new PerRuleTimers());
+        run("after: shared timing wheel", new WheelTimers());
+    }
+
+    private static void run(String name, Rules rules) throws InterruptedException {
+        fired.set(0);
+        long base = Benchmarks.usedHeap();
+        for (int i = 0; i < RULES; i++) {
+            rules.schedule(i, D2CRule.spreadDelay("/downstream/dev/point" + i, INTERVAL));
+        }
+        long heap = Benchmarks.usedHeap() - base;
+        long cpu = Benchmarks.processCpuNanos();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < UPDATES; i++) {
+            rules.schedule(i % RULES, INTERVAL);
+        }
+        long remaining = start + RUN_MILLIS - System.currentTimeMillis();
+        if (remaining > 0) {
+            Thread.sleep(remaining);
+        }
+        cpu = Benchmarks.processCpuNanos() - cpu;
+        rules.cancelAll();
+        Benchmarks.report(name, "%8.1f bytes/rule %8.1f ms cpu %8d resends",
+                          (double) heap / RULES, cpu / 1e6, fired.get());
+    }
+
+    /**
+     * The maximum refresh deadline of every rule, each resend schedules the next.
+     */
+    private abstract static class Rules {
+
+        abstract void cancelAll();
+
+        abstract void schedule(int rule, long delay);
+
+        void fire(int rule) {
+            fired.incrementAndGet();
+            schedule(rule, INTERVAL);
+        }
+    }
+
+    private static class PerRuleTimers extends Rules {
+
+        private final DSRuntime.Timer[] timers = new DSRuntime.Timer[RULES];
+
+        @Override
+        synchronized void cancelAll() {
+            for (int i = 0; i < RULES; i++) {
+                if (timers[i] != null) {
+                    timers[i].cancel();
+                    timers[i] = null;
+                }
+            }
+        }
+
+        @Override
+        synchronized void schedule(final int rule, long delay) {
+            if (timers[rule] != null) {
+                timers[rule].cancel();
+            }
+            timers[rule] = DSRuntime.runDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    fire(rule);
+                }
+            }, delay);
+        }
+    }
+
+    private static class WheelTimers extends Rules {
+
+        private final Runnable[] tasks = new Runnable[RULES];
+        private final TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[RULES];
+        private final TimingWheel wheel = new TimingWheel(100);
+
+        WheelTimers() {
+            for (int i = 0; i < RULES; i++) {
+                final int rule = i;
+                tasks[i] = () -> fire(rule);
+            }
+        }
+
+        @Override
+        synchronized void cancelAll() {
+            for (int i = 0; i < RULES; i++) {
+                if (timeouts[i] != null) {
+                    timeouts[i].cancel();
+                    timeouts[i] = null;
+                }
+            }
+        }
+
+        @Override
+        synchronized void schedule(int rule, long delay) {
+            if (timeouts[rule] != null) {
+                timeouts[rule].cancel();
+            }
+            timeouts[rule] = wheel.schedule(tasks[rule], delay);
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.iot.dsa.iothub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Timeouts of a {@link TimingWheel} beyond its first level, which have to be cascaded down to
+ * fire, and cancelling them.
+ */
+public class TimingWheelTest {
+
+    /**
+     * With a 1 ms tick, the first level covers 256 ms.
+     */
+    private static final long TICK = 1;
+    private static final long TIMEOUT = 10000;
+
+    @Test
+    public void cascadedTimeoutsFireInOrderAndNotEarly() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(TICK);
+        long[] delays = {600, 20, 300, 1100};
+        CountDownLatch done = new CountDownLatch(delays.length);
+        List<Long> fired = new CopyOnWriteArrayList<Long>();
+        List<Long> late = new CopyOnWriteArrayList<Long>();
+        long start = System.nanoTime();
+        for (final long delay : delays) {
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    long elapsed = (System.nanoTime() - start) / 1000000;
+                    if (elapsed < delay) {
+                        late.add(delay - elapsed);
+                    }
+                    fired.add(delay);
+                    done.countDown();
+                }
+            }, delay);
+        }
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue("Fired early by " + late, late.isEmpty());
+        assertEquals(Long.valueOf(20), fired.get(0));
+        assertEquals(Long.valueOf(300), fired.get(1));
+        assertEquals(Long.valueOf(600), fired.get(2));
+        assertEquals(Long.valueOf(1100), fired.get(3));
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void cancelledTimeoutsDontFire() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(TICK);
+        List<String> fired = new CopyOnWriteArrayList<String>();
+        CountDownLatch done = new CountDownLatch(1);
+        TimingWheel.Timeout cancelled = wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add("cancelled");
+            }
+        }, 300);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.add("kept");
+                done.countDown();
+            }
+        }, 400);
+        assertEquals(2, wheel.getPendingCount());
+        cancelled.cancel();
+        cancelled.cancel();
+        assertEquals(1, wheel.getPendingCount());
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, fired.size());
+        assertEquals("kept", fired.get(0));
+    }
+
+    @Test
+    public void aFailingTaskDoesntStopTheBatch() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(TICK);
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("expected");
+            }
+        }, 300);
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        }, 300);
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+}
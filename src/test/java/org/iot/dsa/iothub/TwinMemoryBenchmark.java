@@ -0,0 +1,92 @@
+package org.iot.dsa.iothub;
+
+import org.iot.dsa.iothub.node.BoolNode;
+import org.iot.dsa.iothub.node.DoubleNode;
+import org.iot.dsa.iothub.node.StringNode;
+import org.iot.dsa.node.DSBool;
+import org.iot.dsa.node.DSDouble;
+import org.iot.dsa.node.DSString;
+
+/**
+ * Heap per twin leaf: the way reported properties used to be held, a TwinPropertyNode for every
+ * map with a value node for every leaf, against the {@link FlatTwinStore}. Also times listing
+ * a branch of the store, which used to scan every leaf.
+ */
+public class TwinMemoryBenchmark {
+
+    private static final int BRANCHES = 200;
+    private static final int LEAVES_PER_BRANCH = 250;
+    private static final int LEAVES = BRANCHES * LEAVES_PER_BRANCH;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        long base = Benchmarks.usedHeap();
+        sink = buildNodes();
+        long nodes = Benchmarks.usedHeap() - base;
+        sink = null;
+        base = Benchmarks.usedHeap();
+        FlatTwinStore store = buildStore();
+        sink = store;
+        long flat = Benchmarks.usedHeap() - base;
+        Benchmarks.report("before: nodes", "%8.1f bytes/leaf", (double) nodes / LEAVES);
+        Benchmarks.report("after: flat store", "%8.1f bytes/leaf", (double) flat / LEAVES);
+
+        for (int i = 0; i < 1000; i++) {
+            store.getChildren("site" + (i % BRANCHES));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            sink = store.getChildren("site" + (i % BRANCHES));
+        }
+        Benchmarks.report("list a branch", "%8.1f us", (System.nanoTime() - start) / 1e3 / 10000);
+    }
+
+    private static TwinPropertyNode buildNodes() {
+        TwinPropertyNode root = new TwinPropertyNode();
+        for (int b = 0; b < BRANCHES; b++) {
+            TwinPropertyNode branch = new TwinPropertyNode();
+            root.put("site" + b, branch);
+            for (int l = 0; l < LEAVES_PER_BRANCH; l++) {
+                switch (l % 3) {
+                    case 0:
+                        DoubleNode d = new DoubleNode();
+                        branch.put("point" + l, d);
+                        d.updateValue(DSDouble.valueOf(l));
+                        break;
+                    case 1:
+                        StringNode s = new StringNode();
+                        branch.put("point" + l, s);
+                        s.updateValue(DSString.valueOf("value" + l));
+                        break;
+                    default:
+                        BoolNode bool = new BoolNode();
+                        branch.put("point" + l, bool);
+                        bool.updateValue(DSBool.valueOf(l % 2 == 0));
+                }
+            }
+        }
+        return root;
+    }
+
+    private static FlatTwinStore buildStore() {
+        FlatTwinStore store = new FlatTwinStore();
+        for (int b = 0; b < BRANCHES; b++) {
+            for (int l = 0; l < LEAVES_PER_BRANCH; l++) {
+                String path = "site" + b + FlatTwinStore.SEPARATOR + "point" + l;
+                switch (l % 3) {
+                    case 0:
+                        store.put(path, (double) l);
+                        break;
+                    case 1:
+                        store.put(path, "value" + l);
+                        break;
+                    default:
+                        store.put(path, l % 2 == 0);
+                }
+            }
+        }
+        return store;
+    }
+
+}